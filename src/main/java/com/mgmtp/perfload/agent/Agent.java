@@ -15,10 +15,13 @@
  */
 package com.mgmtp.perfload.agent;
 
+import static com.google.common.collect.Lists.newArrayList;
+
 import java.io.File;
 import java.lang.instrument.Instrumentation;
 import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,6 +30,9 @@ import javax.inject.Inject;
 import org.apache.commons.io.FileUtils;
 
 import com.google.inject.Injector;
+import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.hook.InstrumentationSwitches;
+import com.mgmtp.perfload.agent.hook.StackSampler;
 
 /**
  * Java agent main class. Called by the JVM.
@@ -37,42 +43,144 @@ public class Agent {
 
 	private final AgentLogger logger;
 	private final Transformer transformer;
+	private final AgentDiagnostics diagnostics;
+	private final BootstrapBridge bootstrapBridge;
+	private final InstrumentationSwitches switches;
+	private final StackSampler stackSampler;
 
 	@Inject
-	Agent(final AgentLogger logger, final Transformer transformer) {
+	Agent(final AgentLogger logger, final Transformer transformer, final AgentDiagnostics diagnostics,
+			final BootstrapBridge bootstrapBridge, final InstrumentationSwitches switches, final StackSampler stackSampler) {
 		this.logger = logger;
 		this.transformer = transformer;
+		this.diagnostics = diagnostics;
+		this.bootstrapBridge = bootstrapBridge;
+		this.switches = switches;
+		this.stackSampler = stackSampler;
 	}
 
 	void addTransformer(final Instrumentation instrumentation) {
+		if (transformer.needsBootstrapBridge()) {
+			bootstrapBridge.install(instrumentation);
+		}
+
 		logger.writeln("Adding transformer...");
-		instrumentation.addTransformer(transformer);
+		instrumentation.addTransformer(transformer, instrumentation.isRetransformClassesSupported());
+		retransformLoadedClasses(instrumentation, false);
+		diagnostics.register();
+		switches.start();
+		stackSampler.start();
+	}
+
+	/**
+	 * Activates the transformer registered by {@code premain} when the agent is initialized lazily
+	 * and retransforms all classes loaded before.
+	 */
+	void activateTransformer(final Instrumentation instrumentation, final DeferredTransformer deferredTransformer) {
+		if (transformer.needsBootstrapBridge()) {
+			bootstrapBridge.install(instrumentation);
+		}
+
+		logger.writeln("Activating transformer...");
+		deferredTransformer.activate(transformer);
+		retransformLoadedClasses(instrumentation, true);
+		diagnostics.register();
+		switches.start();
+		stackSampler.start();
+	}
+
+	/**
+	 * Retransforms classes that were loaded before the transformer was added or activated. These
+	 * are JDK classes and, if the agent is initialized lazily, application classes.
+	 */
+	private void retransformLoadedClasses(final Instrumentation instrumentation, final boolean includeApplicationClasses) {
+		if (!instrumentation.isRetransformClassesSupported()
+				|| !includeApplicationClasses && !bootstrapBridge.isInstalled()) {
+			return;
+		}
+		List<Class<?>> classes = newArrayList();
+		for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+			if (instrumentation.isModifiableClass(clazz) && (includeApplicationClasses
+					? transformer.isDeferredRetransformationCandidate(clazz)
+					: transformer.isRetransformationCandidate(clazz))) {
+				classes.add(clazz);
+			}
+		}
+		if (!classes.isEmpty()) {
+			logger.writeln("Retransforming loaded classes: " + classes);
+			try {
+				instrumentation.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+			} catch (Exception ex) {
+				logger.writeln("Error retransforming loaded classes.", ex);
+				transformer.retransformationFailed(classes);
+			}
+		}
 	}
 
 	/**
 	 * @param agentArgs
-	 *            arguments for the agent; not used
+	 *            arguments for the agent, see {@link AgentOptions}
 	 * @param instrumentation
 	 *            the {@link Instrumentation} instance
 	 */
 	public static void premain(final String agentArgs, final Instrumentation instrumentation) {
+		try {
+			final File agentDir = getAgentDir();
+			final AgentOptions options = AgentOptions.parse(agentArgs, agentDir);
+
+			if (options.isLazyInit() && instrumentation.isRetransformClassesSupported()) {
+				// only register a transformer that does nothing yet, everything else is done in the background
+				final DeferredTransformer deferredTransformer = new DeferredTransformer();
+				instrumentation.addTransformer(deferredTransformer, true);
+
+				Thread initThread = new Thread("perfload-agent-init") {
+					@Override
+					public void run() {
+						Agent agent = initialize(agentDir, options);
+						if (agent != null) {
+							agent.activateTransformer(instrumentation, deferredTransformer);
+						}
+					}
+				};
+				initThread.setDaemon(true);
+				initThread.start();
+			} else {
+				Agent agent = initialize(agentDir, options);
+				if (agent != null) {
+					agent.addTransformer(instrumentation);
+				}
+			}
+		} catch (Exception ex) {
+			System.err.println("Error initializing perfLoad Agent.");
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Creates the agent's logger and injector.
+	 * 
+	 * @return the agent, or {@code null} if initialization failed
+	 */
+	private static Agent initialize(final File agentDir, final AgentOptions options) {
 		AgentLogger logger = null;
 		try {
-			File agentDir = getAgentDir();
 			int pid = retrievePid();
 			File agentLog = new File(agentDir, String.format("perfload-agent-%d.log", pid));
 			logger = new AgentLogger(agentLog);
 
-			logger.writeln("Initializing perfLoad Agent...");
+			logger.writeln("Initializing perfLoad Agent: " + options);
 
-			Injector injector = InjectorHolder.INSTANCE.createInjector(new AgentModule(agentDir, logger, pid));
-			injector.getInstance(Agent.class).addTransformer(instrumentation);
+			Injector injector = InjectorHolder.INSTANCE.createInjector(new AgentModule(agentDir, logger, pid,
+					options.getConfigFile()));
+			logger.setRotation(injector.getInstance(Config.class).getRotation());
+			return injector.getInstance(Agent.class);
 		} catch (Exception ex) {
 			ex.printStackTrace();
 			if (logger != null) {
 				logger.writeln("Error initializing perfLoad Agent.", ex);
 				logger.close();
 			}
+			return null;
 		}
 	}
 
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.mgmtp.perfload.agent.hook.ContextPropagator;
+import com.mgmtp.perfload.agent.sink.AsyncLogger;
+import com.mgmtp.perfload.agent.sink.NetworkSinkLogger;
+import com.mgmtp.perfload.agent.util.OperationRegistry;
+import com.mgmtp.perfload.agent.util.ThreadState;
+import com.mgmtp.perfload.logging.SimpleLogger;
+
+/**
+ * Collects diagnostic information about the agent's memory footprint and exposes it via JMX as
+ * {@value #OBJECT_NAME}.
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class AgentDiagnostics implements AgentDiagnosticsMBean {
+
+	public static final String OBJECT_NAME = "com.mgmtp.perfload.agent:type=Diagnostics";
+
+	// rough shallow sizes assuming a 64-bit JVM with compressed oops
+	private static final long THREAD_STATE_BYTES = 160L;
+	private static final long MAP_ENTRY_BYTES = 64L;
+	private static final long RESULT_LOGGER_BYTES = 256L;
+
+	private final AtomicLong droppedMeasurements = new AtomicLong();
+	private final AtomicLong unbalancedExits = new AtomicLong();
+
+	private final AgentLogger logger;
+	// providers, so registering the MBean does not open the measuring log
+	private final Provider<ContextPropagator> contextPropagator;
+	private final Provider<OperationRegistry> operationRegistry;
+	private final Provider<SimpleLogger> measuringLogger;
+
+	@Inject
+	AgentDiagnostics(final AgentLogger logger, final Provider<ContextPropagator> contextPropagator,
+			final Provider<OperationRegistry> operationRegistry, final Provider<SimpleLogger> measuringLogger) {
+		this.logger = logger;
+		this.contextPropagator = contextPropagator;
+		this.operationRegistry = operationRegistry;
+		this.measuringLogger = measuringLogger;
+	}
+
+	private NetworkSinkLogger networkSinkLogger() {
+		SimpleLogger result = measuringLogger.get();
+		return result instanceof NetworkSinkLogger ? (NetworkSinkLogger) result : null;
+	}
+
+	/**
+	 * Registers this object with the platform MBean server.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException ex) {
+			logger.writeln("Error registering diagnostics MBean: " + ex.getMessage(), ex);
+		}
+	}
+
+	public void measurementDropped() {
+		droppedMeasurements.incrementAndGet();
+	}
+
+	public void unbalancedExit() {
+		unbalancedExits.incrementAndGet();
+	}
+
+	@Override
+	public int getLiveThreadStates() {
+		return ThreadState.getLiveCount();
+	}
+
+	@Override
+	public int getPendingForkJoinTasks() {
+		return contextPropagator.get().getPendingForkJoinTasks();
+	}
+
+	@Override
+	public long getResultLoggers() {
+		return operationRegistry.get().size();
+	}
+
+	@Override
+	public long getDroppedMeasurements() {
+		return droppedMeasurements.get();
+	}
+
+	@Override
+	public long getUnbalancedExits() {
+		return unbalancedExits.get();
+	}
+
+	@Override
+	public long getOverflowedOperations() {
+		return operationRegistry.get().getOverflows();
+	}
+
+	@Override
+	public long getSinkSentRecords() {
+		NetworkSinkLogger sinkLogger = networkSinkLogger();
+		return sinkLogger != null ? sinkLogger.getSentRecords() : 0L;
+	}
+
+	@Override
+	public long getSinkDroppedRecords() {
+		NetworkSinkLogger sinkLogger = networkSinkLogger();
+		return sinkLogger != null ? sinkLogger.getDroppedRecords() : 0L;
+	}
+
+	@Override
+	public long getSinkFailedRecords() {
+		NetworkSinkLogger sinkLogger = networkSinkLogger();
+		return sinkLogger != null ? sinkLogger.getFailedRecords() : 0L;
+	}
+
+	@Override
+	public long getAsyncLogDroppedRecords() {
+		SimpleLogger result = measuringLogger.get();
+		return result instanceof AsyncLogger ? ((AsyncLogger) result).getDroppedRecords() : 0L;
+	}
+
+	@Override
+	public long getSuppressedLogMessages() {
+		return logger.getSuppressedMessages();
+	}
+
+	@Override
+	public long getEstimatedRetainedBytes() {
+		return getLiveThreadStates() * THREAD_STATE_BYTES + getPendingForkJoinTasks() * MAP_ENTRY_BYTES
+				+ getResultLoggers() * RESULT_LOGGER_BYTES;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+/**
+ * JMX interface exposing diagnostic information about the agent's memory footprint.
+ * 
+ * @author rnaegele
+ */
+public interface AgentDiagnosticsMBean {
+
+	/**
+	 * @return the number of threads that currently hold agent state
+	 */
+	int getLiveThreadStates();
+
+	/**
+	 * @return the number of fork/join tasks with captured execution params that have not run yet
+	 */
+	int getPendingForkJoinTasks();
+
+	/**
+	 * @return the number of result loggers, i. e. the number of distinct operations
+	 */
+	long getResultLoggers();
+
+	/**
+	 * @return the number of operation registrations that exceeded the limit of distinct operations
+	 */
+	long getOverflowedOperations();
+
+	/**
+	 * @return the number of measurements skipped because a thread's measurement stack was full
+	 */
+	long getDroppedMeasurements();
+
+	/**
+	 * @return the number of requests that left pending measurements on the stack
+	 */
+	long getUnbalancedExits();
+
+	/**
+	 * @return the number of measurements sent to the collector by the network sink
+	 */
+	long getSinkSentRecords();
+
+	/**
+	 * @return the number of measurements the network sink dropped because its queue was full
+	 */
+	long getSinkDroppedRecords();
+
+	/**
+	 * @return the number of measurements the network sink lost because the collector could not
+	 *         be reached
+	 */
+	long getSinkFailedRecords();
+
+	/**
+	 * @return the number of measurements the asynchronous measuring log dropped because its queue
+	 *         was full
+	 */
+	long getAsyncLogDroppedRecords();
+
+	/**
+	 * @return the number of agent log messages suppressed by rate limiting
+	 */
+	long getSuppressedLogMessages();
+
+	/**
+	 * @return a rough estimate of the heap retained by the agent's runtime state in bytes
+	 */
+	long getEstimatedRetainedBytes();
+}
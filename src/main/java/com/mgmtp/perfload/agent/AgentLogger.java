@@ -22,91 +22,247 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.output.FileWriterWithEncoding;
-import org.apache.commons.io.output.ProxyWriter;
 import org.apache.commons.lang3.SystemUtils;
-import org.apache.commons.lang3.text.StrBuilder;
 import org.apache.commons.lang3.time.DateFormatUtils;
 
+import com.mgmtp.perfload.agent.config.Rotation;
+import com.mgmtp.perfload.agent.util.RollingFileWriter;
 import com.mgmtp.perfload.logging.SimpleLogger;
 
 /**
  * Logger for the agent that logs to a file. A custom logger is used instead of a logging framework
  * in order to be independent of any possibly used logging frameworks in the application the agent
  * measures.
+ * <p>
+ * Logging never blocks the calling thread: messages are queued and written by a daemon thread,
+ * which also checks periodically whether the file has been removed. Messages exceeding a rate of
+ * {@value #MAX_MESSAGES_PER_SECOND} per second or a full queue are suppressed, and a message
+ * repeating the previous one is only counted. Both are summarized in the log.
  * 
  * @author rnaegele
  */
 public class AgentLogger implements SimpleLogger {
 
-	private PrintWriter writer;
+	static final int MAX_MESSAGES_PER_SECOND = 100;
+
+	private static final int QUEUE_CAPACITY = 1000;
+	private static final long CHECK_INTERVAL_MILLIS = 1000L;
+	private static final long CLOSE_TIMEOUT_MILLIS = 5000L;
+
 	private final File agentLogFile;
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+
+	private final AtomicLong windowStart = new AtomicLong();
+	private final AtomicInteger windowCount = new AtomicInteger();
+	private final AtomicLong suppressedMessages = new AtomicLong();
+	private final AtomicLong pendingSuppressed = new AtomicLong();
+	private final AtomicLong pendingRepeats = new AtomicLong();
+	private volatile String lastMessage;
+
+	private volatile Rotation rotation = Rotation.disabled();
+	private volatile boolean reopen;
+	private volatile boolean closed;
+	private volatile Thread writerThread;
+
+	// only accessed by the writer thread
+	private PrintWriter writer;
+	private boolean truncated;
 
 	public AgentLogger(final File agentLogfile) {
 		this.agentLogFile = agentLogfile;
 	}
 
+	/**
+	 * Starts the writer thread. Called implicitly when the first message is logged.
+	 */
 	@Override
-	public void open() throws IOException {
-		writer = new PrintWriter(new DecoratingWriter(new FileWriterWithEncoding(agentLogFile, Charset.forName("UTF-8"))));
+	public synchronized void open() {
+		if (writerThread != null || closed) {
+			return;
+		}
+		Thread thread = new Thread("perfload-agent-logger") {
+			@Override
+			public void run() {
+				writeEntries();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		writerThread = thread;
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				AgentLogger.this.close();
+			}
+		});
 	}
 
 	@Override
 	public void writeln(final String output) {
-		ensureOpen();
-		writer.print(output);
+		log(output, null);
 	}
 
 	public void writeln(final String output, final Throwable th) {
-		ensureOpen();
-		writer.print(output);
-		th.printStackTrace(writer);
+		log(output, th);
 	}
 
-	private void ensureOpen() {
-		if (writer == null) {
-			try {
-				open();
-			} catch (IOException ex) {
-				throw new RuntimeException(ex);
-			}
-		} else if (!agentLogFile.exists()) {
-			// in case file was removed by Supervisor
-			close();
-			writer = null;
-			ensureOpen();
+	private void log(final String output, final Throwable th) {
+		if (closed) {
+			return;
+		}
+		if (th == null && output.equals(lastMessage)) {
+			pendingRepeats.incrementAndGet();
+			return;
+		}
+		if (!tryAcquire()) {
+			suppressedMessages.incrementAndGet();
+			pendingSuppressed.incrementAndGet();
+			return;
+		}
+		// the counts summarize what happened since the previous entry
+		Entry entry = new Entry(System.currentTimeMillis(), output, th, pendingRepeats.getAndSet(0L),
+				pendingSuppressed.getAndSet(0L));
+		if (!queue.offer(entry)) {
+			pendingRepeats.addAndGet(entry.repeats);
+			pendingSuppressed.addAndGet(entry.suppressed + 1L);
+			suppressedMessages.incrementAndGet();
+			return;
 		}
+		lastMessage = output;
+		if (writerThread == null) {
+			open();
+		}
+	}
+
+	private boolean tryAcquire() {
+		long now = System.currentTimeMillis();
+		long start = windowStart.get();
+		if (now - start >= 1000L && windowStart.compareAndSet(start, now)) {
+			windowCount.set(0);
+		}
+		return windowCount.incrementAndGet() <= MAX_MESSAGES_PER_SECOND;
+	}
+
+	/**
+	 * Switches to rotating the log file. Called once the configuration has been loaded.
+	 */
+	public void setRotation(final Rotation rotation) {
+		this.rotation = rotation;
+		reopen = rotation.isEnabled();
 	}
 
+	/**
+	 * Writes the queued messages, waiting for a limited time, and stops the writer thread.
+	 */
 	@Override
 	public void close() {
-		closeQuietly(writer);
+		closed = true;
+		Thread thread = writerThread;
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join(CLOSE_TIMEOUT_MILLIS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 	/**
-	 * Adds a prefix to each log line.
-	 * 
-	 * @author rnaegele
+	 * @return the number of messages suppressed by rate limiting or because the queue was full
 	 */
-	static class DecoratingWriter extends ProxyWriter {
+	public long getSuppressedMessages() {
+		return suppressedMessages.get();
+	}
 
-		public DecoratingWriter(final Writer proxy) {
-			super(proxy);
+	private void writeEntries() {
+		long nextCheck = 0L;
+		try {
+			while (!closed || !queue.isEmpty()) {
+				Entry entry = queue.poll(CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				long now = System.currentTimeMillis();
+				if (now >= nextCheck) {
+					// in case file was removed by Supervisor
+					checkFile();
+					nextCheck = now + CHECK_INTERVAL_MILLIS;
+				}
+				for (; entry != null; entry = queue.poll()) {
+					write(entry);
+				}
+				writeSummaries(now, pendingRepeats.getAndSet(0L), pendingSuppressed.getAndSet(0L));
+				if (writer != null) {
+					writer.flush();
+				}
+			}
+		} catch (InterruptedException ex) {
+			// stop writing
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		} finally {
+			closeQuietly(writer);
+			writer = null;
 		}
+	}
 
-		@Override
-		protected void beforeWrite(final int n) throws IOException {
-			StrBuilder sb = new StrBuilder(43);
-			sb.append(DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(System.currentTimeMillis()));
-			sb.append(" [perfLoad Agent] ");
-			out.write(sb.toCharArray());
+	private void checkFile() {
+		if (writer != null && (reopen || !agentLogFile.exists())) {
+			closeQuietly(writer);
+			writer = null;
 		}
+	}
+
+	private void write(final Entry entry) throws IOException {
+		writeSummaries(entry.timestamp, entry.repeats, entry.suppressed);
+		writeLine(entry.timestamp, entry.message);
+		if (entry.throwable != null) {
+			entry.throwable.printStackTrace(writer);
+		}
+	}
+
+	private void writeSummaries(final long timestamp, final long repeats, final long suppressed) throws IOException {
+		if (repeats > 0L) {
+			writeLine(timestamp, "Last message repeated " + repeats + " times");
+		}
+		if (suppressed > 0L) {
+			writeLine(timestamp, "Suppressed " + suppressed + " messages");
+		}
+	}
+
+	private void writeLine(final long timestamp, final String message) throws IOException {
+		if (writer == null) {
+			reopen = false;
+			Writer fileWriter = rotation.isEnabled()
+					? new RollingFileWriter(agentLogFile, rotation)
+					: new FileWriterWithEncoding(agentLogFile, Charset.forName("UTF-8"), truncated);
+			truncated = true;
+			writer = new PrintWriter(fileWriter);
+		}
+		writer.print(DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(timestamp));
+		writer.print(" [perfLoad Agent] ");
+		writer.print(message);
+		writer.print(SystemUtils.LINE_SEPARATOR);
+	}
+
+	static final class Entry {
+		final long timestamp;
+		final String message;
+		final Throwable throwable;
+		final long repeats;
+		final long suppressed;
 
-		@Override
-		protected void afterWrite(final int n) throws IOException {
-			out.write(SystemUtils.LINE_SEPARATOR);
-			out.flush();
+		Entry(final long timestamp, final String message, final Throwable throwable, final long repeats,
+				final long suppressed) {
+			this.timestamp = timestamp;
+			this.message = message;
+			this.throwable = throwable;
+			this.repeats = repeats;
+			this.suppressed = suppressed;
 		}
 	}
 }
@@ -17,14 +17,13 @@ package com.mgmtp.perfload.agent;
 
 import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static com.google.common.collect.Maps.newHashMapWithExpectedSize;
-import static com.google.common.collect.Queues.newArrayDeque;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Deque;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -37,9 +36,6 @@ import net.sf.json.JSONSerializer;
 import net.sf.json.JsonConfig;
 
 import com.google.common.base.Charsets;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.io.Files;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
@@ -47,18 +43,42 @@ import com.mgmtp.perfload.agent.annotations.AgentDir;
 import com.mgmtp.perfload.agent.annotations.ConfigFile;
 import com.mgmtp.perfload.agent.annotations.Measuring;
 import com.mgmtp.perfload.agent.annotations.ServletApi;
-import com.mgmtp.perfload.agent.annotations.ThreadScope;
-import com.mgmtp.perfload.agent.annotations.ThreadScoped;
+import com.mgmtp.perfload.agent.config.Activation;
+import com.mgmtp.perfload.agent.config.ArgumentLabel;
+import com.mgmtp.perfload.agent.config.AsyncLog;
+import com.mgmtp.perfload.agent.config.CallSite;
 import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.config.ContextPropagation;
 import com.mgmtp.perfload.agent.config.EntryPoints;
+import com.mgmtp.perfload.agent.config.Jdbc;
+import com.mgmtp.perfload.agent.config.Limits;
+import com.mgmtp.perfload.agent.config.MappedLog;
 import com.mgmtp.perfload.agent.config.MethodInstrumentations;
+import com.mgmtp.perfload.agent.config.NetworkSink;
+import com.mgmtp.perfload.agent.config.OutboundHttp;
+import com.mgmtp.perfload.agent.config.RequestSummary;
+import com.mgmtp.perfload.agent.config.RequestTiming;
+import com.mgmtp.perfload.agent.config.Rotation;
+import com.mgmtp.perfload.agent.config.ServerTiming;
+import com.mgmtp.perfload.agent.config.StackSampling;
+import com.mgmtp.perfload.agent.hook.ArgumentLabels;
+import com.mgmtp.perfload.agent.hook.AsyncRequestTracker;
+import com.mgmtp.perfload.agent.hook.CallSiteHook;
+import com.mgmtp.perfload.agent.hook.ContextPropagator;
 import com.mgmtp.perfload.agent.hook.Hook;
+import com.mgmtp.perfload.agent.hook.InstrumentationSwitches;
+import com.mgmtp.perfload.agent.hook.JdbcHook;
 import com.mgmtp.perfload.agent.hook.MeasuringHook;
-import com.mgmtp.perfload.agent.hook.MeasuringHook.Measurement;
+import com.mgmtp.perfload.agent.hook.OutboundHttpHook;
+import com.mgmtp.perfload.agent.hook.ResponseWrapper;
 import com.mgmtp.perfload.agent.hook.ServletApiHook;
-import com.mgmtp.perfload.agent.util.ExecutionParams;
-import com.mgmtp.perfload.logging.DefaultResultLogger;
-import com.mgmtp.perfload.logging.ResultLogger;
+import com.mgmtp.perfload.agent.hook.StackSampler;
+import com.mgmtp.perfload.agent.sink.AsyncLogger;
+import com.mgmtp.perfload.agent.sink.MappedSegmentLogger;
+import com.mgmtp.perfload.agent.sink.NetworkSinkLogger;
+import com.mgmtp.perfload.agent.sink.RollingFileLogger;
+import com.mgmtp.perfload.agent.util.ClassHierarchy;
+import com.mgmtp.perfload.agent.util.OperationRegistry;
 import com.mgmtp.perfload.logging.SimpleFileLogger;
 import com.mgmtp.perfload.logging.SimpleLogger;
 
@@ -72,38 +92,80 @@ public class AgentModule extends AbstractModule {
 	private final File agentDir;
 	private final AgentLogger agentLogger;
 	private final int pid;
+	private final File configFile;
 
 	public AgentModule(final File agentDir, final AgentLogger agentLogger, final int pid) {
+		this(agentDir, agentLogger, pid, new File(agentDir, AgentOptions.DEFAULT_CONFIG_FILE));
+	}
+
+	public AgentModule(final File agentDir, final AgentLogger agentLogger, final int pid, final File configFile) {
 		this.agentDir = agentDir;
 		this.agentLogger = agentLogger;
 		this.pid = pid;
+		this.configFile = configFile;
 	}
 
 	@Override
 	protected void configure() {
 		binder().requireExplicitBindings();
 
-		bindScope(ThreadScoped.class, new ThreadScope());
 		bind(Hook.class).annotatedWith(Measuring.class).to(MeasuringHook.class);
 		bind(Hook.class).annotatedWith(ServletApi.class).to(ServletApiHook.class);
 		bind(Transformer.class);
-		bind(ExecutionParams.class);
+		bind(AgentDiagnostics.class);
+		bind(AsyncRequestTracker.class);
+		bind(ContextPropagator.class);
+		bind(JdbcHook.class);
+		bind(CallSiteHook.class);
+		bind(OutboundHttpHook.class);
+		bind(ClassHierarchy.class);
+		bind(OperationRegistry.class);
+		bind(ArgumentLabels.class);
+		bind(InstrumentationSwitches.class);
+		bind(ResponseWrapper.class);
 		bind(Agent.class);
+		bind(BootstrapBridge.class);
 		bind(File.class).annotatedWith(AgentDir.class).toInstance(agentDir);
 		bind(AgentLogger.class).toInstance(agentLogger);
 	}
 
-	@Provides
-	@ThreadScoped
-	Deque<Measurement> provideMeasurementsStack() {
-		return newArrayDeque();
-	}
-
 	@Provides
 	@Singleton
-	SimpleLogger provideMeasuringLogger() {
-		File measuringLog = new File(agentDir, String.format("perfload-agent-measuring-%d.log", pid));
-		final SimpleFileLogger logger = new SimpleFileLogger(measuringLog);
+	SimpleLogger provideMeasuringLogger(final Config config) throws IOException {
+		final SimpleLogger logger;
+		NetworkSink networkSink = config.getNetworkSink();
+		MappedLog mappedLog = config.getMappedLog();
+		if (networkSink.isEnabled()) {
+			String host;
+			try {
+				host = InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException ex) {
+				host = "unknown";
+			}
+			agentLogger.writeln("Streaming measurements via " + networkSink.getProtocol() + " to " + networkSink.getHost() + ":"
+					+ networkSink.getPort());
+			NetworkSinkLogger sinkLogger = new NetworkSinkLogger(networkSink, host + ":" + pid, agentLogger);
+			sinkLogger.open();
+			logger = sinkLogger;
+		} else if (mappedLog.isEnabled()) {
+			agentLogger.writeln("Writing measurements to memory-mapped segments of " + mappedLog.getSegmentSize() + " bytes");
+			MappedSegmentLogger segmentLogger = new MappedSegmentLogger(agentDir, pid, mappedLog.getSegmentSize(), agentLogger);
+			segmentLogger.open();
+			logger = segmentLogger;
+		} else {
+			File measuringLog = new File(agentDir, String.format("perfload-agent-measuring-%d.log", pid));
+			Rotation rotation = config.getRotation();
+			SimpleLogger fileLogger = rotation.isEnabled() ? new RollingFileLogger(measuringLog, rotation)
+					: new SimpleFileLogger(measuringLog);
+			AsyncLog asyncLog = config.getAsyncLog();
+			if (asyncLog.isEnabled()) {
+				AsyncLogger asyncLogger = new AsyncLogger(fileLogger, asyncLog.getQueueCapacity(), agentLogger);
+				asyncLogger.open();
+				logger = asyncLogger;
+			} else {
+				logger = fileLogger;
+			}
+		}
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
@@ -113,11 +175,17 @@ public class AgentModule extends AbstractModule {
 		return logger;
 	}
 
+	@Provides
+	@Singleton
+	StackSampler provideStackSampler(final Config config) {
+		File stacksFile = new File(agentDir, String.format("perfload-agent-stacks-%d.txt", pid));
+		return new StackSampler(config.getStackSampling(), stacksFile, agentLogger);
+	}
+
 	@Provides
 	@ConfigFile
 	@Singleton
 	File provideConfigFile() {
-		File configFile = new File(agentDir, "perfload-agent.json");
 		if (!configFile.canRead()) {
 			throw new IllegalStateException("Cannot read agent config file: " + configFile.getAbsolutePath());
 		}
@@ -154,21 +222,152 @@ public class AgentModule extends AbstractModule {
 			Map<String, MethodInstrumentations> methodInstrumentationsMap = newHashMapWithExpectedSize(methodEntryKeySet.size());
 
 			for (String methodName : methodEntryKeySet) {
-				JSONArray methodConfig = classConfig.getJSONArray(methodName);
+				// either a list of parameter lists or an object with 'params' and 'labels'
+				JSONArray methodConfig;
+				List<ArgumentLabel> labels = Collections.emptyList();
+				JSONObject methodConfigObject = classConfig.optJSONObject(methodName);
+				if (methodConfigObject != null) {
+					methodConfig = methodConfigObject.has("params") ? methodConfigObject.getJSONArray("params") : new JSONArray();
+					if (methodConfigObject.has("labels")) {
+						List<String> labelSpecs = (List<String>) JSONSerializer.toJava(methodConfigObject.getJSONArray("labels"),
+								entryPointsConfig);
+						labels = newArrayListWithCapacity(labelSpecs.size());
+						for (String labelSpec : labelSpecs) {
+							labels.add(ArgumentLabel.parse(labelSpec));
+						}
+					}
+				} else {
+					methodConfig = classConfig.getJSONArray(methodName);
+				}
+
 				List<List<String>> methodArgsLists = newArrayListWithCapacity(methodConfig.size());
 				for (Object obj : methodConfig) {
 					JSONArray paramsArray = (JSONArray) obj;
 					List<String> params = (List<String>) JSONSerializer.toJava(paramsArray, entryPointsConfig);
 					methodArgsLists.add(params);
 				}
-				methodInstrumentationsMap.put(methodName, new MethodInstrumentations(methodName, methodArgsLists));
+				methodInstrumentationsMap.put(methodName, new MethodInstrumentations(methodName, methodArgsLists, labels));
 			}
 
 			classInstrumentationsMap.put(className, methodInstrumentationsMap);
 		}
 
+		ContextPropagation contextPropagation = ContextPropagation.disabled();
+		JSONObject contextPropagationObject = jsonObject.optJSONObject("contextPropagation");
+		if (contextPropagationObject != null) {
+			List<String> executors = contextPropagationObject.has("executors")
+					? (List<String>) JSONSerializer.toJava(contextPropagationObject.getJSONArray("executors"), entryPointsConfig)
+					: Collections.<String>emptyList();
+			contextPropagation = new ContextPropagation(executors, contextPropagationObject.optBoolean("forkJoinTasks"),
+					contextPropagationObject.optBoolean("queueWaitTime"));
+		}
+
+		Limits limits = Limits.defaults();
+		JSONObject limitsObject = jsonObject.optJSONObject("limits");
+		if (limitsObject != null) {
+			limits = new Limits(limitsObject.optInt("maxStackDepth", Limits.DEFAULT_MAX_STACK_DEPTH),
+					limitsObject.optInt("maxOperations", Limits.DEFAULT_MAX_OPERATIONS));
+		}
+
+		Jdbc jdbc = Jdbc.disabled();
+		JSONObject jdbcObject = jsonObject.optJSONObject("jdbc");
+		if (jdbcObject != null) {
+			jdbc = new Jdbc(jdbcObject.optBoolean("enabled"), jdbcObject.optInt("sqlCacheSize", Jdbc.DEFAULT_SQL_CACHE_SIZE));
+		}
+
+		List<CallSite> callSites = Collections.emptyList();
+		JSONArray callSitesArray = jsonObject.optJSONArray("callSites");
+		if (callSitesArray != null) {
+			callSites = newArrayListWithCapacity(callSitesArray.size());
+			for (Object obj : callSitesArray) {
+				JSONObject callSiteObject = (JSONObject) obj;
+				callSites.add(new CallSite(callSiteObject.getString("callers"), callSiteObject.getString("owner"),
+						callSiteObject.getString("method")));
+			}
+		}
+
+		OutboundHttp outboundHttp = OutboundHttp.disabled();
+		JSONObject outboundHttpObject = jsonObject.optJSONObject("outboundHttp");
+		if (outboundHttpObject != null) {
+			List<String> propagationHosts = outboundHttpObject.has("propagationHosts")
+					? (List<String>) JSONSerializer.toJava(outboundHttpObject.getJSONArray("propagationHosts"), entryPointsConfig)
+					: Collections.<String>emptyList();
+			outboundHttp = new OutboundHttp(outboundHttpObject.optBoolean("enabled"),
+					outboundHttpObject.optBoolean("propagateHeaders"), propagationHosts);
+		}
+
+		NetworkSink networkSink = NetworkSink.disabled();
+		JSONObject networkSinkObject = jsonObject.optJSONObject("networkSink");
+		if (networkSinkObject != null) {
+			networkSink = new NetworkSink(networkSinkObject.optBoolean("enabled"), networkSinkObject.optString("protocol", "tcp"),
+					networkSinkObject.optString("host", "localhost"), networkSinkObject.getInt("port"),
+					networkSinkObject.optInt("queueCapacity", NetworkSink.DEFAULT_QUEUE_CAPACITY),
+					networkSinkObject.optInt("maxBatchSize", NetworkSink.DEFAULT_MAX_BATCH_SIZE));
+		}
+
+		MappedLog mappedLog = MappedLog.disabled();
+		JSONObject mappedLogObject = jsonObject.optJSONObject("mappedLog");
+		if (mappedLogObject != null) {
+			mappedLog = new MappedLog(mappedLogObject.optBoolean("enabled"),
+					mappedLogObject.optInt("segmentSize", MappedLog.DEFAULT_SEGMENT_SIZE));
+		}
+
+		Rotation rotation = Rotation.disabled();
+		JSONObject rotationObject = jsonObject.optJSONObject("rotation");
+		if (rotationObject != null) {
+			rotation = new Rotation(rotationObject.optBoolean("enabled"),
+					rotationObject.optLong("maxFileSize", Rotation.DEFAULT_MAX_FILE_SIZE),
+					rotationObject.optLong("intervalMinutes", Rotation.DEFAULT_INTERVAL_MINUTES),
+					rotationObject.optBoolean("compress", true));
+		}
+
+		AsyncLog asyncLog = AsyncLog.disabled();
+		JSONObject asyncLogObject = jsonObject.optJSONObject("asyncLog");
+		if (asyncLogObject != null) {
+			asyncLog = new AsyncLog(asyncLogObject.optBoolean("enabled"),
+					asyncLogObject.optInt("queueCapacity", AsyncLog.DEFAULT_QUEUE_CAPACITY));
+		}
+
+		Activation activation = Activation.defaults();
+		JSONObject activationObject = jsonObject.optJSONObject("activation");
+		if (activationObject != null) {
+			activation = new Activation(activationObject.optBoolean("loadTestTrafficOnly"),
+					activationObject.optString("controlFile", null));
+		}
+
+		RequestTiming requestTiming = RequestTiming.disabled();
+		JSONObject requestTimingObject = jsonObject.optJSONObject("requestTiming");
+		if (requestTimingObject != null) {
+			requestTiming = new RequestTiming(requestTimingObject.optBoolean("enabled"),
+					requestTimingObject.optBoolean("wrapResponse"));
+		}
+
+		ServerTiming serverTiming = ServerTiming.disabled();
+		JSONObject serverTimingObject = jsonObject.optJSONObject("serverTiming");
+		if (serverTimingObject != null) {
+			serverTiming = new ServerTiming(serverTimingObject.optBoolean("enabled"),
+					serverTimingObject.optInt("maxMethods", ServerTiming.DEFAULT_MAX_METHODS));
+		}
+
+		RequestSummary requestSummary = RequestSummary.disabled();
+		JSONObject requestSummaryObject = jsonObject.optJSONObject("requestSummary");
+		if (requestSummaryObject != null) {
+			requestSummary = new RequestSummary(requestSummaryObject.optBoolean("enabled"));
+		}
+
+		StackSampling stackSampling = StackSampling.disabled();
+		JSONObject stackSamplingObject = jsonObject.optJSONObject("stackSampling");
+		if (stackSamplingObject != null) {
+			stackSampling = new StackSampling(stackSamplingObject.optBoolean("enabled"),
+					stackSamplingObject.optLong("intervalMillis", StackSampling.DEFAULT_INTERVAL_MILLIS),
+					stackSamplingObject.optLong("thresholdMillis"),
+					stackSamplingObject.optInt("maxFrames", StackSampling.DEFAULT_MAX_FRAMES));
+		}
+
 		EntryPoints entryPoints = new EntryPoints(servlets, filters);
-		return new Config(entryPoints, classInstrumentationsMap);
+		return new Config(entryPoints, classInstrumentationsMap, contextPropagation, limits, jdbc, callSites, outboundHttp,
+				networkSink, mappedLog, rotation, asyncLog, activation, requestTiming,
+				serverTiming, requestSummary, stackSampling);
 	}
 
 	@Provides
@@ -189,23 +388,4 @@ public class AgentModule extends AbstractModule {
 			return null;
 		}
 	}
-
-	@Provides
-	@Singleton
-	LoadingCache<String, ResultLogger> provideResultLoggerCache(final SimpleLogger logger) {
-		InetAddress tmpLocalhost;
-		try {
-			tmpLocalhost = InetAddress.getLocalHost();
-		} catch (UnknownHostException ex) {
-			tmpLocalhost = null;
-		}
-		final InetAddress localhost = tmpLocalhost;
-
-		return CacheBuilder.newBuilder().build(new CacheLoader<String, ResultLogger>() {
-			@Override
-			public ResultLogger load(final String operation) throws Exception {
-				return new DefaultResultLogger(logger, localhost, "agent", operation, "agent", 0, 0, 0);
-			}
-		});
-	}
 }
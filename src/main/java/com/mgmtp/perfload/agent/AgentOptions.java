@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.io.File;
+
+/**
+ * Options passed to the agent on the command line, e. g.
+ * {@code -javaagent:perfload-agent.jar=config=/path/to/config.json,init=lazy}. Options are
+ * separated by commas and are of the form {@code key=value}:
+ * <ul>
+ * <li>{@code config}: the config file; relative paths are resolved against the agent's directory.
+ * Defaults to {@value #DEFAULT_CONFIG_FILE}.</li>
+ * <li>{@code init}: {@code eager} (default) initializes the agent before the application's main
+ * method, {@code lazy} only registers a transformer and initializes the agent on a background
+ * thread. Classes loaded in the meantime are retransformed afterwards.</li>
+ * </ul>
+ * 
+ * @author rnaegele
+ */
+public class AgentOptions {
+
+	public static final String DEFAULT_CONFIG_FILE = "perfload-agent.json";
+
+	private final File configFile;
+	private final boolean lazyInit;
+
+	public AgentOptions(final File configFile, final boolean lazyInit) {
+		this.configFile = configFile;
+		this.lazyInit = lazyInit;
+	}
+
+	/**
+	 * Parses the agent's arguments.
+	 * 
+	 * @param agentArgs
+	 *            the arguments as passed to {@code premain}; may be {@code null}
+	 * @param agentDir
+	 *            the agent's directory
+	 * @throws IllegalArgumentException
+	 *             if an option is unknown or invalid
+	 */
+	public static AgentOptions parse(final String agentArgs, final File agentDir) {
+		File configFile = new File(agentDir, DEFAULT_CONFIG_FILE);
+		boolean lazyInit = false;
+
+		if (agentArgs != null) {
+			for (String option : agentArgs.split(",")) {
+				option = option.trim();
+				if (option.isEmpty()) {
+					continue;
+				}
+				int index = option.indexOf('=');
+				if (index < 0) {
+					throw new IllegalArgumentException("Invalid agent option, expected key=value: " + option);
+				}
+				String key = option.substring(0, index).trim();
+				String value = option.substring(index + 1).trim();
+				if ("config".equals(key)) {
+					File file = new File(value);
+					configFile = file.isAbsolute() ? file : new File(agentDir, value);
+				} else if ("init".equals(key)) {
+					if ("lazy".equals(value)) {
+						lazyInit = true;
+					} else if ("eager".equals(value)) {
+						lazyInit = false;
+					} else {
+						throw new IllegalArgumentException("Invalid value for agent option 'init', expected eager or lazy: " + value);
+					}
+				} else {
+					throw new IllegalArgumentException("Unknown agent option: " + key);
+				}
+			}
+		}
+		return new AgentOptions(configFile, lazyInit);
+	}
+
+	/**
+	 * @return the config file
+	 */
+	public File getConfigFile() {
+		return configFile;
+	}
+
+	/**
+	 * @return whether the agent is initialized on a background thread
+	 */
+	public boolean isLazyInit() {
+		return lazyInit;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("AgentOptions [configFile=%s, init=%s]", configFile, lazyInit ? "lazy" : "eager");
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Makes the hooks available to classes loaded by the bootstrap class loader. The classes of the
+ * {@code bootstrap} package are written to a separate jar file which is appended to the bootstrap
+ * class path. JDK classes may only be instrumented once the bridge is installed.
+ * <p>
+ * Classes of the bridge must not be referenced directly before the jar file has been appended,
+ * because they would be loaded by the system class loader otherwise. They are accessed via
+ * reflection for this reason.
+ * </p>
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class BootstrapBridge {
+
+	static final String BRIDGE_PACKAGE = "com/mgmtp/perfload/agent/bootstrap/";
+	static final String[] BRIDGE_CLASSES = { "HookBridge", "HookDispatcher" };
+
+	private static final String HOOK_BRIDGE_CLASS = "com.mgmtp.perfload.agent.bootstrap.HookBridge";
+	private static final String HOOK_DISPATCHER_CLASS = "com.mgmtp.perfload.agent.bootstrap.HookDispatcher";
+	private static final String BRIDGE_DISPATCHER_CLASS = "com.mgmtp.perfload.agent.hook.BridgeDispatcher";
+
+	private final AgentLogger logger;
+	private volatile boolean installed;
+
+	@Inject
+	BootstrapBridge(final AgentLogger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Installs the bridge.
+	 * 
+	 * @return {@code true} if the bridge was installed successfully
+	 */
+	public boolean install(final Instrumentation instrumentation) {
+		try {
+			File jarFile = File.createTempFile("perfload-agent-bootstrap", ".jar");
+			jarFile.deleteOnExit();
+			writeBridgeJar(jarFile);
+			instrumentation.appendToBootstrapClassLoaderSearch(new JarFile(jarFile));
+
+			Class<?> bridgeClass = Class.forName(HOOK_BRIDGE_CLASS, true, null);
+			Class<?> dispatcherClass = Class.forName(HOOK_DISPATCHER_CLASS, false, null);
+			Object dispatcher = Class.forName(BRIDGE_DISPATCHER_CLASS).newInstance();
+			bridgeClass.getMethod("setDispatcher", dispatcherClass).invoke(null, dispatcher);
+
+			addReadsToBridge(instrumentation, bridgeClass);
+
+			installed = true;
+			logger.writeln("Installed bootstrap hook bridge: " + jarFile);
+		} catch (Exception ex) {
+			logger.writeln("Error installing bootstrap hook bridge. JDK classes cannot be instrumented.", ex);
+		}
+		return installed;
+	}
+
+	/**
+	 * @return {@code true} if JDK classes can be instrumented
+	 */
+	public boolean isInstalled() {
+		return installed;
+	}
+
+	/**
+	 * Writes the classes of the bridge to the specified jar file.
+	 */
+	static void writeBridgeJar(final File jarFile) throws IOException {
+		ClassLoader loader = BootstrapBridge.class.getClassLoader();
+		JarOutputStream jos = new JarOutputStream(new FileOutputStream(jarFile));
+		try {
+			for (String className : BRIDGE_CLASSES) {
+				String resource = BRIDGE_PACKAGE + className + ".class";
+				InputStream is = loader.getResourceAsStream(resource);
+				if (is == null) {
+					throw new IOException("Bridge class not found: " + resource);
+				}
+				try {
+					jos.putNextEntry(new JarEntry(resource));
+					IOUtils.copy(is, jos);
+					jos.closeEntry();
+				} finally {
+					IOUtils.closeQuietly(is);
+				}
+			}
+		} finally {
+			jos.close();
+		}
+	}
+
+	/**
+	 * On Java 9 and later, classes in named modules cannot access the unnamed module of the
+	 * bootstrap class loader the bridge is loaded into, unless they read it. Since the agent is
+	 * compiled for older Java versions, the module api is called via reflection.
+	 */
+	private void addReadsToBridge(final Instrumentation instrumentation, final Class<?> bridgeClass) throws Exception {
+		Method getModule;
+		try {
+			getModule = Class.class.getMethod("getModule");
+		} catch (NoSuchMethodException ex) {
+			// Java 8 or earlier
+			return;
+		}
+		Object bridgeModule = getModule.invoke(bridgeClass);
+
+		Class<?> moduleClass = Class.forName("java.lang.Module");
+		Class<?> moduleLayerClass = Class.forName("java.lang.ModuleLayer");
+		Object bootLayer = moduleLayerClass.getMethod("boot").invoke(null);
+		Set<?> modules = (Set<?>) moduleLayerClass.getMethod("modules").invoke(bootLayer);
+
+		Method redefineModule = Instrumentation.class.getMethod("redefineModule", moduleClass, Set.class, Map.class,
+				Map.class, Set.class, Map.class);
+		for (Object module : modules) {
+			redefineModule.invoke(instrumentation, module, Collections.singleton(bridgeModule), Collections.emptyMap(),
+					Collections.emptyMap(), Collections.emptySet(), Collections.emptyMap());
+		}
+	}
+}
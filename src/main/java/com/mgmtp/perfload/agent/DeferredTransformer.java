@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+
+/**
+ * Transformer registered by {@code premain} when the agent is initialized lazily. It does not
+ * transform any classes until the agent's {@link Transformer} is available. Classes loaded before
+ * are retransformed afterwards.
+ * 
+ * @author rnaegele
+ */
+final class DeferredTransformer implements ClassFileTransformer {
+
+	private volatile ClassFileTransformer delegate;
+
+	void activate(final ClassFileTransformer transformer) {
+		this.delegate = transformer;
+	}
+
+	@Override
+	public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
+			final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
+		ClassFileTransformer transformer = delegate;
+		return transformer != null
+				? transformer.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer)
+				: null;
+	}
+}
@@ -15,7 +15,10 @@
  */
 package com.mgmtp.perfload.agent;
 
-import static com.google.common.collect.Lists.newArrayListWithCapacity;
+import static com.google.common.collect.Iterables.concat;
+import static com.mgmtp.perfload.agent.hook.ForkJoinTaskHookMethodVisitor.FORK_JOIN_TASK_CLASS;
+import static com.mgmtp.perfload.agent.hook.HttpUrlConnectionHookMethodVisitor.HTTP_URL_CONNECTION_CLASS;
+import static com.mgmtp.perfload.agent.hook.JdbcConnectionHookMethodVisitor.CONNECTION_CLASS;
 import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
 import static org.apache.commons.lang3.StringUtils.substringAfterLast;
 import static org.apache.commons.lang3.StringUtils.substringBeforeLast;
@@ -25,8 +28,12 @@ import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -39,12 +46,28 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 
+import com.google.common.collect.ImmutableSet;
 import com.mgmtp.perfload.agent.annotations.AgentDir;
+import com.mgmtp.perfload.agent.config.ArgumentLabel;
+import com.mgmtp.perfload.agent.config.CallSite;
 import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.config.ContextPropagation;
 import com.mgmtp.perfload.agent.config.EntryPoints;
 import com.mgmtp.perfload.agent.config.MethodInstrumentations;
+import com.mgmtp.perfload.agent.hook.ArgumentLabels;
+import com.mgmtp.perfload.agent.hook.BridgeMethodVisitor;
+import com.mgmtp.perfload.agent.hook.CallSiteHookMethodVisitor;
+import com.mgmtp.perfload.agent.hook.ContextPropagator;
+import com.mgmtp.perfload.agent.hook.ExecutorHookMethodVisitor;
+import com.mgmtp.perfload.agent.hook.ExecutorWorkerHookMethodVisitor;
+import com.mgmtp.perfload.agent.hook.ForkJoinTaskHookMethodVisitor;
+import com.mgmtp.perfload.agent.hook.HttpUrlConnectionHookMethodVisitor;
+import com.mgmtp.perfload.agent.hook.InstrumentationSwitches;
+import com.mgmtp.perfload.agent.hook.JdbcConnectionHookMethodVisitor;
+import com.mgmtp.perfload.agent.hook.JdbcHookMethodVisitor;
 import com.mgmtp.perfload.agent.hook.MeasuringHookMethodVisitor;
 import com.mgmtp.perfload.agent.hook.ServletApiHookMethodVisitor;
+import com.mgmtp.perfload.agent.util.ClassHierarchy;
 
 /**
  * @author rnaegele
@@ -52,24 +75,120 @@ import com.mgmtp.perfload.agent.hook.ServletApiHookMethodVisitor;
 @Singleton
 public class Transformer implements ClassFileTransformer {
 
+	private static final Set<String> JDBC_INTERFACES = ImmutableSet.<String>builder().add(CONNECTION_CLASS)
+			.addAll(JdbcHookMethodVisitor.STATEMENT_CLASSES).build();
+
 	// method descriptor for servlets because service method is overloaded
 	private static final String SERVLET_SERVICE_DESC = "(Ljavax/servlet/http/HttpServletRequest;Ljavax/servlet/http/HttpServletResponse;)V";
 
+	// the agent's own classes including its shaded dependencies and perfLoad logging
+	private static final String PERFLOAD_PACKAGE = "com/mgmtp/perfload/";
+
+	// the latest class file version ASM can read
+	private static final int MAX_CLASS_FILE_VERSION = Opcodes.V1_8;
+
 	private final Config config;
 	private final AgentLogger logger;
 	private final File agentDir;
+	private final ArgumentLabels argumentLabels;
+	private final ClassHierarchy classHierarchy;
+	private final BootstrapBridge bootstrapBridge;
+	private final InstrumentationSwitches switches;
+	private final ContextPropagator contextPropagator;
 
 	@Inject
-	public Transformer(final Config config, final AgentLogger logger, @AgentDir final File agentDir) {
+	public Transformer(final Config config, final AgentLogger logger, @AgentDir final File agentDir,
+			final ArgumentLabels argumentLabels, final ClassHierarchy classHierarchy, final BootstrapBridge bootstrapBridge,
+			final InstrumentationSwitches switches, final ContextPropagator contextPropagator) {
 		this.config = config;
 		this.logger = logger;
 		this.agentDir = agentDir;
+		this.argumentLabels = argumentLabels;
+		this.classHierarchy = classHierarchy;
+		this.bootstrapBridge = bootstrapBridge;
+		this.switches = switches;
+		this.contextPropagator = contextPropagator;
+	}
+
+	private boolean isAgentClass(final ClassLoader loader, final String className) {
+		return loader == getClass().getClassLoader() && className.startsWith(PERFLOAD_PACKAGE);
+	}
+
+	/**
+	 * Checks whether JDK classes are configured to be instrumented, so the bootstrap bridge must be
+	 * installed. JDK classes cannot be instrumented on Java versions whose class files ASM cannot
+	 * read.
+	 */
+	public boolean needsBootstrapBridge() {
+		ContextPropagation contextPropagation = config.getContextPropagation();
+		boolean jdkClassesConfigured = contextPropagation.isForkJoinTasks() || config.getOutboundHttp().isEnabled();
+		for (String className : concat(config.getInstrumentations().keySet(), contextPropagation.getExecutors())) {
+			jdkClassesConfigured |= isJdkClass(className.replace('.', '/'));
+		}
+		if (!jdkClassesConfigured) {
+			return false;
+		}
+		if (Float.parseFloat(System.getProperty("java.class.version")) > MAX_CLASS_FILE_VERSION) {
+			logger.writeln("Cannot instrument JDK classes, class file version not supported: "
+					+ System.getProperty("java.class.version"));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether an already loaded class must be retransformed, because it was loaded before
+	 * the transformer was added. This is the case for JDK classes.
+	 */
+	public boolean isRetransformationCandidate(final Class<?> clazz) {
+		String className = clazz.getName();
+		if (!isJdkClass(className.replace('.', '/'))) {
+			return false;
+		}
+		ContextPropagation contextPropagation = config.getContextPropagation();
+		return config.getInstrumentations().containsKey(className) || contextPropagation.hasExecutor(className)
+				|| contextPropagation.isForkJoinTasks() && FORK_JOIN_TASK_CLASS.equals(className)
+				|| config.getOutboundHttp().isEnabled() && HTTP_URL_CONNECTION_CLASS.equals(className);
+	}
+
+	/**
+	 * Checks whether an already loaded class must be retransformed, because it was loaded before
+	 * the agent was initialized lazily. In addition to JDK classes, this includes any application
+	 * class the transformer would instrument.
+	 */
+	public boolean isDeferredRetransformationCandidate(final Class<?> clazz) {
+		if (isRetransformationCandidate(clazz)) {
+			return true;
+		}
+		String className = clazz.getName();
+		String internalName = className.replace('.', '/');
+		if (isJdkClass(internalName) || isAgentClass(clazz.getClassLoader(), internalName)) {
+			return false;
+		}
+		EntryPoints entryPoints = config.getEntryPoints();
+		if (config.getInstrumentations().containsKey(className) || entryPoints.hasFilter(className)
+				|| entryPoints.hasServlet(className) || config.getContextPropagation().hasExecutor(className)) {
+			return true;
+		}
+		for (CallSite callSite : config.getCallSites()) {
+			if (callSite.matchesCaller(className)) {
+				return true;
+			}
+		}
+		return config.getJdbc().isEnabled() && !clazz.isInterface()
+				&& (Connection.class.isAssignableFrom(clazz) || Statement.class.isAssignableFrom(clazz));
 	}
 
 	@Override
 	public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
 			final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
 
+		if (className == null || isAgentClass(loader, className)) {
+			// the transformer must not see classes it needs itself: they are typically loaded lazily
+			// while transforming and would otherwise be defined twice
+			return null;
+		}
+
 		final String classNameWithDots = className.replace('/', '.');
 		EntryPoints entryPoints = config.getEntryPoints();
 
@@ -77,16 +196,63 @@ public class Transformer implements ClassFileTransformer {
 		final boolean isFilter = entryPoints.hasFilter(classNameWithDots);
 		final boolean isServlet = entryPoints.hasServlet(classNameWithDots);
 
-		if (methodsConfig == null && !isFilter && !isServlet) {
+		ContextPropagation contextPropagation = config.getContextPropagation();
+		final boolean isExecutor = contextPropagation.hasExecutor(classNameWithDots);
+		final boolean isForkJoinTask = contextPropagation.isForkJoinTasks()
+				&& FORK_JOIN_TASK_CLASS.equals(classNameWithDots);
+
+		final int classFileVersion = getClassFileVersion(classfileBuffer);
+		final boolean isSupportedVersion = classFileVersion <= MAX_CLASS_FILE_VERSION;
+
+		String jdbcInterface = null;
+		if (isSupportedVersion && config.getJdbc().isEnabled() && !isJdkClass(className)) {
+			ClassReader header = new ClassReader(classfileBuffer);
+			if ((header.getAccess() & Opcodes.ACC_INTERFACE) == 0) {
+				jdbcInterface = classHierarchy.findImplementedInterface(loader, header.getSuperName(), header.getInterfaces(),
+						JDBC_INTERFACES);
+			}
+		}
+		final boolean isJdbcConnection = CONNECTION_CLASS.equals(jdbcInterface);
+		final boolean isJdbcStatement = jdbcInterface != null && !isJdbcConnection;
+
+		final List<CallSite> callSites = new ArrayList<CallSite>();
+		for (CallSite callSite : config.getCallSites()) {
+			if (callSite.matchesCaller(classNameWithDots)) {
+				callSites.add(callSite);
+			}
+		}
+
+		final boolean isHttpUrlConnection = config.getOutboundHttp().isEnabled()
+				&& HTTP_URL_CONNECTION_CLASS.equals(classNameWithDots);
+
+		if (methodsConfig == null && !isFilter && !isServlet && !isExecutor && !isForkJoinTask && jdbcInterface == null
+				&& callSites.isEmpty() && !isHttpUrlConnection) {
 			// no instrumentation configured for this class
 			// return null, so no transformation is done
 			return null;
 		}
 
+		if (!isSupportedVersion) {
+			logger.writeln("Cannot instrument class, class file version not supported: " + classNameWithDots);
+			return null;
+		}
+
+		final boolean isJdkClass = isJdkClass(className);
+		if (isJdkClass && (!bootstrapBridge.isInstalled() || className.startsWith("java/lang/"))) {
+			// the hooks are only visible to JDK classes via the bootstrap bridge;
+			// java.lang is used by the hooks themselves and would recurse
+			logger.writeln("Cannot instrument JDK class: " + classNameWithDots);
+			return null;
+		}
+
 		logger.writeln("Transforming class: " + classNameWithDots);
 
+		// classes loaded by the bootstrap class loader do not see the call sites
+		final boolean switchCallSite = classFileVersion >= Opcodes.V1_7 && !isJdkClass;
+
 		// flag for storing if at least one hook is weaved in
 		final MutableBoolean weaveFlag = new MutableBoolean();
+		final List<String> workerHookMethods = new ArrayList<String>(2);
 
 		ClassReader cr = new ClassReader(classfileBuffer);
 		ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
@@ -96,10 +262,59 @@ public class Transformer implements ClassFileTransformer {
 					final String[] exceptions) {
 				MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
 				if (mv != null) {
+					if (isJdkClass) {
+						// JDK classes call the hooks via the bootstrap bridge
+						mv = new BridgeMethodVisitor(mv);
+					}
 					if (isFilter && "doFilter".equals(name)
 							|| isServlet && "service".equals(name) && SERVLET_SERVICE_DESC.equals(desc)) {
 						mv = createServletApiHookVisitor(access, name, desc, mv);
 					}
+					if (isExecutor && ExecutorHookMethodVisitor.isTaskSubmission(name, desc)) {
+						logger.writeln("Adding executor hook: " + classNameWithDots + "." + name + desc);
+						weaveFlag.setValue(true);
+						mv = new ExecutorHookMethodVisitor(access, name, desc, mv);
+					}
+					if (isExecutor && ExecutorWorkerHookMethodVisitor.isTaskExecution(access, name, desc)) {
+						logger.writeln("Adding executor worker hook: " + classNameWithDots + "." + name + desc);
+						weaveFlag.setValue(true);
+						workerHookMethods.add(name);
+						mv = new ExecutorWorkerHookMethodVisitor(access, classNameWithDots, name, desc, mv);
+					}
+					if (isForkJoinTask && ForkJoinTaskHookMethodVisitor.isInstrumented(name)) {
+						logger.writeln("Adding fork/join task hook: " + classNameWithDots + "." + name);
+						weaveFlag.setValue(true);
+						mv = new ForkJoinTaskHookMethodVisitor(access, name, desc, mv);
+					}
+					if (isJdbcConnection && JdbcConnectionHookMethodVisitor.isPreparation(access, name, desc)) {
+						logger.writeln("Adding JDBC connection hook: " + classNameWithDots + "." + name + desc);
+						weaveFlag.setValue(true);
+						mv = new JdbcConnectionHookMethodVisitor(access, name, desc, mv);
+					}
+					if (isJdbcStatement && JdbcHookMethodVisitor.isExecution(access, name)) {
+						logger.writeln("Adding JDBC statement hook: " + classNameWithDots + "." + name + desc);
+						weaveFlag.setValue(true);
+						mv = new JdbcHookMethodVisitor(access, classNameWithDots, name, desc, mv);
+					}
+					if (isHttpUrlConnection) {
+						MethodVisitor hookVisitor = HttpUrlConnectionHookMethodVisitor.create(access, name, desc, mv);
+						if (hookVisitor != mv) {
+							logger.writeln("Adding outbound HTTP hook: " + classNameWithDots + "." + name + desc);
+							weaveFlag.setValue(true);
+							mv = hookVisitor;
+						}
+					}
+					if (!callSites.isEmpty() && (access & Opcodes.ACC_ABSTRACT) == 0) {
+						// hooks are only woven if a matching call is found
+						mv = new CallSiteHookMethodVisitor(access, classNameWithDots, name, desc, callSites, classHierarchy,
+								loader, mv) {
+							@Override
+							protected void onCallSiteTimed(final String target) {
+								logger.writeln("Timing call site: " + classNameWithDots + "." + name + desc + " -> " + target);
+								weaveFlag.setValue(true);
+							}
+						};
+					}
 					if (methodsConfig != null) {
 						MethodInstrumentations methodInstrumentations = methodsConfig.get(name);
 						if (methodInstrumentations != null) {
@@ -112,28 +327,32 @@ public class Transformer implements ClassFileTransformer {
 
 			private MethodVisitor createMeasuringHookVisitor(final int access, final String methodName, final String desc,
 					final MethodVisitor mv, final MethodInstrumentations methodInstrumentations) {
-				boolean weave = false;
-				if (methodInstrumentations.isEmpty()) {
-					// no params configured, so we just weave the hook into any method with this name
-					weave = true;
-				} else {
-					// weave if params match
-					for (List<String> paramClassNames : methodInstrumentations) {
-						Type[] argumentTypes = Type.getArgumentTypes(desc);
-						List<String> classNames = newArrayListWithCapacity(argumentTypes.length);
-						for (Type argumentType : argumentTypes) {
-							classNames.add(argumentType.getClassName());
-						}
-						if (classNames.equals(paramClassNames)) {
-							weave = true;
-							break;
-						}
-					}
-				}
-				if (weave) {
+				if (methodInstrumentations.matches(desc)) {
 					logger.writeln("Instrumenting method: " + classNameWithDots + "." + methodName);
 					weaveFlag.setValue(true);
-					return new MeasuringHookMethodVisitor(access, classNameWithDots, methodName, desc, mv);
+					int switchId = switches.idOf(classNameWithDots + "." + methodName);
+					List<ArgumentLabel> labels = methodInstrumentations.getLabels();
+					if (labels.isEmpty()) {
+						return new MeasuringHookMethodVisitor(access, classNameWithDots, methodName, desc, switchId,
+								switchCallSite, mv);
+					}
+
+					int numArgs = Type.getArgumentTypes(desc).length;
+					int[] labelArgIndexes = new int[labels.size()];
+					for (int i = 0; i < labelArgIndexes.length; ++i) {
+						int argIndex = labels.get(i).getArgIndex();
+						if (argIndex >= numArgs) {
+							logger.writeln("Ignoring labels for " + classNameWithDots + "." + methodName + desc
+									+ ", argument index out of range: " + labels.get(i));
+							return new MeasuringHookMethodVisitor(access, classNameWithDots, methodName, desc, switchId,
+								switchCallSite, mv);
+						}
+						labelArgIndexes[i] = argIndex;
+					}
+					MeasuringHookMethodVisitor hookVisitor = new MeasuringHookMethodVisitor(access, classNameWithDots, methodName,
+							desc, switchId, switchCallSite, labelArgIndexes, mv);
+					argumentLabels.register(hookVisitor.getLabelKey(), labels);
+					return hookVisitor;
 				}
 				return mv;
 			}
@@ -142,7 +361,7 @@ public class Transformer implements ClassFileTransformer {
 					final MethodVisitor mv) {
 				logger.writeln("Adding servlet api hook: " + classNameWithDots + "." + methodName);
 				weaveFlag.setValue(true);
-				return new ServletApiHookMethodVisitor(access, methodName, desc, mv);
+				return new ServletApiHookMethodVisitor(access, classNameWithDots, methodName, desc, mv);
 			}
 		};
 
@@ -151,6 +370,9 @@ public class Transformer implements ClassFileTransformer {
 
 		if (weaveFlag.isTrue()) {
 			byte[] transformedclassBytes = cw.toByteArray();
+			for (String methodName : workerHookMethods) {
+				contextPropagator.workerHookWoven(classNameWithDots, methodName);
+			}
 			dumpTransformedClassFile(className, transformedclassBytes);
 			return transformedclassBytes;
 		}
@@ -159,6 +381,26 @@ public class Transformer implements ClassFileTransformer {
 		return null;
 	}
 
+	/**
+	 * Called if the retransformation of the specified classes failed, so their hooks are not
+	 * woven.
+	 */
+	public void retransformationFailed(final List<Class<?>> classes) {
+		for (Class<?> clazz : classes) {
+			contextPropagator.workerHooksRemoved(clazz.getName());
+		}
+	}
+
+	private static int getClassFileVersion(final byte[] classfileBuffer) {
+		// the major version follows the magic number and the minor version
+		return (classfileBuffer[6] & 0xff) << 8 | classfileBuffer[7] & 0xff;
+	}
+
+	private static boolean isJdkClass(final String className) {
+		return className.startsWith("java/") || className.startsWith("sun/") || className.startsWith("jdk/")
+				|| className.startsWith("com/sun/");
+	}
+
 	private void dumpTransformedClassFile(final String className, final byte[] transformedclassBytes) {
 		String filePath = substringBeforeLast(className, ".").replace('.', '/');
 		String fileName = substringAfterLast(className, ".") + ".class";
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.bootstrap;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Hook entry point for classes loaded by the bootstrap class loader, which cannot see the
+ * {@code HookManager} in the system class loader. The classes of this package are added to the
+ * bootstrap class path at startup and must not depend on any other agent class. Calls are
+ * forwarded to the {@link HookDispatcher} registered by the agent.
+ * <p>
+ * Calls made while a hook is already running on the current thread are ignored, so JDK methods
+ * used by the agent itself, e. g. for writing the measuring log, do not recurse into the hooks.
+ * </p>
+ * 
+ * @author rnaegele
+ */
+public final class HookBridge {
+
+	private static final ThreadLocal<boolean[]> ACTIVE = new ThreadLocal<boolean[]>();
+
+	private static volatile HookDispatcher dispatcher;
+
+	private HookBridge() {
+		// static hooks only
+	}
+
+	public static void setDispatcher(final HookDispatcher dispatcher) {
+		HookBridge.dispatcher = dispatcher;
+	}
+
+	public static boolean isMeasuringEnabled(final int switchId) {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				return d.isMeasuringEnabled(switchId);
+			} finally {
+				exit();
+			}
+		}
+		return false;
+	}
+
+	public static void enterMeasuringHook(final Object source, final String fullyQualifiedMethodName) {
+		enterMeasuringHook(source, fullyQualifiedMethodName, null);
+	}
+
+	public static void enterMeasuringHook(final Object source, final String fullyQualifiedMethodName, final Object[] args) {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				d.enterMeasuringHook(source, fullyQualifiedMethodName, args);
+			} finally {
+				exit();
+			}
+		}
+	}
+
+	public static void enterMeasuringHook(final Object source, final String fullyQualifiedMethodName, final Object[] args,
+			final boolean enabled) {
+		if (enabled) {
+			enterMeasuringHook(source, fullyQualifiedMethodName, args);
+		}
+	}
+
+	public static void exitMeasuringHook(final Object source, final Throwable throwable, final String fullyQualifiedMethodName,
+			final boolean enabled) {
+		HookDispatcher d = dispatcher;
+		if (enabled && d != null && enter()) {
+			try {
+				d.exitMeasuringHook(source, throwable, fullyQualifiedMethodName);
+			} finally {
+				exit();
+			}
+		}
+	}
+
+	public static Runnable wrapRunnable(final Runnable task, final Object executor) {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				return d.wrapRunnable(task, executor);
+			} finally {
+				exit();
+			}
+		}
+		return task;
+	}
+
+	public static <V> Callable<V> wrapCallable(final Callable<V> task, final Object executor) {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				return d.wrapCallable(task, executor);
+			} finally {
+				exit();
+			}
+		}
+		return task;
+	}
+
+	public static void enterExecutorTask(final Object task) {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				d.enterExecutorTask(task);
+			} finally {
+				exit();
+			}
+		}
+	}
+
+	public static void exitExecutorTask(final Object task) {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				d.exitExecutorTask(task);
+			} finally {
+				exit();
+			}
+		}
+	}
+
+	public static void captureForkJoinTask(final Object task) {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				d.captureForkJoinTask(task);
+			} finally {
+				exit();
+			}
+		}
+	}
+
+	public static Object enterForkJoinTask(final Object task) {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				return d.enterForkJoinTask(task);
+			} finally {
+				exit();
+			}
+		}
+		return null;
+	}
+
+	public static void exitForkJoinTask(final Object previous) {
+		HookDispatcher d = dispatcher;
+		if (d != null && previous != null && enter()) {
+			try {
+				d.exitForkJoinTask(previous);
+			} finally {
+				exit();
+			}
+		}
+	}
+
+	public static Object enterCallSite() {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				return d.enterCallSite();
+			} finally {
+				exit();
+			}
+		}
+		return null;
+	}
+
+	public static void exitCallSite(final Object timeInterval, final String uri, final String uriAlias) {
+		HookDispatcher d = dispatcher;
+		if (d != null && timeInterval != null && enter()) {
+			try {
+				d.exitCallSite(timeInterval, uri, uriAlias);
+			} finally {
+				exit();
+			}
+		}
+	}
+
+	public static void prepareHttpRequest(final Object connection) {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				d.prepareHttpRequest(connection);
+			} finally {
+				exit();
+			}
+		}
+	}
+
+	public static void enterHttpRequest(final Object connection) {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				d.enterHttpRequest(connection);
+			} finally {
+				exit();
+			}
+		}
+	}
+
+	public static void exitHttpRequest(final Object connection, final Throwable throwable) {
+		HookDispatcher d = dispatcher;
+		if (d != null && enter()) {
+			try {
+				d.exitHttpRequest(connection, throwable);
+			} finally {
+				exit();
+			}
+		}
+	}
+
+	private static boolean enter() {
+		boolean[] active = ACTIVE.get();
+		if (active == null) {
+			active = new boolean[1];
+			ACTIVE.set(active);
+		} else if (active[0]) {
+			return false;
+		}
+		active[0] = true;
+		return true;
+	}
+
+	private static void exit() {
+		ACTIVE.get()[0] = false;
+	}
+}
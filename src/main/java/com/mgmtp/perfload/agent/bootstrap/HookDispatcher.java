@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.bootstrap;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Receives the hook calls of classes loaded by the bootstrap class loader from the
+ * {@link HookBridge}. Mirrors the methods of {@code HookManager} that may be woven into JDK
+ * classes.
+ * 
+ * @author rnaegele
+ */
+public interface HookDispatcher {
+
+	boolean isMeasuringEnabled(int switchId);
+
+	void enterMeasuringHook(Object source, String fullyQualifiedMethodName, Object[] args);
+
+	void exitMeasuringHook(Object source, Throwable throwable, String fullyQualifiedMethodName);
+
+	Runnable wrapRunnable(Runnable task, Object executor);
+
+	<V> Callable<V> wrapCallable(Callable<V> task, Object executor);
+
+	void enterExecutorTask(Object task);
+
+	void exitExecutorTask(Object task);
+
+	void captureForkJoinTask(Object task);
+
+	Object enterForkJoinTask(Object task);
+
+	void exitForkJoinTask(Object previous);
+
+	Object enterCallSite();
+
+	void exitCallSite(Object timeInterval, String uri, String uriAlias);
+
+	void prepareHttpRequest(Object connection);
+
+	void enterHttpRequest(Object connection);
+
+	void exitHttpRequest(Object connection, Throwable throwable);
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * Configuration for when the agent's hooks take measurements.
+ * 
+ * @author rnaegele
+ */
+public class Activation {
+
+	private static final Activation DEFAULTS = new Activation(false, null);
+
+	private final boolean loadTestTrafficOnly;
+	private final String controlFile;
+
+	/**
+	 * @param loadTestTrafficOnly
+	 *            if {@code true}, only work done on behalf of a perfLoad request is measured, i. e.
+	 *            on threads carrying the execution params of a request with perfLoad headers;
+	 *            everything else, e. g. health checks or background jobs, is ignored
+	 * @param controlFile
+	 *            the file switching instrumented methods on and off at runtime, relative to the
+	 *            agent directory unless absolute; may be {@code null}
+	 */
+	public Activation(final boolean loadTestTrafficOnly, final String controlFile) {
+		this.loadTestTrafficOnly = loadTestTrafficOnly;
+		this.controlFile = controlFile;
+	}
+
+	/**
+	 * @return an instance measuring all traffic
+	 */
+	public static Activation defaults() {
+		return DEFAULTS;
+	}
+
+	/**
+	 * @return the loadTestTrafficOnly
+	 */
+	public boolean isLoadTestTrafficOnly() {
+		return loadTestTrafficOnly;
+	}
+
+	/**
+	 * @return the controlFile
+	 */
+	public String getControlFile() {
+		return controlFile;
+	}
+}
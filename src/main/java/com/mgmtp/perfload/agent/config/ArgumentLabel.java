@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Configures a method argument whose value becomes a dimension of the method's measurements,
+ * optionally navigating a chain of no-arg getters starting at the argument. Labels are
+ * configured as the argument index followed by getter names, separated by dots, e. g.
+ * {@code 0.getReportType.name}.
+ * 
+ * @author rnaegele
+ */
+public class ArgumentLabel {
+
+	private final int argIndex;
+	private final List<String> getters;
+
+	public ArgumentLabel(final int argIndex, final List<String> getters) {
+		checkArgument(argIndex >= 0, "Argument index must not be negative: %s", argIndex);
+		this.argIndex = argIndex;
+		this.getters = getters;
+	}
+
+	/**
+	 * Parses a label in the format {@code <argIndex>[.<getter>]*}.
+	 * 
+	 * @param spec
+	 *            the label as configured
+	 * @return the label
+	 */
+	public static ArgumentLabel parse(final String spec) {
+		String[] parts = spec.split("\\.");
+		try {
+			int argIndex = Integer.parseInt(parts[0].trim());
+			List<String> getters = parts.length > 1
+					? Arrays.asList(Arrays.copyOfRange(parts, 1, parts.length))
+					: Collections.<String>emptyList();
+			return new ArgumentLabel(argIndex, getters);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid argument label: " + spec, ex);
+		}
+	}
+
+	/**
+	 * @return the index of the argument
+	 */
+	public int getArgIndex() {
+		return argIndex;
+	}
+
+	/**
+	 * @return the names of the getters to invoke on the argument, in order
+	 */
+	public List<String> getGetters() {
+		return getters;
+	}
+
+	@Override
+	public String toString() {
+		return getters.isEmpty() ? String.valueOf(argIndex) : argIndex + "." + Joiner.on('.').join(getters);
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * Configuration for writing the measuring log asynchronously. Request threads only enqueue
+ * measurements, a single background thread writes them to the file, so request threads do not
+ * contend for the file.
+ * 
+ * @author rnaegele
+ */
+public class AsyncLog {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 65536;
+
+	private static final AsyncLog DISABLED = new AsyncLog(false, DEFAULT_QUEUE_CAPACITY);
+
+	private final boolean enabled;
+	private final int queueCapacity;
+
+	/**
+	 * @param enabled
+	 *            if {@code true}, the measuring log is written asynchronously
+	 * @param queueCapacity
+	 *            the maximum number of measurements waiting to be written; further measurements
+	 *            are dropped
+	 */
+	public AsyncLog(final boolean enabled, final int queueCapacity) {
+		this.enabled = enabled;
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @return an instance with asynchronous writing disabled
+	 */
+	public static AsyncLog disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the queueCapacity
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+}
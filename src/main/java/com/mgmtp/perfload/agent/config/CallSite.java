@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * A rule for timing calls to a method at the call site, i. e. in the calling class rather than in
+ * the called class.
+ * 
+ * @author rnaegele
+ */
+public class CallSite {
+
+	private final String callers;
+	private final String owner;
+	private final String methodName;
+
+	/**
+	 * @param callers
+	 *            the fully qualified name of the calling class, or a package prefix ending with
+	 *            {@code *}, e. g. {@code com.ourcorp.*}
+	 * @param owner
+	 *            the fully qualified name of the class or interface declaring the called method;
+	 *            calls on subtypes match as well
+	 * @param methodName
+	 *            the name of the called method; all overloads match
+	 */
+	public CallSite(final String callers, final String owner, final String methodName) {
+		this.callers = callers;
+		this.owner = owner;
+		this.methodName = methodName;
+	}
+
+	/**
+	 * @param fqcn
+	 *            the fully qualified name of a class
+	 * @return {@code true} if calls from the specified class are timed
+	 */
+	public boolean matchesCaller(final String fqcn) {
+		if (callers.endsWith("*")) {
+			return fqcn.startsWith(callers.substring(0, callers.length() - 1));
+		}
+		return callers.equals(fqcn);
+	}
+
+	/**
+	 * @return the owner
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * @return the methodName
+	 */
+	public String getMethodName() {
+		return methodName;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CallSite [%s -> %s.%s]", callers, owner, methodName);
+	}
+}
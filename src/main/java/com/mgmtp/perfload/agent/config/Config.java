@@ -15,6 +15,7 @@
  */
 package com.mgmtp.perfload.agent.config;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -24,10 +25,43 @@ public class Config {
 
 	private final EntryPoints entryPoints;
 	private final Map<String, Map<String, MethodInstrumentations>> instrumentations;
+	private final ContextPropagation contextPropagation;
+	private final Limits limits;
+	private final Jdbc jdbc;
+	private final List<CallSite> callSites;
+	private final OutboundHttp outboundHttp;
+	private final NetworkSink networkSink;
+	private final MappedLog mappedLog;
+	private final Rotation rotation;
+	private final AsyncLog asyncLog;
+	private final Activation activation;
+	private final RequestTiming requestTiming;
+	private final ServerTiming serverTiming;
+	private final RequestSummary requestSummary;
+	private final StackSampling stackSampling;
 
-	public Config(final EntryPoints entryPoints, final Map<String, Map<String, MethodInstrumentations>> instrumentations) {
+	public Config(final EntryPoints entryPoints, final Map<String, Map<String, MethodInstrumentations>> instrumentations,
+			final ContextPropagation contextPropagation, final Limits limits, final Jdbc jdbc, final List<CallSite> callSites,
+			final OutboundHttp outboundHttp, final NetworkSink networkSink, final MappedLog mappedLog,
+			final Rotation rotation, final AsyncLog asyncLog, final Activation activation,
+			final RequestTiming requestTiming, final ServerTiming serverTiming, final RequestSummary requestSummary,
+			final StackSampling stackSampling) {
 		this.entryPoints = entryPoints;
 		this.instrumentations = instrumentations;
+		this.contextPropagation = contextPropagation;
+		this.limits = limits;
+		this.jdbc = jdbc;
+		this.callSites = callSites;
+		this.outboundHttp = outboundHttp;
+		this.networkSink = networkSink;
+		this.mappedLog = mappedLog;
+		this.rotation = rotation;
+		this.asyncLog = asyncLog;
+		this.activation = activation;
+		this.requestTiming = requestTiming;
+		this.serverTiming = serverTiming;
+		this.requestSummary = requestSummary;
+		this.stackSampling = stackSampling;
 	}
 
 	/**
@@ -45,4 +79,102 @@ public class Config {
 	public Map<String, Map<String, MethodInstrumentations>> getInstrumentations() {
 		return instrumentations;
 	}
+
+	/**
+	 * @return the contextPropagation
+	 */
+	public ContextPropagation getContextPropagation() {
+		return contextPropagation;
+	}
+
+	/**
+	 * @return the limits
+	 */
+	public Limits getLimits() {
+		return limits;
+	}
+
+	/**
+	 * @return the jdbc
+	 */
+	public Jdbc getJdbc() {
+		return jdbc;
+	}
+
+	/**
+	 * @return the rules for timing calls at the call site
+	 */
+	public List<CallSite> getCallSites() {
+		return callSites;
+	}
+
+	/**
+	 * @return the outboundHttp
+	 */
+	public OutboundHttp getOutboundHttp() {
+		return outboundHttp;
+	}
+
+	/**
+	 * @return the networkSink
+	 */
+	public NetworkSink getNetworkSink() {
+		return networkSink;
+	}
+
+	/**
+	 * @return the mappedLog
+	 */
+	public MappedLog getMappedLog() {
+		return mappedLog;
+	}
+
+	/**
+	 * @return the rotation
+	 */
+	public Rotation getRotation() {
+		return rotation;
+	}
+
+	/**
+	 * @return the asyncLog
+	 */
+	public AsyncLog getAsyncLog() {
+		return asyncLog;
+	}
+
+	/**
+	 * @return the activation
+	 */
+	public Activation getActivation() {
+		return activation;
+	}
+
+	/**
+	 * @return the requestTiming
+	 */
+	public RequestTiming getRequestTiming() {
+		return requestTiming;
+	}
+
+	/**
+	 * @return the serverTiming
+	 */
+	public ServerTiming getServerTiming() {
+		return serverTiming;
+	}
+
+	/**
+	 * @return the requestSummary
+	 */
+	public RequestSummary getRequestSummary() {
+		return requestSummary;
+	}
+
+	/**
+	 * @return the stackSampling
+	 */
+	public StackSampling getStackSampling() {
+		return stackSampling;
+	}
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Configuration for propagating perfLoad execution params to tasks run by thread pools.
+ * 
+ * @author rnaegele
+ */
+public class ContextPropagation {
+
+	private static final ContextPropagation DISABLED = new ContextPropagation(Collections.<String>emptyList(), false,
+			false);
+
+	private final List<String> executors;
+	private final boolean forkJoinTasks;
+	private final boolean queueWaitTime;
+
+	/**
+	 * @param executors
+	 *            the fully qualified class names of executors whose {@code execute}, {@code submit}
+	 *            and {@code invoke} methods are instrumented
+	 * @param forkJoinTasks
+	 *            if {@code true}, {@code java.util.concurrent.ForkJoinTask} is instrumented, so
+	 *            forked tasks run in the context of the forking thread
+	 * @param queueWaitTime
+	 *            if {@code true}, the time tasks wait in the queues of the executors is measured
+	 */
+	public ContextPropagation(final List<String> executors, final boolean forkJoinTasks, final boolean queueWaitTime) {
+		this.executors = executors;
+		this.forkJoinTasks = forkJoinTasks;
+		this.queueWaitTime = queueWaitTime;
+	}
+
+	/**
+	 * @return an instance with context propagation disabled
+	 */
+	public static ContextPropagation disabled() {
+		return DISABLED;
+	}
+
+	public boolean hasExecutor(final String fqcn) {
+		return executors.contains(fqcn);
+	}
+
+	/**
+	 * @return the executors
+	 */
+	public List<String> getExecutors() {
+		return executors;
+	}
+
+	/**
+	 * @return the forkJoinTasks
+	 */
+	public boolean isForkJoinTasks() {
+		return forkJoinTasks;
+	}
+
+	/**
+	 * @return the queueWaitTime
+	 */
+	public boolean isQueueWaitTime() {
+		return queueWaitTime;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * Configuration for the built-in JDBC instrumentation.
+ * 
+ * @author rnaegele
+ */
+public class Jdbc {
+
+	public static final int DEFAULT_SQL_CACHE_SIZE = 1000;
+
+	private static final Jdbc DISABLED = new Jdbc(false, DEFAULT_SQL_CACHE_SIZE);
+
+	private final boolean enabled;
+	private final int sqlCacheSize;
+
+	/**
+	 * @param enabled
+	 *            if {@code true}, all implementations of {@code java.sql.Connection} and
+	 *            {@code java.sql.Statement} are instrumented; this adds to the startup time, since
+	 *            the super types of every application class are checked when it is loaded
+	 * @param sqlCacheSize
+	 *            the maximum number of normalized SQL strings to cache
+	 */
+	public Jdbc(final boolean enabled, final int sqlCacheSize) {
+		this.enabled = enabled;
+		this.sqlCacheSize = sqlCacheSize;
+	}
+
+	/**
+	 * @return an instance with JDBC instrumentation disabled
+	 */
+	public static Jdbc disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the sqlCacheSize
+	 */
+	public int getSqlCacheSize() {
+		return sqlCacheSize;
+	}
+}
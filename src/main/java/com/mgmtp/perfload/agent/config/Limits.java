@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * Limits for the agent's runtime state.
+ * 
+ * @author rnaegele
+ */
+public class Limits {
+
+	public static final int DEFAULT_MAX_STACK_DEPTH = 100;
+	public static final int DEFAULT_MAX_OPERATIONS = 1000;
+
+	private final int maxStackDepth;
+	private final int maxOperations;
+
+	/**
+	 * @param maxStackDepth
+	 *            the maximum number of nested measurements per thread; deeper measurements are
+	 *            skipped
+	 * @param maxOperations
+	 *            the maximum number of distinct perfLoad operations; measurements of further
+	 *            operations are logged under the operation {@code overflow}
+	 */
+	public Limits(final int maxStackDepth, final int maxOperations) {
+		this.maxStackDepth = maxStackDepth;
+		this.maxOperations = maxOperations;
+	}
+
+	/**
+	 * @return an instance with default limits
+	 */
+	public static Limits defaults() {
+		return new Limits(DEFAULT_MAX_STACK_DEPTH, DEFAULT_MAX_OPERATIONS);
+	}
+
+	/**
+	 * @return the maxStackDepth
+	 */
+	public int getMaxStackDepth() {
+		return maxStackDepth;
+	}
+
+	/**
+	 * @return the maxOperations
+	 */
+	public int getMaxOperations() {
+		return maxOperations;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * Configuration for writing measurements to preallocated memory-mapped segment files instead of
+ * the measuring log.
+ * 
+ * @author rnaegele
+ */
+public class MappedLog {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final MappedLog DISABLED = new MappedLog(false, DEFAULT_SEGMENT_SIZE);
+
+	private final boolean enabled;
+	private final int segmentSize;
+
+	/**
+	 * @param enabled
+	 *            if {@code true}, measurements are written to memory-mapped segments
+	 * @param segmentSize
+	 *            the size of a segment file in bytes
+	 */
+	public MappedLog(final boolean enabled, final int segmentSize) {
+		if (segmentSize < 1024) {
+			throw new IllegalArgumentException("Segment size must be at least 1024 bytes: " + segmentSize);
+		}
+		this.enabled = enabled;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @return an instance with memory-mapped segments disabled
+	 */
+	public static MappedLog disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the segmentSize
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+}
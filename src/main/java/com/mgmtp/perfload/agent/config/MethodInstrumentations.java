@@ -15,8 +15,11 @@
  */
 package com.mgmtp.perfload.agent.config;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * @author rnaegele
@@ -25,10 +28,35 @@ public class MethodInstrumentations implements Iterable<List<String>> {
 
 	private final String methodName;
 	private final List<List<String>> argumentLists;
+	private final List<ArgumentLabel> labels;
+
+	// argument parts of the configured method descriptors, e. g. "(Ljava/lang/String;I)"
+	private final Set<String> argumentDescriptors;
 
 	public MethodInstrumentations(final String methodName, final List<List<String>> argumentLists) {
+		this(methodName, argumentLists, Collections.<ArgumentLabel>emptyList());
+	}
+
+	public MethodInstrumentations(final String methodName, final List<List<String>> argumentLists,
+			final List<ArgumentLabel> labels) {
 		this.methodName = methodName;
 		this.argumentLists = argumentLists;
+		this.labels = labels;
+		this.argumentDescriptors = new HashSet<String>(argumentLists.size() * 2);
+		for (List<String> argumentList : argumentLists) {
+			argumentDescriptors.add(toArgumentDescriptor(argumentList));
+		}
+	}
+
+	/**
+	 * Checks whether the arguments of the specified method descriptor match one of the configured
+	 * argument lists. If none are configured, any descriptor matches.
+	 * 
+	 * @param desc
+	 *            the JVM method descriptor
+	 */
+	public boolean matches(final String desc) {
+		return argumentDescriptors.isEmpty() || argumentDescriptors.contains(desc.substring(0, desc.indexOf(')') + 1));
 	}
 
 	public boolean isEmpty() {
@@ -42,8 +70,51 @@ public class MethodInstrumentations implements Iterable<List<String>> {
 		return methodName;
 	}
 
+	/**
+	 * @return the arguments whose values label the method's measurements; only these arguments
+	 *         are passed to the hook
+	 */
+	public List<ArgumentLabel> getLabels() {
+		return labels;
+	}
+
 	@Override
 	public Iterator<List<String>> iterator() {
 		return argumentLists.iterator();
 	}
+
+	static String toArgumentDescriptor(final List<String> classNames) {
+		StringBuilder sb = new StringBuilder(64).append('(');
+		for (String className : classNames) {
+			appendDescriptor(sb, className.trim());
+		}
+		return sb.append(')').toString();
+	}
+
+	private static void appendDescriptor(final StringBuilder sb, final String className) {
+		String elementName = className;
+		while (elementName.endsWith("[]")) {
+			sb.append('[');
+			elementName = elementName.substring(0, elementName.length() - 2);
+		}
+		if ("boolean".equals(elementName)) {
+			sb.append('Z');
+		} else if ("byte".equals(elementName)) {
+			sb.append('B');
+		} else if ("char".equals(elementName)) {
+			sb.append('C');
+		} else if ("short".equals(elementName)) {
+			sb.append('S');
+		} else if ("int".equals(elementName)) {
+			sb.append('I');
+		} else if ("long".equals(elementName)) {
+			sb.append('J');
+		} else if ("float".equals(elementName)) {
+			sb.append('F');
+		} else if ("double".equals(elementName)) {
+			sb.append('D');
+		} else {
+			sb.append('L').append(elementName.replace('.', '/')).append(';');
+		}
+	}
 }
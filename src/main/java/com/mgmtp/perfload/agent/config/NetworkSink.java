@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * Configuration for streaming measurements to a central collector instead of writing them to the
+ * measuring log.
+ * 
+ * @author rnaegele
+ */
+public class NetworkSink {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 200;
+
+	private static final NetworkSink DISABLED = new NetworkSink(false, "tcp", null, 0, DEFAULT_QUEUE_CAPACITY,
+			DEFAULT_MAX_BATCH_SIZE);
+
+	private final boolean enabled;
+	private final String protocol;
+	private final String host;
+	private final int port;
+	private final int queueCapacity;
+	private final int maxBatchSize;
+
+	/**
+	 * @param enabled
+	 *            if {@code true}, measurements are sent to the collector
+	 * @param protocol
+	 *            {@code tcp} or {@code udp}
+	 * @param host
+	 *            the collector's host
+	 * @param port
+	 *            the collector's port
+	 * @param queueCapacity
+	 *            the number of measurements buffered before new ones are dropped
+	 * @param maxBatchSize
+	 *            the maximum number of measurements sent in one batch
+	 */
+	public NetworkSink(final boolean enabled, final String protocol, final String host, final int port,
+			final int queueCapacity, final int maxBatchSize) {
+		if (!"tcp".equals(protocol) && !"udp".equals(protocol)) {
+			throw new IllegalArgumentException("Invalid network sink protocol: " + protocol);
+		}
+		this.enabled = enabled;
+		this.protocol = protocol;
+		this.host = host;
+		this.port = port;
+		this.queueCapacity = queueCapacity;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * @return an instance with the network sink disabled
+	 */
+	public static NetworkSink disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return {@code true} if measurements are sent via UDP
+	 */
+	public boolean isUdp() {
+		return "udp".equals(protocol);
+	}
+
+	/**
+	 * @return the protocol
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * @return the host
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return the port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the queueCapacity
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @return the maxBatchSize
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+}
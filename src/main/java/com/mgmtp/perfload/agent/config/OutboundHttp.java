@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Configuration for the instrumentation of outbound HTTP requests made via
+ * {@code java.net.HttpURLConnection}.
+ * 
+ * @author rnaegele
+ */
+public class OutboundHttp {
+
+	private static final OutboundHttp DISABLED = new OutboundHttp(false, false, Collections.<String>emptyList());
+
+	private final boolean enabled;
+	private final boolean propagateHeaders;
+	private final List<String> propagationHosts;
+
+	/**
+	 * @param enabled
+	 *            if {@code true}, outbound requests are timed
+	 * @param propagateHeaders
+	 *            if {@code true}, the perfLoad headers of the current request are added to
+	 *            outbound requests, so agents on downstream nodes attribute their measurements to
+	 *            the same request
+	 * @param propagationHosts
+	 *            the hosts the headers are propagated to, so they are not sent to third parties;
+	 *            an entry starting with a dot matches all subdomains, e. g. {@code .example.com}
+	 */
+	public OutboundHttp(final boolean enabled, final boolean propagateHeaders, final List<String> propagationHosts) {
+		this.enabled = enabled;
+		this.propagateHeaders = propagateHeaders;
+		this.propagationHosts = propagationHosts;
+	}
+
+	/**
+	 * @return an instance with outbound HTTP instrumentation disabled
+	 */
+	public static OutboundHttp disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the propagateHeaders
+	 */
+	public boolean isPropagateHeaders() {
+		return propagateHeaders;
+	}
+
+	/**
+	 * @return {@code true} if the perfLoad headers may be propagated to the specified host
+	 */
+	public boolean isPropagationHost(final String host) {
+		for (String propagationHost : propagationHosts) {
+			if (propagationHost.startsWith(".")
+					? host.regionMatches(true, host.length() - propagationHost.length(), propagationHost, 0,
+							propagationHost.length())
+					: host.equalsIgnoreCase(propagationHost)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * Configuration for logging one summary record per request instead of one line per measurement.
+ * 
+ * @author rnaegele
+ */
+public class RequestSummary {
+
+	private static final RequestSummary DISABLED = new RequestSummary(false);
+
+	private final boolean enabled;
+
+	/**
+	 * @param enabled
+	 *            if {@code true}, measurements taken on the request thread are summed up per method
+	 *            and logged in a single record when the outermost entry point is left
+	 */
+	public RequestSummary(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return an instance with summary records disabled
+	 */
+	public static RequestSummary disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * Configuration for timing requests at the outermost servlet api entry point.
+ * 
+ * @author rnaegele
+ */
+public class RequestTiming {
+
+	private static final RequestTiming DISABLED = new RequestTiming(false, false);
+
+	private final boolean enabled;
+	private final boolean wrapResponse;
+
+	/**
+	 * @param enabled
+	 *            if {@code true}, each request is logged with its duration
+	 * @param wrapResponse
+	 *            if {@code true}, the response is wrapped in order to log the status code and the
+	 *            number of bytes written and to add the {@code Server-Timing} header before the
+	 *            response is committed; the wrapper is an {@code HttpServletResponseWrapper}
+	 */
+	public RequestTiming(final boolean enabled, final boolean wrapResponse) {
+		this.enabled = enabled;
+		this.wrapResponse = wrapResponse;
+	}
+
+	/**
+	 * @return an instance with request timing disabled
+	 */
+	public static RequestTiming disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the wrapResponse
+	 */
+	public boolean isWrapResponse() {
+		return wrapResponse;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * Configuration for rotating the agent log and the measuring log.
+ * 
+ * @author rnaegele
+ */
+public class Rotation {
+
+	public static final long DEFAULT_MAX_FILE_SIZE = 100L * 1024L * 1024L;
+	public static final long DEFAULT_INTERVAL_MINUTES = 60L;
+
+	private static final Rotation DISABLED = new Rotation(false, DEFAULT_MAX_FILE_SIZE, DEFAULT_INTERVAL_MINUTES, true);
+
+	private final boolean enabled;
+	private final long maxFileSize;
+	private final long intervalMillis;
+	private final boolean compress;
+
+	/**
+	 * @param enabled
+	 *            if {@code true}, log files are rotated
+	 * @param maxFileSize
+	 *            the approximate size in bytes after which a file is rotated
+	 * @param intervalMinutes
+	 *            the time after which a file is rotated
+	 * @param compress
+	 *            if {@code true}, rotated files are gzipped in the background
+	 */
+	public Rotation(final boolean enabled, final long maxFileSize, final long intervalMinutes, final boolean compress) {
+		this.enabled = enabled;
+		this.maxFileSize = maxFileSize;
+		this.intervalMillis = intervalMinutes * 60L * 1000L;
+		this.compress = compress;
+	}
+
+	/**
+	 * @return an instance with rotation disabled
+	 */
+	public static Rotation disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the maxFileSize
+	 */
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	/**
+	 * @return the intervalMillis
+	 */
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	/**
+	 * @return the compress
+	 */
+	public boolean isCompress() {
+		return compress;
+	}
+}
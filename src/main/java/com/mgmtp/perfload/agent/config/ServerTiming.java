@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * Configuration for the {@code Server-Timing} response header.
+ * 
+ * @author rnaegele
+ */
+public class ServerTiming {
+
+	public static final int DEFAULT_MAX_METHODS = 5;
+
+	private static final ServerTiming DISABLED = new ServerTiming(false, DEFAULT_MAX_METHODS);
+
+	private final boolean enabled;
+	private final int maxMethods;
+
+	/**
+	 * @param enabled
+	 *            if {@code true}, the header is added to responses of the outermost entry point,
+	 *            when it is left unless the response is committed by then, or before the response
+	 *            is committed if it is wrapped, see {@link RequestTiming#isWrapResponse()}
+	 * @param maxMethods
+	 *            the maximum number of instrumented methods listed in the header, those with the
+	 *            highest total time
+	 */
+	public ServerTiming(final boolean enabled, final int maxMethods) {
+		this.enabled = enabled;
+		this.maxMethods = maxMethods;
+	}
+
+	/**
+	 * @return an instance with the header disabled
+	 */
+	public static ServerTiming disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the maxMethods
+	 */
+	public int getMaxMethods() {
+		return maxMethods;
+	}
+}
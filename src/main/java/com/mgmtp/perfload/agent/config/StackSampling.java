@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+/**
+ * Configuration for sampling the stacks of threads that process perfLoad requests.
+ * 
+ * @author rnaegele
+ */
+public class StackSampling {
+
+	public static final long DEFAULT_INTERVAL_MILLIS = 50L;
+	public static final int DEFAULT_MAX_FRAMES = 128;
+
+	private static final StackSampling DISABLED = new StackSampling(false, DEFAULT_INTERVAL_MILLIS, 0L, DEFAULT_MAX_FRAMES);
+
+	private final boolean enabled;
+	private final long intervalMillis;
+	private final long thresholdMillis;
+	private final int maxFrames;
+
+	/**
+	 * @param enabled
+	 *            if {@code true}, the stacks of request threads are sampled and written in folded
+	 *            format
+	 * @param intervalMillis
+	 *            the time between two samples
+	 * @param thresholdMillis
+	 *            the minimum duration of a request whose samples are kept, {@code 0} keeps all
+	 * @param maxFrames
+	 *            the maximum number of frames of a sample, counted from the innermost frame
+	 */
+	public StackSampling(final boolean enabled, final long intervalMillis, final long thresholdMillis, final int maxFrames) {
+		this.enabled = enabled;
+		this.intervalMillis = intervalMillis;
+		this.thresholdMillis = thresholdMillis;
+		this.maxFrames = maxFrames;
+	}
+
+	/**
+	 * @return an instance with sampling disabled
+	 */
+	public static StackSampling disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the intervalMillis
+	 */
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	/**
+	 * @return the thresholdMillis
+	 */
+	public long getThresholdMillis() {
+		return thresholdMillis;
+	}
+
+	/**
+	 * @return the maxFrames
+	 */
+	public int getMaxFrames() {
+		return maxFrames;
+	}
+}
@@ -22,12 +22,14 @@ package com.mgmtp.perfload.agent.hook;
  */
 public abstract class AbstractHook implements Hook {
 
+	private static final Object[] NO_ARGS = new Object[0];
+
 	/**
 	 * Delegates to {@link #start(Object, String, Object[])} passing in an empty {@code args} array.
 	 */
 	@Override
 	public void start(final Object source, final String fullyQualifiedMethodName) {
-		start(source, fullyQualifiedMethodName, new Object[] {});
+		start(source, fullyQualifiedMethodName, NO_ARGS);
 	}
 
 	/**
@@ -36,6 +38,6 @@ public abstract class AbstractHook implements Hook {
 	 */
 	@Override
 	public void stop(final Object source, final Throwable throwable, final String fullyQualifiedMethodName) {
-		stop(source, throwable, fullyQualifiedMethodName, new Object[] {});
+		stop(source, throwable, fullyQualifiedMethodName, NO_ARGS);
 	}
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.ArgumentLabel;
+
+/**
+ * Computes the labels of measurements from selected method arguments. The transformer
+ * registers the configured labels of each instrumented method under its unabbreviated name and
+ * descriptor, the woven code then passes this key and the labelled arguments only to the
+ * {@link MeasuringHook}.
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class ArgumentLabels {
+
+	private final AgentLogger logger;
+	private final ConcurrentMap<String, List<ArgumentLabel>> labelsByMethod = new ConcurrentHashMap<String, List<ArgumentLabel>>();
+
+	// getters by class and name; the getters reference their class, so the values are held softly
+	// as well, otherwise the weak keys would never be cleared and classes could not be unloaded
+	private final LoadingCache<Class<?>, ConcurrentMap<String, Optional<Method>>> getterCache = CacheBuilder.newBuilder()
+			.weakKeys().softValues().build(new CacheLoader<Class<?>, ConcurrentMap<String, Optional<Method>>>() {
+				@Override
+				public ConcurrentMap<String, Optional<Method>> load(final Class<?> key) {
+					return new ConcurrentHashMap<String, Optional<Method>>();
+				}
+			});
+
+	@Inject
+	ArgumentLabels(final AgentLogger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Registers the labels of an instrumented method.
+	 * 
+	 * @param labelKey
+	 *            the method's fully qualified, unabbreviated name and descriptor
+	 */
+	public void register(final String labelKey, final List<ArgumentLabel> labels) {
+		labelsByMethod.put(labelKey, labels);
+	}
+
+	/**
+	 * Computes the label of a measurement.
+	 * 
+	 * @param args
+	 *            the method's label key followed by the values of the labelled arguments in the
+	 *            order the labels are configured
+	 * @return the comma-separated label values, or {@code null} if the method has no labels
+	 */
+	public String label(final Object[] args) {
+		if (args == null || args.length == 0 || labelsByMethod.isEmpty()) {
+			return null;
+		}
+		List<ArgumentLabel> labels = labelsByMethod.get(args[0]);
+		if (labels == null) {
+			return null;
+		}
+
+		StringBuilder sb = new StringBuilder(32);
+		for (int i = 0; i < labels.size() && i + 1 < args.length; ++i) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			Object value = args[i + 1];
+			for (String getter : labels.get(i).getGetters()) {
+				if (value == null) {
+					break;
+				}
+				value = invokeGetter(value, getter);
+			}
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+	private Object invokeGetter(final Object target, final String getterName) {
+		ConcurrentMap<String, Optional<Method>> getters = getterCache.getUnchecked(target.getClass());
+		Optional<Method> getter = getters.get(getterName);
+		if (getter == null) {
+			getter = findGetter(target.getClass(), getterName);
+			getters.put(getterName, getter);
+		}
+		if (!getter.isPresent()) {
+			return "?";
+		}
+		try {
+			return getter.get().invoke(target);
+		} catch (Exception ex) {
+			return "?";
+		}
+	}
+
+	private Optional<Method> findGetter(final Class<?> clazz, final String getterName) {
+		try {
+			Method method = clazz.getMethod(getterName);
+			// public methods of non-public classes
+			method.setAccessible(true);
+			return Optional.of(method);
+		} catch (Exception ex) {
+			logger.writeln("Cannot resolve getter for argument label: " + clazz.getName() + "." + getterName + "()");
+			return Optional.absent();
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.util.ExecutionParams;
+import com.mgmtp.perfload.agent.util.OperationRegistry;
+import com.mgmtp.perfload.agent.util.ThreadState;
+import com.mgmtp.perfload.logging.ResultLogger;
+import com.mgmtp.perfload.logging.TimeInterval;
+
+/**
+ * Tracks requests that are still processed asynchronously (Servlet 3.0) when the outermost entry
+ * point returns. A listener is registered with the request's {@code AsyncContext} which logs the
+ * end-to-end duration of the request when it completes. The listener runs on the completing
+ * thread, so it logs with the perfLoad execution params captured on the request thread. They are
+ * not carried over to the work itself, e. g. to a task passed to {@code AsyncContext.start()},
+ * unless it runs on an executor configured for context propagation.
+ * <p>
+ * A request is tracked once, which is recorded in the request attribute
+ * {@value #TRACKED_ATTRIBUTE}. When it is dispatched again by its {@code AsyncContext}, the
+ * listener stays registered and also covers the dispatch, so the dispatch is not logged
+ * separately.
+ * </p>
+ * <p>
+ * The status code is read from the response supplied to the {@code AsyncContext} when the request
+ * completes. The number of bytes is not logged, because output written asynchronously usually
+ * goes to the container's response which is not wrapped by the {@link ResponseWrapper}.
+ * </p>
+ * <p>
+ * Servlet 3.0 types are accessed via reflection because the agent is loaded by the system class
+ * loader which does not know the servlet api.
+ * </p>
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class AsyncRequestTracker {
+
+	public static final String TRACKED_ATTRIBUTE = "com.mgmtp.perfload.agent.asyncRequestTracked";
+
+	private final AgentLogger logger;
+	private final OperationRegistry operationRegistry;
+
+	// Servlet 3.0 api by class loader, absent for older servlet api versions; the values reference
+	// classes of the loader, so they must not be strongly reachable, or the loader is never unloaded
+	private final LoadingCache<ClassLoader, Optional<AsyncApi>> asyncApiCache = CacheBuilder.newBuilder().weakKeys()
+			.softValues().build(new CacheLoader<ClassLoader, Optional<AsyncApi>>() {
+				@Override
+				public Optional<AsyncApi> load(final ClassLoader loader) throws Exception {
+					return AsyncApi.create(loader);
+				}
+			});
+
+	@Inject
+	AsyncRequestTracker(final AgentLogger logger, final OperationRegistry operationRegistry) {
+		this.logger = logger;
+		this.operationRegistry = operationRegistry;
+	}
+
+	/**
+	 * Registers a completion listener if the specified request is in asynchronous mode and not
+	 * tracked yet.
+	 * 
+	 * @param request
+	 *            the servlet request
+	 * @param fullyQualifiedMethodName
+	 *            the fully qualified name of the entry point method
+	 * @param executionParams
+	 *            the execution params of the request thread; a snapshot is handed over to the
+	 *            listener
+	 * @param requestTime
+	 *            the time interval started at the outermost entry point; it is stopped when the
+	 *            request completes
+	 * @return {@code true} if the request is processed asynchronously, or was dispatched by its
+	 *         {@code AsyncContext} and is therefore tracked already
+	 */
+	public boolean trackIfAsync(final Object request, final String fullyQualifiedMethodName,
+			final ExecutionParams executionParams, final TimeInterval requestTime) {
+		if (request == null || requestTime == null) {
+			return false;
+		}
+		try {
+			Optional<AsyncApi> asyncApi = getAsyncApi(request);
+			if (!asyncApi.isPresent()) {
+				return false;
+			}
+
+			AsyncApi api = asyncApi.get();
+			if (api.getAttribute.invoke(request, TRACKED_ATTRIBUTE) != null) {
+				// the listener re-registers itself if the request is put into asynchronous mode again
+				return true;
+			}
+			if (!(Boolean) api.isAsyncStarted.invoke(request)) {
+				return false;
+			}
+
+			Object asyncContext = api.getAsyncContext.invoke(request);
+			CompletionListener handler = new CompletionListener(api, fullyQualifiedMethodName, executionParams.snapshot(),
+					requestTime);
+			Object listener = Proxy.newProxyInstance(api.asyncListenerClass.getClassLoader(),
+					new Class<?>[] { api.asyncListenerClass }, handler);
+			api.addListener.invoke(asyncContext, listener);
+			api.setAttribute.invoke(request, TRACKED_ATTRIBUTE, Boolean.TRUE);
+			return true;
+		} catch (Exception ex) {
+			logger.writeln("Error tracking asynchronous request: " + ex.getMessage(), ex);
+			return false;
+		}
+	}
+
+	/**
+	 * @param request
+	 *            the servlet request
+	 * @return {@code true} if the request is tracked already, i. e. it is dispatched again by its
+	 *         {@code AsyncContext}
+	 */
+	public boolean isTracked(final Object request) {
+		if (request == null) {
+			return false;
+		}
+		try {
+			Optional<AsyncApi> asyncApi = getAsyncApi(request);
+			return asyncApi.isPresent() && asyncApi.get().getAttribute.invoke(request, TRACKED_ATTRIBUTE) != null;
+		} catch (Exception ex) {
+			logger.writeln("Error tracking asynchronous request: " + ex.getMessage(), ex);
+			return false;
+		}
+	}
+
+	private Optional<AsyncApi> getAsyncApi(final Object request) {
+		ClassLoader loader = request.getClass().getClassLoader();
+		return asyncApiCache.getUnchecked(loader != null ? loader : ClassLoader.getSystemClassLoader());
+	}
+
+	void logCompletion(final String fullyQualifiedMethodName, final ExecutionParams capturedParams,
+			final TimeInterval requestTime, final Integer status, final String errorMsg) {
+		requestTime.stop();
+
+		// carry over the execution params to the completing thread
+		ExecutionParams executionParams = ThreadState.current().getExecutionParams();
+		ExecutionParams previousParams = executionParams.snapshot();
+		executionParams.restore(capturedParams);
+		try {
+			String uriAlias = fullyQualifiedMethodName + " [async]";
+			String uri = uriAlias;
+			String error = errorMsg;
+			if (status != null) {
+				uri = uriAlias + " [status=" + status + ']';
+				if (error == null && status >= 500) {
+					error = "HTTP status " + status;
+				}
+			}
+			ResultLogger resultLogger = operationRegistry.getResultLogger(executionParams);
+			resultLogger.logResult(error, System.currentTimeMillis(), requestTime, requestTime, "AGENT", uri, uriAlias,
+					executionParams.getExecutionId(), executionParams.getRequestId());
+		} finally {
+			executionParams.restore(previousParams);
+			ThreadState.removeIfIdle();
+		}
+	}
+
+	/**
+	 * Dynamic implementation of {@code javax.servlet.AsyncListener}.
+	 */
+	final class CompletionListener implements InvocationHandler {
+
+		private final AsyncApi api;
+		private final String fullyQualifiedMethodName;
+		private final ExecutionParams capturedParams;
+		private final TimeInterval requestTime;
+		private volatile String errorMsg;
+
+		CompletionListener(final AsyncApi api, final String fullyQualifiedMethodName, final ExecutionParams capturedParams,
+				final TimeInterval requestTime) {
+			this.api = api;
+			this.fullyQualifiedMethodName = fullyQualifiedMethodName;
+			this.capturedParams = capturedParams;
+			this.requestTime = requestTime;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("onComplete".equals(name)) {
+				logCompletion(fullyQualifiedMethodName, capturedParams, requestTime, getStatus(args[0]), errorMsg);
+			} else if ("onTimeout".equals(name)) {
+				errorMsg = "Asynchronous request timed out";
+			} else if ("onError".equals(name)) {
+				Throwable throwable = (Throwable) api.getThrowable.invoke(args[0]);
+				errorMsg = throwable != null ? throwable.getMessage() : "Asynchronous request failed";
+			} else if ("onStartAsync".equals(name)) {
+				// listeners are removed when the request is put into asynchronous mode again, so re-register
+				Object asyncContext = api.getEventAsyncContext.invoke(args[0]);
+				api.addListener.invoke(asyncContext, proxy);
+			} else if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name)) {
+				return "CompletionListener[" + fullyQualifiedMethodName + "]";
+			}
+			return null;
+		}
+
+		/**
+		 * @return the status of the response supplied to the async context, {@code null} if it is
+		 *         no http response
+		 */
+		private Integer getStatus(final Object asyncEvent) {
+			try {
+				Object response = api.getSuppliedResponse.invoke(asyncEvent);
+				if (api.httpResponseClass.isInstance(response)) {
+					return (Integer) api.getStatus.invoke(response);
+				}
+			} catch (Exception ex) {
+				logger.writeln("Error reading status of asynchronous request: " + ex.getMessage(), ex);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Reflective access to the Servlet 3.0 async api.
+	 */
+	static final class AsyncApi {
+
+		final Class<?> asyncListenerClass;
+		final Method getAttribute;
+		final Method setAttribute;
+		final Method isAsyncStarted;
+		final Method getAsyncContext;
+		final Method addListener;
+		final Method getThrowable;
+		final Method getEventAsyncContext;
+		final Method getSuppliedResponse;
+		final Class<?> httpResponseClass;
+		final Method getStatus;
+
+		private AsyncApi(final ClassLoader loader) throws ClassNotFoundException, NoSuchMethodException {
+			Class<?> requestClass = Class.forName("javax.servlet.ServletRequest", false, loader);
+			Class<?> asyncContextClass = Class.forName("javax.servlet.AsyncContext", false, loader);
+			Class<?> asyncEventClass = Class.forName("javax.servlet.AsyncEvent", false, loader);
+			asyncListenerClass = Class.forName("javax.servlet.AsyncListener", false, loader);
+			getAttribute = requestClass.getMethod("getAttribute", String.class);
+			setAttribute = requestClass.getMethod("setAttribute", String.class, Object.class);
+			isAsyncStarted = requestClass.getMethod("isAsyncStarted");
+			getAsyncContext = requestClass.getMethod("getAsyncContext");
+			addListener = asyncContextClass.getMethod("addListener", asyncListenerClass);
+			getThrowable = asyncEventClass.getMethod("getThrowable");
+			getEventAsyncContext = asyncEventClass.getMethod("getAsyncContext");
+			getSuppliedResponse = asyncEventClass.getMethod("getSuppliedResponse");
+			httpResponseClass = Class.forName("javax.servlet.http.HttpServletResponse", false, loader);
+			getStatus = httpResponseClass.getMethod("getStatus");
+		}
+
+		static Optional<AsyncApi> create(final ClassLoader loader) {
+			try {
+				return Optional.of(new AsyncApi(loader));
+			} catch (ClassNotFoundException ex) {
+				// servlet api older than 3.0
+				return Optional.absent();
+			} catch (NoSuchMethodException ex) {
+				return Optional.absent();
+			}
+		}
+	}
+}
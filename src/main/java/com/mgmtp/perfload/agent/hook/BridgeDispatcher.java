@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import java.util.concurrent.Callable;
+
+import com.mgmtp.perfload.agent.bootstrap.HookDispatcher;
+
+/**
+ * Forwards hook calls from the {@link com.mgmtp.perfload.agent.bootstrap.HookBridge} to the
+ * {@link HookManager}. Must only be loaded after the bridge has been added to the bootstrap class
+ * path.
+ * 
+ * @author rnaegele
+ */
+public class BridgeDispatcher implements HookDispatcher {
+
+	@Override
+	public boolean isMeasuringEnabled(final int switchId) {
+		return HookManager.isMeasuringEnabled(switchId);
+	}
+
+	@Override
+	public void enterMeasuringHook(final Object source, final String fullyQualifiedMethodName, final Object[] args) {
+		if (args != null) {
+			HookManager.enterMeasuringHook(source, fullyQualifiedMethodName, args);
+		} else {
+			HookManager.enterMeasuringHook(source, fullyQualifiedMethodName);
+		}
+	}
+
+	@Override
+	public void exitMeasuringHook(final Object source, final Throwable throwable, final String fullyQualifiedMethodName) {
+		HookManager.exitMeasuringHook(source, throwable, fullyQualifiedMethodName, true);
+	}
+
+	@Override
+	public Runnable wrapRunnable(final Runnable task, final Object executor) {
+		return HookManager.wrapRunnable(task, executor);
+	}
+
+	@Override
+	public <V> Callable<V> wrapCallable(final Callable<V> task, final Object executor) {
+		return HookManager.wrapCallable(task, executor);
+	}
+
+	@Override
+	public void enterExecutorTask(final Object task) {
+		HookManager.enterExecutorTask(task);
+	}
+
+	@Override
+	public void exitExecutorTask(final Object task) {
+		HookManager.exitExecutorTask(task);
+	}
+
+	@Override
+	public void captureForkJoinTask(final Object task) {
+		HookManager.captureForkJoinTask(task);
+	}
+
+	@Override
+	public Object enterForkJoinTask(final Object task) {
+		return HookManager.enterForkJoinTask(task);
+	}
+
+	@Override
+	public void exitForkJoinTask(final Object previous) {
+		HookManager.exitForkJoinTask(previous);
+	}
+
+	@Override
+	public Object enterCallSite() {
+		return HookManager.enterCallSite();
+	}
+
+	@Override
+	public void exitCallSite(final Object timeInterval, final String uri, final String uriAlias) {
+		HookManager.exitCallSite(timeInterval, uri, uriAlias);
+	}
+
+	@Override
+	public void prepareHttpRequest(final Object connection) {
+		HookManager.prepareHttpRequest(connection);
+	}
+
+	@Override
+	public void enterHttpRequest(final Object connection) {
+		HookManager.enterHttpRequest(connection);
+	}
+
+	@Override
+	public void exitHttpRequest(final Object connection, final Throwable throwable) {
+		HookManager.exitHttpRequest(connection, throwable);
+	}
+}
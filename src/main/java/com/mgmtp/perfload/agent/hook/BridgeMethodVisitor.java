@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * An ASM {@link MethodVisitor} that redirects woven calls to the {@link HookManager} to the
+ * {@link com.mgmtp.perfload.agent.bootstrap.HookBridge}. Used for classes loaded by the bootstrap
+ * class loader. Must be placed between the hook visitors and the class writer.
+ * 
+ * @author rnaegele
+ */
+public class BridgeMethodVisitor extends MethodVisitor {
+
+	public static final String BRIDGE_OWNER = "com/mgmtp/perfload/agent/bootstrap/HookBridge";
+
+	private static final String OWNER = HookManager.class.getName().replace('.', '/');
+
+	public BridgeMethodVisitor(final MethodVisitor mv) {
+		super(Opcodes.ASM4, mv);
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public void visitMethodInsn(final int opcode, final String owner, final String name, final String desc) {
+		super.visitMethodInsn(opcode, OWNER.equals(owner) ? BRIDGE_OWNER : owner, name, desc);
+	}
+}
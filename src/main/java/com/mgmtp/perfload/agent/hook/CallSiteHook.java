@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.util.ExecutionParams;
+import com.mgmtp.perfload.agent.util.OperationRegistry;
+import com.mgmtp.perfload.agent.util.ThreadState;
+import com.mgmtp.perfload.logging.ResultLogger;
+import com.mgmtp.perfload.logging.TimeInterval;
+
+/**
+ * Hook for timing calls at the call site. The {@link TimeInterval} is kept in a local variable of
+ * the calling method, so no thread-local state is needed.
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class CallSiteHook {
+
+	public static final String URI_PREFIX = "[call] ";
+
+	private final OperationRegistry operationRegistry;
+	private final boolean loadTestTrafficOnly;
+
+	@Inject
+	CallSiteHook(final OperationRegistry operationRegistry, final Config config) {
+		this.operationRegistry = operationRegistry;
+		this.loadTestTrafficOnly = config.getActivation().isLoadTestTrafficOnly();
+	}
+
+	/**
+	 * Starts timing a call.
+	 * 
+	 * @return the started time interval that must be passed to
+	 *         {@link #stop(Object, String, String)}, or {@code null} if the call is not timed
+	 */
+	public Object start() {
+		if (loadTestTrafficOnly && !ThreadState.hasExecutionParams()) {
+			return null;
+		}
+		TimeInterval ti = new TimeInterval();
+		ti.start();
+		return ti;
+	}
+
+	/**
+	 * Stops timing a call and logs it under the current perfLoad operation.
+	 * 
+	 * @param timeInterval
+	 *            the time interval returned by {@link #start()}
+	 * @param uri
+	 *            the uri identifying the call site
+	 * @param uriAlias
+	 *            the uri identifying the called method
+	 */
+	public void stop(final Object timeInterval, final String uri, final String uriAlias) {
+		if (!(timeInterval instanceof TimeInterval)) {
+			return;
+		}
+		TimeInterval ti = (TimeInterval) timeInterval;
+		ti.stop();
+
+		ExecutionParams executionParams = ThreadState.current().getExecutionParams();
+
+		ResultLogger resultLogger = operationRegistry.getResultLogger(executionParams);
+		resultLogger.logResult(null, System.currentTimeMillis(), ti, ti, "AGENT", uri, uriAlias,
+				executionParams.getExecutionId(), executionParams.getRequestId());
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import static com.mgmtp.perfload.agent.util.ClassNameUtils.computeFullyQualifiedMethodName;
+
+import java.util.List;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+import com.mgmtp.perfload.agent.config.CallSite;
+import com.mgmtp.perfload.agent.util.ClassHierarchy;
+
+/**
+ * An ASM {@link MethodVisitor} that weaves the {@link HookManager} around calls to configured
+ * methods. The called class is not modified. Calls that throw an exception are not logged.
+ * 
+ * @author rnaegele
+ */
+public class CallSiteHookMethodVisitor extends AdviceAdapter {
+
+	private static final String ENTER_HOOK_DESC = new StringBuilder(100)
+			.append("()")
+			.append(Type.getDescriptor(Object.class))
+			.toString();
+
+	private static final String EXIT_HOOK_DESC = new StringBuilder(100)
+			.append('(')
+			.append(Type.getDescriptor(Object.class))
+			.append(Type.getDescriptor(String.class))
+			.append(Type.getDescriptor(String.class))
+			.append(")V")
+			.toString();
+
+	private static final String OWNER = HookManager.class.getName().replace('.', '/');
+
+	private final String callerName;
+	private final List<CallSite> callSites;
+	private final ClassHierarchy classHierarchy;
+	private final ClassLoader loader;
+
+	// calls cannot overlap within a method, so a single local variable is sufficient
+	private int timeIntervalLocal = -1;
+
+	/**
+	 * @param callSites
+	 *            the rules matching the calling class
+	 * @param loader
+	 *            the class loader of the calling class used for resolving the called class'
+	 *            super types
+	 */
+	public CallSiteHookMethodVisitor(final int access, final String className, final String methodName, final String desc,
+			final List<CallSite> callSites, final ClassHierarchy classHierarchy, final ClassLoader loader,
+			final MethodVisitor mv) {
+		super(ASM4, mv, access, methodName, desc);
+		this.callerName = computeFullyQualifiedMethodName(className, methodName, Type.getArgumentTypes(desc));
+		this.callSites = callSites;
+		this.classHierarchy = classHierarchy;
+		this.loader = loader;
+	}
+
+	@Override
+	protected void onMethodEnter() {
+		// initialize the local, so it is defined in all stack map frames; calls in a constructor
+		// before the super constructor call are not timed
+		visitInsn(ACONST_NULL);
+		timeIntervalLocal = newLocal(Type.getType(Object.class));
+		storeLocal(timeIntervalLocal);
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public void visitMethodInsn(final int opcode, final String owner, final String name, final String desc) {
+		if (timeIntervalLocal < 0 || !isTimed(owner, name)) {
+			super.visitMethodInsn(opcode, owner, name, desc);
+			return;
+		}
+
+		String target = computeFullyQualifiedMethodName(owner.replace('/', '.'), name, Type.getArgumentTypes(desc));
+		onCallSiteTimed(target);
+
+		// the arguments are already on the stack
+		mv.visitMethodInsn(INVOKESTATIC, OWNER, "enterCallSite", ENTER_HOOK_DESC);
+		storeLocal(timeIntervalLocal);
+		super.visitMethodInsn(opcode, owner, name, desc);
+		loadLocal(timeIntervalLocal);
+		push(CallSiteHook.URI_PREFIX + callerName + " -> " + target);
+		push(CallSiteHook.URI_PREFIX + target);
+		mv.visitMethodInsn(INVOKESTATIC, OWNER, "exitCallSite", EXIT_HOOK_DESC);
+	}
+
+	/**
+	 * Called when a call is timed. Does nothing by default.
+	 * 
+	 * @param target
+	 *            the fully qualified name of the called method
+	 */
+	protected void onCallSiteTimed(final String target) {
+		// no-op
+	}
+
+	private boolean isTimed(final String owner, final String name) {
+		for (CallSite callSite : callSites) {
+			if (callSite.getMethodName().equals(name)
+					&& classHierarchy.isSubtypeOf(loader, owner, callSite.getOwner().replace('.', '/'))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import static com.mgmtp.perfload.agent.util.ClassNameUtils.abbreviatePackageName;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.util.ExecutionParams;
+import com.mgmtp.perfload.agent.util.OperationRegistry;
+import com.mgmtp.perfload.agent.util.ThreadState;
+import com.mgmtp.perfload.logging.ResultLogger;
+import com.mgmtp.perfload.logging.TimeInterval;
+
+/**
+ * Propagates the perfLoad execution params of the current thread to tasks submitted to thread
+ * pools. {@link Runnable}s and {@link Callable}s are wrapped, so the execution params captured at
+ * submission are set while they run. Fork/join tasks cannot be wrapped without changing their
+ * semantics, so their execution params are kept in a map with weak keys instead.
+ * <p>
+ * Tasks submitted to a {@link ThreadPoolExecutor} are not wrapped either, since the executor
+ * exposes them via its queue, {@code beforeExecute}, {@code afterExecute}, {@code remove}, and
+ * {@code shutdownNow}. Their execution params are kept by task identity and set by the worker
+ * thread in {@code beforeExecute}, see {@link ExecutorWorkerHookMethodVisitor}. This requires the
+ * worker hooks to be woven into the {@code beforeExecute} and {@code afterExecute} methods the
+ * executor's class inherits or overrides, typically those of {@link ThreadPoolExecutor} itself,
+ * which must then be configured as executor. The transformer reports the woven hooks by class
+ * name. Tasks of other thread pool executors are wrapped like those of any other executor, and a
+ * message is logged once per executor class. Tasks that are {@link Future}s or {@link Comparable},
+ * e. g. for priority queues, are never wrapped and are only propagated by thread pool executors
+ * with worker hooks. A task submitted several times gets the execution params of each submission
+ * in turn.
+ * </p>
+ * <p>
+ * Nothing is captured if the submitting thread does not have any execution params. Otherwise, the
+ * only allocation is the wrapper (or the map entry, respectively) since execution params
+ * snapshots are shared by all tasks submitted during a request.
+ * </p>
+ * <p>
+ * Optionally, the time tasks wait in the executor's queue is measured. In this case, all tasks
+ * are captured, or only those submitted during perfLoad requests if only load test traffic is
+ * measured. Tasks submitted by static methods are not measured. The queue wait time is logged per
+ * executor class and per perfLoad operation as {@code [queue] <executor>}, where
+ * {@code <executor>} is the abbreviated class name of the executor.
+ * </p>
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class ContextPropagator {
+
+	private static final ExecutionParams EMPTY = new ExecutionParams().snapshot();
+
+	private final AgentLogger logger;
+	private final OperationRegistry operationRegistry;
+	private final boolean queueWaitTime;
+	private final boolean loadTestTrafficOnly;
+
+	// weak keys are compared by identity
+	private final ConcurrentMap<Object, ExecutionParams> forkJoinTaskParams = new MapMaker().weakKeys().makeMap();
+	private final ConcurrentMap<Object, TaskContext> executorTaskContexts = new MapMaker().weakKeys().makeMap();
+	private final ConcurrentMap<Class<?>, String> queueWaitUris = new MapMaker().weakKeys().makeMap();
+
+	// worker hooks as <class name>.<method name>, and whether they run for an executor class
+	private final Set<String> workerHookMethods = Sets.newConcurrentHashSet();
+	private final ConcurrentMap<Class<?>, Boolean> workerHookExecutors = new MapMaker().weakKeys().makeMap();
+
+	@Inject
+	ContextPropagator(final AgentLogger logger, final OperationRegistry operationRegistry, final Config config) {
+		this.logger = logger;
+		this.operationRegistry = operationRegistry;
+		this.queueWaitTime = config.getContextPropagation().isQueueWaitTime();
+		this.loadTestTrafficOnly = config.getActivation().isLoadTestTrafficOnly();
+	}
+
+	/**
+	 * Wraps the specified task, so it runs with the execution params of the current thread.
+	 * 
+	 * @param executor
+	 *            the executor the task is submitted to
+	 * @return the wrapped task, or the task itself if there is nothing to propagate or measure
+	 */
+	public Runnable wrap(final Runnable task, final Object executor) {
+		if (task == null || task instanceof ContextRunnable) {
+			return task;
+		}
+		if (hasWorkerHooks(executor)) {
+			captureExecutorTask(task, executor);
+			return task;
+		}
+		if (task instanceof Future || task instanceof Comparable) {
+			// the executor may rely on the task's type
+			return task;
+		}
+		TaskContext context = captureTaskContext(executor);
+		return context != null ? new ContextRunnable(task, context) : task;
+	}
+
+	/**
+	 * Wraps the specified task, so it runs with the execution params of the current thread.
+	 * 
+	 * @param executor
+	 *            the executor the task is submitted to
+	 * @return the wrapped task, or the task itself if there is nothing to propagate or measure
+	 */
+	public <V> Callable<V> wrap(final Callable<V> task, final Object executor) {
+		if (task == null || task instanceof ContextCallable || task instanceof Comparable) {
+			return task;
+		}
+		if (hasWorkerHooks(executor)) {
+			// reaches the queue via execute
+			return task;
+		}
+		TaskContext context = captureTaskContext(executor);
+		return context != null ? new ContextCallable<V>(task, context) : task;
+	}
+
+	/**
+	 * Records that the worker hook was woven into the specified method of a thread pool executor
+	 * class. Called by the transformer.
+	 * 
+	 * @param className
+	 *            the fully qualified class name
+	 * @param methodName
+	 *            {@code beforeExecute} or {@code afterExecute}
+	 */
+	public void workerHookWoven(final String className, final String methodName) {
+		workerHookMethods.add(className + '.' + methodName);
+		workerHookExecutors.clear();
+	}
+
+	/**
+	 * Forgets the worker hooks of a class whose transformation did not take effect.
+	 * 
+	 * @param className
+	 *            the fully qualified class name
+	 */
+	public void workerHooksRemoved(final String className) {
+		if (workerHookMethods.remove(className + ".beforeExecute") | workerHookMethods.remove(className + ".afterExecute")) {
+			workerHookExecutors.clear();
+		}
+	}
+
+	/**
+	 * Thread pool executors expose the tasks in their queue, except for scheduled ones, which
+	 * decorate them. Tasks are only captured by identity if the worker hooks run for the executor.
+	 */
+	private boolean hasWorkerHooks(final Object executor) {
+		if (!(executor instanceof ThreadPoolExecutor) || executor instanceof ScheduledThreadPoolExecutor) {
+			return false;
+		}
+		Class<?> executorClass = executor.getClass();
+		Boolean installed = workerHookExecutors.get(executorClass);
+		if (installed == null) {
+			installed = isWorkerHookWoven(executorClass, "beforeExecute", Thread.class, Runnable.class)
+					&& isWorkerHookWoven(executorClass, "afterExecute", Runnable.class, Throwable.class);
+			if (workerHookExecutors.put(executorClass, installed) == null && !installed) {
+				logger.writeln("No worker hooks for executor " + executorClass.getName() + ", tasks are wrapped. Configure "
+						+ ThreadPoolExecutor.class.getName()
+						+ " as executor in order to propagate execution params without wrapping.");
+			}
+		}
+		return installed;
+	}
+
+	/**
+	 * Checks whether the hook was woven into the implementation of the method the worker calls,
+	 * i. e. the one declared by the executor's class or its nearest super class.
+	 */
+	private boolean isWorkerHookWoven(final Class<?> executorClass, final String methodName, final Class<?>... parameterTypes) {
+		for (Class<?> clazz = executorClass; clazz != null; clazz = clazz.getSuperclass()) {
+			try {
+				clazz.getDeclaredMethod(methodName, parameterTypes);
+			} catch (NoSuchMethodException ex) {
+				continue;
+			}
+			return workerHookMethods.contains(clazz.getName() + '.' + methodName);
+		}
+		return false;
+	}
+
+	private void captureExecutorTask(final Runnable task, final Object executor) {
+		TaskContext context = captureTaskContext(executor);
+		if (context != null) {
+			// a task submitted again before it ran gets its contexts in submission order
+			TaskContext pending = executorTaskContexts.putIfAbsent(task, context);
+			while (pending != null && !executorTaskContexts.replace(task, pending, pending.append(context))) {
+				pending = executorTaskContexts.putIfAbsent(task, context);
+			}
+		}
+	}
+
+	private TaskContext pollExecutorTaskContext(final Object task) {
+		while (true) {
+			TaskContext context = executorTaskContexts.get(task);
+			if (context == null) {
+				return null;
+			}
+			if (context.next == null ? executorTaskContexts.remove(task, context) : executorTaskContexts.replace(task,
+					context, context.next)) {
+				return context;
+			}
+		}
+	}
+
+	private TaskContext captureTaskContext(final Object executor) {
+		ExecutionParams snapshot = captureSnapshot();
+		// static submission methods do not have an executor to log the queue wait time for
+		if (queueWaitTime && executor != null && (snapshot != null || !loadTestTrafficOnly)) {
+			return new TaskContext(snapshot, getQueueWaitUri(executor), startQueueWaitTime());
+		}
+		return snapshot != null ? new TaskContext(snapshot, null, null) : null;
+	}
+
+	/**
+	 * Sets the execution params captured for the specified task of a thread pool executor, if
+	 * any. Called by the worker thread before the task runs. Calls for a task that has already
+	 * been entered are ignored, so the hook may be woven into {@code beforeExecute} of an executor
+	 * and its super class.
+	 */
+	public void enterExecutorTask(final Object task) {
+		if (task == null) {
+			return;
+		}
+		ThreadState state = ThreadState.peek();
+		if (state != null && state.getExecutorTask() == task) {
+			return;
+		}
+		TaskContext context = pollExecutorTaskContext(task);
+		if (context != null) {
+			ExecutionParams previous = enter(context);
+			ThreadState.current().setExecutorTask(task, previous);
+		}
+	}
+
+	/**
+	 * Restores the execution params changed by {@link #enterExecutorTask(Object)}. Called by the
+	 * worker thread after the task has run.
+	 */
+	public void exitExecutorTask(final Object task) {
+		ThreadState state = task != null ? ThreadState.peek() : null;
+		if (state != null && state.getExecutorTask() == task) {
+			ExecutionParams previous = state.getExecutorTaskPrevious();
+			state.setExecutorTask(null, null);
+			exit(previous);
+			ThreadState.removeIfIdle();
+		}
+	}
+
+	/**
+	 * Captures the execution params of the current thread for the specified fork/join task.
+	 */
+	public void capture(final Object forkJoinTask) {
+		if (forkJoinTask != null) {
+			ExecutionParams snapshot = captureSnapshot();
+			if (snapshot != null) {
+				forkJoinTaskParams.put(forkJoinTask, snapshot);
+			}
+		}
+	}
+
+	/**
+	 * Sets the execution params captured for the specified fork/join task, if any.
+	 * 
+	 * @return the previous execution params that must be passed to {@link #exitTask(Object)}, or
+	 *         {@code null} if nothing was changed
+	 */
+	public Object enterTask(final Object forkJoinTask) {
+		ExecutionParams snapshot = forkJoinTaskParams.remove(forkJoinTask);
+		return snapshot != null ? enter(snapshot) : null;
+	}
+
+	/**
+	 * Restores the execution params returned by {@link #enterTask(Object)}.
+	 */
+	public void exitTask(final Object previous) {
+		exit((ExecutionParams) previous);
+	}
+
+	private ExecutionParams captureSnapshot() {
+		// don't create state for threads that don't have any
+		ThreadState state = ThreadState.peek();
+		if (state == null) {
+			return null;
+		}
+		ExecutionParams executionParams = state.getExecutionParams();
+		return executionParams.isEmpty() ? null : executionParams.snapshot();
+	}
+
+	private String getQueueWaitUri(final Object executor) {
+		Class<?> executorClass = executor.getClass();
+		String uri = queueWaitUris.get(executorClass);
+		if (uri == null) {
+			uri = "[queue] " + abbreviatePackageName(executorClass.getName());
+			queueWaitUris.put(executorClass, uri);
+		}
+		return uri;
+	}
+
+	private static TimeInterval startQueueWaitTime() {
+		TimeInterval ti = new TimeInterval();
+		ti.start();
+		return ti;
+	}
+
+	void logQueueWaitTime(final ExecutionParams snapshot, final String uri, final TimeInterval ti) {
+		ti.stop();
+		ExecutionParams executionParams = snapshot != null ? snapshot : EMPTY;
+		ResultLogger resultLogger = operationRegistry.getResultLogger(executionParams);
+		resultLogger.logResult(null, System.currentTimeMillis(), ti, ti, "AGENT", uri, uri, executionParams.getExecutionId(),
+				executionParams.getRequestId());
+	}
+
+	/**
+	 * Called before a captured task runs.
+	 * 
+	 * @return the previous execution params that must be passed to
+	 *         {@link #exit(ExecutionParams)}, or {@code null} if nothing was changed
+	 */
+	ExecutionParams enter(final TaskContext context) {
+		if (context.queueWaitTime != null) {
+			logQueueWaitTime(context.snapshot, context.queueWaitUri, context.queueWaitTime);
+		}
+		return context.snapshot != null ? enter(context.snapshot) : null;
+	}
+
+	ExecutionParams enter(final ExecutionParams snapshot) {
+		ExecutionParams executionParams = ThreadState.current().getExecutionParams();
+		ExecutionParams previous = executionParams.isEmpty() ? EMPTY : executionParams.snapshot();
+		executionParams.restore(snapshot);
+		return previous;
+	}
+
+	void exit(final ExecutionParams previous) {
+		if (previous != null) {
+			ThreadState.current().getExecutionParams().restore(previous);
+			// pool threads must not keep state between tasks
+			ThreadState.removeIfIdle();
+		}
+	}
+
+	/**
+	 * @return the number of fork/join tasks with captured execution params that have not run yet
+	 */
+	public int getPendingForkJoinTasks() {
+		return forkJoinTaskParams.size();
+	}
+
+	/**
+	 * The execution params and queue wait time captured for a task. The contexts of a task
+	 * submitted several times are linked in submission order.
+	 */
+	static final class TaskContext {
+		final ExecutionParams snapshot;
+		final String queueWaitUri;
+		final TimeInterval queueWaitTime;
+		final TaskContext next;
+
+		TaskContext(final ExecutionParams snapshot, final String queueWaitUri, final TimeInterval queueWaitTime) {
+			this(snapshot, queueWaitUri, queueWaitTime, null);
+		}
+
+		private TaskContext(final ExecutionParams snapshot, final String queueWaitUri, final TimeInterval queueWaitTime,
+				final TaskContext next) {
+			this.snapshot = snapshot;
+			this.queueWaitUri = queueWaitUri;
+			this.queueWaitTime = queueWaitTime;
+			this.next = next;
+		}
+
+		/**
+		 * @return a copy of this chain with the specified context appended
+		 */
+		TaskContext append(final TaskContext context) {
+			return new TaskContext(snapshot, queueWaitUri, queueWaitTime, next != null ? next.append(context) : context);
+		}
+	}
+
+	final class ContextRunnable implements Runnable {
+		private final Runnable delegate;
+		private final TaskContext context;
+
+		ContextRunnable(final Runnable delegate, final TaskContext context) {
+			this.delegate = delegate;
+			this.context = context;
+		}
+
+		@Override
+		public void run() {
+			ExecutionParams previous = enter(context);
+			try {
+				delegate.run();
+			} finally {
+				exit(previous);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+	}
+
+	final class ContextCallable<V> implements Callable<V> {
+		private final Callable<V> delegate;
+		private final TaskContext context;
+
+		ContextCallable(final Callable<V> delegate, final TaskContext context) {
+			this.delegate = delegate;
+			this.context = context;
+		}
+
+		@Override
+		public V call() throws Exception {
+			ExecutionParams previous = enter(context);
+			try {
+				return delegate.call();
+			} finally {
+				exit(previous);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * An ASM {@link MethodVisitor} that weaves the {@link HookManager} into an executor's task
+ * submission method, so the submitted tasks are run with the submitting thread's perfLoad
+ * execution params. {@link Runnable} and {@link java.util.concurrent.Callable} arguments are
+ * passed to the {@link ContextPropagator}, which replaces them with wrappers or captures them by
+ * identity, fork/join task arguments are captured. The executor instance is passed along for
+ * measuring queue wait times.
+ * 
+ * @author rnaegele
+ */
+public class ExecutorHookMethodVisitor extends AdviceAdapter {
+
+	private static final String RUNNABLE = "java/lang/Runnable";
+	private static final String CALLABLE = "java/util/concurrent/Callable";
+	static final String FORK_JOIN_TASK = "java/util/concurrent/ForkJoinTask";
+
+	private static final String OWNER = HookManager.class.getName().replace('.', '/');
+
+	private final Type[] argumentTypes;
+
+	public ExecutorHookMethodVisitor(final int access, final String methodName, final String desc, final MethodVisitor mv) {
+		super(ASM4, mv, access, methodName, desc);
+		this.argumentTypes = Type.getArgumentTypes(desc);
+	}
+
+	/**
+	 * Checks whether the specified method submits a task to an executor.
+	 * 
+	 * @param methodName
+	 *            the method name
+	 * @param desc
+	 *            the method descriptor
+	 * @return {@code true} if the method is called {@code execute}, {@code submit}, or
+	 *         {@code invoke} and has a task argument
+	 */
+	public static boolean isTaskSubmission(final String methodName, final String desc) {
+		if ("execute".equals(methodName) || "submit".equals(methodName) || "invoke".equals(methodName)) {
+			for (Type argumentType : Type.getArgumentTypes(desc)) {
+				if (isTaskType(argumentType)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isTaskType(final Type type) {
+		if (type.getSort() != Type.OBJECT) {
+			return false;
+		}
+		String internalName = type.getInternalName();
+		return RUNNABLE.equals(internalName) || CALLABLE.equals(internalName) || FORK_JOIN_TASK.equals(internalName);
+	}
+
+	@Override
+	protected void onMethodEnter() {
+		for (int i = 0; i < argumentTypes.length; ++i) {
+			if (!isTaskType(argumentTypes[i])) {
+				continue;
+			}
+			String internalName = argumentTypes[i].getInternalName();
+			loadArg(i);
+			if (FORK_JOIN_TASK.equals(internalName)) {
+				mv.visitMethodInsn(INVOKESTATIC, OWNER, "captureForkJoinTask", "(Ljava/lang/Object;)V");
+			} else {
+				if ((methodAccess & ACC_STATIC) != 0) {
+					visitInsn(ACONST_NULL);
+				} else {
+					loadThis();
+				}
+				String wrapMethod = RUNNABLE.equals(internalName) ? "wrapRunnable" : "wrapCallable";
+				mv.visitMethodInsn(INVOKESTATIC, OWNER, wrapMethod, "(L" + internalName + ";Ljava/lang/Object;)L" + internalName
+						+ ";");
+				storeArg(i);
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import org.objectweb.asm.MethodVisitor;
+
+/**
+ * An ASM {@link MethodVisitor} that weaves the {@link HookManager} into the worker callbacks of a
+ * {@link java.util.concurrent.ThreadPoolExecutor}, so tasks run with the execution params captured
+ * at submission without being wrapped. {@code beforeExecute} sets them on entry,
+ * {@code afterExecute} restores them in a {@code finally} block.
+ * 
+ * @author rnaegele
+ */
+public class ExecutorWorkerHookMethodVisitor extends TryFinallyAdviceAdapter {
+
+	private static final String BEFORE_EXECUTE_DESC = "(Ljava/lang/Thread;Ljava/lang/Runnable;)V";
+	private static final String AFTER_EXECUTE_DESC = "(Ljava/lang/Runnable;Ljava/lang/Throwable;)V";
+
+	private static final String OWNER = HookManager.class.getName().replace('.', '/');
+
+	private final boolean beforeExecute;
+
+	public ExecutorWorkerHookMethodVisitor(final int access, final String className, final String methodName,
+			final String desc, final MethodVisitor mv) {
+		super(mv, access, className, methodName, desc);
+		this.beforeExecute = "beforeExecute".equals(methodName);
+	}
+
+	/**
+	 * Checks whether the specified method is a worker callback of a thread pool executor.
+	 * 
+	 * @param methodName
+	 *            the method name
+	 * @param desc
+	 *            the method descriptor
+	 * @return {@code true} for {@code beforeExecute(Thread, Runnable)} and
+	 *         {@code afterExecute(Runnable, Throwable)}
+	 */
+	public static boolean isTaskExecution(final int access, final String methodName, final String desc) {
+		return (access & ACC_ABSTRACT) == 0
+				&& ("beforeExecute".equals(methodName) && BEFORE_EXECUTE_DESC.equals(desc)
+				|| "afterExecute".equals(methodName) && AFTER_EXECUTE_DESC.equals(desc));
+	}
+
+	@Override
+	protected void invokeEnterHook() {
+		if (beforeExecute) {
+			loadArg(1);
+			mv.visitMethodInsn(INVOKESTATIC, OWNER, "enterExecutorTask", "(Ljava/lang/Object;)V");
+		}
+	}
+
+	@Override
+	protected void invokeExitHook(final boolean throwableOnStack) {
+		if (!beforeExecute) {
+			loadArg(0);
+			mv.visitMethodInsn(INVOKESTATIC, OWNER, "exitExecutorTask", "(Ljava/lang/Object;)V");
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * An ASM {@link MethodVisitor} that weaves the {@link HookManager} into
+ * {@code java.util.concurrent.ForkJoinTask}. {@code fork()} captures the forking thread's perfLoad
+ * execution params, which are set while {@code doExec()} runs the task. {@code doExec()} handles
+ * exceptions thrown by the task itself, so it is sufficient to restore the execution params on
+ * return.
+ * 
+ * @author rnaegele
+ */
+public class ForkJoinTaskHookMethodVisitor extends AdviceAdapter {
+
+	public static final String FORK_JOIN_TASK_CLASS = ExecutorHookMethodVisitor.FORK_JOIN_TASK.replace('/', '.');
+
+	private static final String OWNER = HookManager.class.getName().replace('.', '/');
+
+	private final boolean fork;
+	private int previousParamsLocal;
+
+	public ForkJoinTaskHookMethodVisitor(final int access, final String methodName, final String desc, final MethodVisitor mv) {
+		super(ASM4, mv, access, methodName, desc);
+		this.fork = "fork".equals(methodName);
+	}
+
+	/**
+	 * @return {@code true} if the specified {@code ForkJoinTask} method is instrumented
+	 */
+	public static boolean isInstrumented(final String methodName) {
+		return "fork".equals(methodName) || "doExec".equals(methodName);
+	}
+
+	@Override
+	protected void onMethodEnter() {
+		loadThis();
+		if (fork) {
+			mv.visitMethodInsn(INVOKESTATIC, OWNER, "captureForkJoinTask", "(Ljava/lang/Object;)V");
+		} else {
+			mv.visitMethodInsn(INVOKESTATIC, OWNER, "enterForkJoinTask", "(Ljava/lang/Object;)Ljava/lang/Object;");
+			previousParamsLocal = newLocal(Type.getType(Object.class));
+			storeLocal(previousParamsLocal);
+		}
+	}
+
+	@Override
+	protected void onMethodExit(final int opcode) {
+		if (!fork) {
+			loadLocal(previousParamsLocal);
+			mv.visitMethodInsn(INVOKESTATIC, OWNER, "exitForkJoinTask", "(Ljava/lang/Object;)V");
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Helper for the stack map frames of woven branches. Class files are written without
+ * {@code COMPUTE_FRAMES}, so adapters adding branch targets must visit the frames themselves.
+ * 
+ * @author rnaegele
+ */
+final class FrameLocals {
+
+	private FrameLocals() {
+		// static helpers only
+	}
+
+	/**
+	 * Computes the frame's local variables at the start of a method, i. e. {@code this} and the
+	 * method arguments.
+	 * 
+	 * @param classInternalName
+	 *            the internal name of the method's class
+	 * @param access
+	 *            the method's access flags
+	 * @param desc
+	 *            the method's descriptor
+	 * @param extraLocals
+	 *            additional locals appended after the arguments, e. g. locals created by the
+	 *            adapter
+	 */
+	static Object[] argumentLocals(final String classInternalName, final int access, final String desc,
+			final Object... extraLocals) {
+		Type[] argumentTypes = Type.getArgumentTypes(desc);
+		boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
+		int offset = isStatic ? 0 : 1;
+		Object[] locals = new Object[argumentTypes.length + offset + extraLocals.length];
+		if (!isStatic) {
+			locals[0] = classInternalName;
+		}
+		for (int i = 0; i < argumentTypes.length; ++i) {
+			Type type = argumentTypes[i];
+			switch (type.getSort()) {
+				case Type.BOOLEAN:
+				case Type.CHAR:
+				case Type.BYTE:
+				case Type.SHORT:
+				case Type.INT:
+					locals[i + offset] = Opcodes.INTEGER;
+					break;
+				case Type.FLOAT:
+					locals[i + offset] = Opcodes.FLOAT;
+					break;
+				case Type.LONG:
+					locals[i + offset] = Opcodes.LONG;
+					break;
+				case Type.DOUBLE:
+					locals[i + offset] = Opcodes.DOUBLE;
+					break;
+				default:
+					locals[i + offset] = type.getInternalName();
+			}
+		}
+		System.arraycopy(extraLocals, 0, locals, argumentTypes.length + offset, extraLocals.length);
+		return locals;
+	}
+}
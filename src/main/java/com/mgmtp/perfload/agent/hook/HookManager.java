@@ -15,6 +15,9 @@
  */
 package com.mgmtp.perfload.agent.hook;
 
+import java.util.concurrent.Callable;
+
+import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.mgmtp.perfload.agent.InjectorHolder;
 import com.mgmtp.perfload.agent.annotations.Measuring;
@@ -30,32 +33,173 @@ public class HookManager {
 	private static final Key<Hook> MEASURING_KEY = Key.get(Hook.class, Measuring.class);
 	private static final Key<Hook> SERVLET_API_KEY = Key.get(Hook.class, ServletApi.class);
 
+	private static volatile Hooks hooks;
+
+	public static boolean isMeasuringEnabled(final int switchId) {
+		boolean[] enabled = InstrumentationSwitches.published;
+		if (switchId < enabled.length) {
+			return enabled[switchId];
+		}
+		// not published yet
+		return hooks().switches.isEnabled(switchId);
+	}
+
 	public static void enterMeasuringHook(final Object source, final String fullyQualifiedMethodName) {
-		getHook(MEASURING_KEY).start(source, fullyQualifiedMethodName);
+		hooks().measuringHook.start(source, fullyQualifiedMethodName);
 	}
 
 	public static void enterMeasuringHook(final Object source, final String fullyQualifiedMethodName, final Object[] args) {
-		getHook(MEASURING_KEY).start(source, fullyQualifiedMethodName, args);
+		hooks().measuringHook.start(source, fullyQualifiedMethodName, args);
 	}
 
-	public static void exitMeasuringHook(final Object source, final Throwable throwable, final String fullyQualifiedMethodName) {
-		getHook(MEASURING_KEY).stop(source, throwable, fullyQualifiedMethodName);
+	/**
+	 * Variant for constructors, whose code before the super constructor call cannot branch on the
+	 * switch.
+	 * 
+	 * @param args
+	 *            the method arguments or {@code null} if none are needed
+	 */
+	public static void enterMeasuringHook(final Object source, final String fullyQualifiedMethodName, final Object[] args,
+			final boolean enabled) {
+		if (enabled) {
+			if (args != null) {
+				hooks().measuringHook.start(source, fullyQualifiedMethodName, args);
+			} else {
+				hooks().measuringHook.start(source, fullyQualifiedMethodName);
+			}
+		}
 	}
 
+	/**
+	 * @param enabled
+	 *            the state of the method's switch at the time it was entered, so a switch toggled
+	 *            during the call does not unbalance the measurement stack
+	 */
 	public static void exitMeasuringHook(final Object source, final Throwable throwable, final String fullyQualifiedMethodName,
+			final boolean enabled) {
+		if (enabled) {
+			hooks().measuringHook.stop(source, throwable, fullyQualifiedMethodName);
+		}
+	}
+
+	public static void enterServletApiHook(final Object source, final String fullyQualifiedMethodName, final Object[] args) {
+		hooks().servletApiHook().start(source, fullyQualifiedMethodName, args);
+	}
+
+	public static Object wrapServletResponse(final Object response) {
+		return hooks().responseWrapper.wrap(response);
+	}
+
+	public static void exitServletApiHook(final Object source, final Throwable throwable, final String fullyQualifiedMethodName,
 			final Object[] args) {
-		getHook(MEASURING_KEY).stop(source, throwable, fullyQualifiedMethodName, args);
+		hooks().servletApiHook().stop(source, throwable, fullyQualifiedMethodName, args);
+	}
+
+	public static Runnable wrapRunnable(final Runnable task, final Object executor) {
+		return hooks().contextPropagator.wrap(task, executor);
+	}
+
+	public static <V> Callable<V> wrapCallable(final Callable<V> task, final Object executor) {
+		return hooks().contextPropagator.wrap(task, executor);
+	}
+
+	public static void enterExecutorTask(final Object task) {
+		hooks().contextPropagator.enterExecutorTask(task);
+	}
+
+	public static void exitExecutorTask(final Object task) {
+		hooks().contextPropagator.exitExecutorTask(task);
+	}
+
+	public static void captureForkJoinTask(final Object task) {
+		hooks().contextPropagator.capture(task);
 	}
 
-	public static void enterServletApiHook(final Object source, final Object[] args) {
-		getHook(SERVLET_API_KEY).start(source, null, args);
+	public static Object enterForkJoinTask(final Object task) {
+		return hooks().contextPropagator.enterTask(task);
 	}
 
-	public static void exitServletApiHook() {
-		getHook(SERVLET_API_KEY).stop(null, null, null);
+	public static void exitForkJoinTask(final Object previous) {
+		hooks().contextPropagator.exitTask(previous);
 	}
 
-	private static Hook getHook(final Key<Hook> key) {
-		return InjectorHolder.INSTANCE.getInjector().getInstance(key);
+	public static void prepareJdbcStatement(final Object statement, final String sql) {
+		hooks().jdbcHook.prepared(statement, sql);
+	}
+
+	public static void enterJdbcStatement(final Object statement, final String sql) {
+		hooks().jdbcHook.start(statement, sql);
+	}
+
+	public static void exitJdbcStatement(final Object statement, final Throwable throwable) {
+		hooks().jdbcHook.stop(statement, throwable);
+	}
+
+	public static Object enterCallSite() {
+		return hooks().callSiteHook.start();
+	}
+
+	public static void exitCallSite(final Object timeInterval, final String uri, final String uriAlias) {
+		hooks().callSiteHook.stop(timeInterval, uri, uriAlias);
+	}
+
+	public static void prepareHttpRequest(final Object connection) {
+		hooks().outboundHttpHook.prepare(connection);
+	}
+
+	public static void enterHttpRequest(final Object connection) {
+		hooks().outboundHttpHook.start(connection);
+	}
+
+	public static void exitHttpRequest(final Object connection, final Throwable throwable) {
+		hooks().outboundHttpHook.stop(connection, throwable);
+	}
+
+	/**
+	 * Returns the hooks of the current injector. They are resolved only once per injector, so
+	 * woven code does not pay for Guice lookups.
+	 */
+	private static Hooks hooks() {
+		Injector injector = InjectorHolder.INSTANCE.getInjector();
+		Hooks result = hooks;
+		if (result == null || result.injector != injector) {
+			result = new Hooks(injector);
+			hooks = result;
+		}
+		return result;
+	}
+
+	private static final class Hooks {
+		final Injector injector;
+		final Hook measuringHook;
+		// resolved on first use, because it looks up the servlet api via the context class loader
+		private volatile Hook servletApiHook;
+		final ContextPropagator contextPropagator;
+		final JdbcHook jdbcHook;
+		final CallSiteHook callSiteHook;
+		final OutboundHttpHook outboundHttpHook;
+		final InstrumentationSwitches switches;
+		final ResponseWrapper responseWrapper;
+
+		Hooks(final Injector injector) {
+			this.injector = injector;
+			this.measuringHook = injector.getInstance(MEASURING_KEY);
+			this.contextPropagator = injector.getInstance(ContextPropagator.class);
+			this.jdbcHook = injector.getInstance(JdbcHook.class);
+			this.callSiteHook = injector.getInstance(CallSiteHook.class);
+			this.outboundHttpHook = injector.getInstance(OutboundHttpHook.class);
+			this.switches = injector.getInstance(InstrumentationSwitches.class);
+			switches.publish();
+			this.responseWrapper = injector.getInstance(ResponseWrapper.class);
+		}
+
+		Hook servletApiHook() {
+			Hook result = servletApiHook;
+			if (result == null) {
+				result = injector.getInstance(SERVLET_API_KEY);
+				servletApiHook = result;
+			}
+			return result;
+		}
 	}
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * An ASM {@link MethodVisitor} that weaves the {@link HookManager} into the JDK's
+ * {@code HttpURLConnection} implementation, which is used for HTTPS as well. {@code getInputStream}
+ * sends the request and waits for the response, so it is timed. The exit hook is called in a
+ * {@code finally} block, because error responses are reported as exceptions.
+ * 
+ * @author rnaegele
+ */
+public class HttpUrlConnectionHookMethodVisitor extends TryFinallyAdviceAdapter {
+
+	public static final String HTTP_URL_CONNECTION_CLASS = "sun.net.www.protocol.http.HttpURLConnection";
+
+	private static final String ENTER_HOOK_DESC = new StringBuilder(100)
+			.append('(')
+			.append(Type.getDescriptor(Object.class))
+			.append(")V")
+			.toString();
+
+	private static final String EXIT_HOOK_DESC = new StringBuilder(100)
+			.append('(')
+			.append(Type.getDescriptor(Object.class))
+			.append(Type.getDescriptor(Throwable.class))
+			.append(")V")
+			.toString();
+
+	private static final String GET_INPUT_STREAM_DESC = "()Ljava/io/InputStream;";
+	private static final String GET_OUTPUT_STREAM_DESC = "()Ljava/io/OutputStream;";
+
+	private static final String OWNER = HookManager.class.getName().replace('.', '/');
+
+	public HttpUrlConnectionHookMethodVisitor(final int access, final String methodName, final String desc,
+			final MethodVisitor mv) {
+		super(mv, access, HTTP_URL_CONNECTION_CLASS, methodName, desc);
+	}
+
+	/**
+	 * Creates the visitor for the specified method.
+	 * 
+	 * @return the visitor, or {@code mv} if the method is not instrumented
+	 */
+	public static MethodVisitor create(final int access, final String methodName, final String desc,
+			final MethodVisitor mv) {
+		if ("getInputStream".equals(methodName) && GET_INPUT_STREAM_DESC.equals(desc)) {
+			return new HttpUrlConnectionHookMethodVisitor(access, methodName, desc, mv);
+		}
+		if ("connect".equals(methodName) && "()V".equals(desc)
+				|| "getOutputStream".equals(methodName) && GET_OUTPUT_STREAM_DESC.equals(desc)) {
+			return new ConnectMethodVisitor(access, methodName, desc, mv);
+		}
+		return mv;
+	}
+
+	@Override
+	protected void invokeEnterHook() {
+		loadThis();
+		mv.visitMethodInsn(INVOKESTATIC, OWNER, "prepareHttpRequest", ENTER_HOOK_DESC);
+		loadThis();
+		mv.visitMethodInsn(INVOKESTATIC, OWNER, "enterHttpRequest", ENTER_HOOK_DESC);
+	}
+
+	@Override
+	protected void invokeExitHook(final boolean throwableOnStack) {
+		if (throwableOnStack) {
+			dup();
+			loadThis();
+			swap();
+		} else {
+			loadThis();
+			visitInsn(ACONST_NULL);
+		}
+		mv.visitMethodInsn(INVOKESTATIC, OWNER, "exitHttpRequest", EXIT_HOOK_DESC);
+	}
+
+	/**
+	 * Adds the perfLoad headers when the connection is established explicitly or the request body
+	 * is written. The public methods are hooked, because they mark the connection as connecting
+	 * before the request properties are frozen internally.
+	 */
+	static class ConnectMethodVisitor extends AdviceAdapter {
+
+		ConnectMethodVisitor(final int access, final String methodName, final String desc, final MethodVisitor mv) {
+			super(ASM4, mv, access, methodName, desc);
+		}
+
+		@Override
+		protected void onMethodEnter() {
+			loadThis();
+			mv.visitMethodInsn(INVOKESTATIC, OWNER, "prepareHttpRequest", ENTER_HOOK_DESC);
+		}
+	}
+}
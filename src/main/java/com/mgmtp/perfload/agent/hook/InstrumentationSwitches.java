@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.annotations.AgentDir;
+import com.mgmtp.perfload.agent.config.Config;
+
+/**
+ * Runtime switches for the measurements of instrumented methods. Each configured method, i. e.
+ * all of its overloads, has a switch identified by a dense id that is woven into the method. The
+ * woven code reads the switch before calling the {@link MeasuringHook}. Classes compiled for Java 7
+ * or later read it via {@code invokedynamic} linked by {@link SwitchCallSites}, which the JIT
+ * compiler folds into a constant, so a switched off method costs nothing once compiled. Older
+ * classes and JDK classes read a static volatile field holding the state of the switches of the
+ * instance used by the {@link HookManager}, so a switched off method costs this read, an array
+ * read, and a branch.
+ * <p>
+ * Switches are controlled by rules that are applied in order, the last matching rule wins. Rules
+ * are added via JMX as {@value #OBJECT_NAME} or read from the control file configured in
+ * {@link com.mgmtp.perfload.agent.config.Activation}. The file is polled once per second and
+ * contains one rule per line: {@code -pattern} switches matching methods off, {@code +pattern}
+ * switches them on, lines starting with {@code #} are ignored. A changed file replaces all
+ * rules, a deleted file removes them, i. e. switches everything on.
+ * </p>
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class InstrumentationSwitches implements InstrumentationSwitchesMBean {
+
+	public static final String OBJECT_NAME = "com.mgmtp.perfload.agent:type=Switches";
+
+	private static final long POLL_MILLIS = 1000L;
+
+	private final AgentLogger logger;
+	private final File controlFile;
+
+	// guarded by this
+	private final List<String> names = new ArrayList<String>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private List<Rule> rules = new ArrayList<Rule>();
+	private Thread poller;
+
+	// copy-on-write, so woven code reads it without locking
+	private volatile boolean[] enabled = new boolean[0];
+
+	// the state of the publishing instance, read by woven code without going through the injector
+	static volatile boolean[] published = new boolean[0];
+	// guarded by InstrumentationSwitches.class
+	private static InstrumentationSwitches publisher;
+	// set once the first switch call site is linked, so SwitchCallSites is not loaded before Java 7
+	static volatile boolean callSitesLinked;
+
+	@Inject
+	InstrumentationSwitches(final AgentLogger logger, @AgentDir final File agentDir, final Config config) {
+		this.logger = logger;
+		String fileName = config.getActivation().getControlFile();
+		this.controlFile = fileName != null ? resolve(agentDir, fileName) : null;
+	}
+
+	private static File resolve(final File agentDir, final String fileName) {
+		File file = new File(fileName);
+		return file.isAbsolute() ? file : new File(agentDir, fileName);
+	}
+
+	/**
+	 * Returns the id of the switch with the specified name, creating it if necessary. Its initial
+	 * state is determined by the current rules.
+	 * 
+	 * @param name
+	 *            the switch name, i. e. {@code <fully qualified class name>.<method name>}
+	 */
+	public synchronized int idOf(final String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = names.size();
+			names.add(name);
+			ids.put(name, id);
+			boolean[] newEnabled = Arrays.copyOf(enabled, id + 1);
+			newEnabled[id] = isEnabled(name, rules);
+			setEnabled(newEnabled);
+		}
+		return id;
+	}
+
+	/**
+	 * @param id
+	 *            an id returned by {@link #idOf(String)}
+	 * @return {@code true} if the methods of the switch are measured
+	 */
+	public boolean isEnabled(final int id) {
+		return enabled[id];
+	}
+
+	@Override
+	public synchronized int enable(final String pattern) {
+		return addRule(new Rule(pattern, true));
+	}
+
+	@Override
+	public synchronized int disable(final String pattern) {
+		return addRule(new Rule(pattern, false));
+	}
+
+	@Override
+	public synchronized void reset() {
+		setRules(new ArrayList<Rule>());
+	}
+
+	@Override
+	public synchronized String[] getSwitches() {
+		return names.toArray(new String[names.size()]);
+	}
+
+	@Override
+	public synchronized String[] getDisabledSwitches() {
+		List<String> result = new ArrayList<String>();
+		boolean[] current = enabled;
+		for (int i = 0; i < current.length; ++i) {
+			if (!current[i]) {
+				result.add(names.get(i));
+			}
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	private int addRule(final Rule rule) {
+		List<Rule> newRules = new ArrayList<Rule>(rules);
+		newRules.add(rule);
+		setRules(newRules);
+
+		int count = 0;
+		for (String name : names) {
+			if (rule.matches(name)) {
+				++count;
+			}
+		}
+		logger.writeln((rule.enabled ? "Enabled " : "Disabled ") + count + " instrumented method(s): " + rule.pattern);
+		return count;
+	}
+
+	// guarded by this
+	private void setRules(final List<Rule> newRules) {
+		rules = newRules;
+		boolean[] newEnabled = new boolean[names.size()];
+		for (int i = 0; i < newEnabled.length; ++i) {
+			newEnabled[i] = isEnabled(names.get(i), newRules);
+		}
+		setEnabled(newEnabled);
+	}
+
+	// guarded by this
+	private void setEnabled(final boolean[] newEnabled) {
+		enabled = newEnabled;
+		synchronized (InstrumentationSwitches.class) {
+			if (publisher == this) {
+				setPublished(newEnabled);
+			}
+		}
+	}
+
+	/**
+	 * Makes the state of this instance's switches the one read by woven code.
+	 */
+	void publish() {
+		synchronized (InstrumentationSwitches.class) {
+			publisher = this;
+			setPublished(enabled);
+		}
+	}
+
+	// guarded by InstrumentationSwitches.class
+	private static void setPublished(final boolean[] newPublished) {
+		published = newPublished;
+		if (callSitesLinked) {
+			SwitchCallSites.update(newPublished);
+		}
+	}
+
+	private static boolean isEnabled(final String name, final List<Rule> rules) {
+		boolean result = true;
+		for (Rule rule : rules) {
+			if (rule.matches(name)) {
+				result = rule.enabled;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Registers this object with the platform MBean server and starts polling the control file,
+	 * if one is configured.
+	 */
+	public synchronized void start() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException ex) {
+			logger.writeln("Error registering switches MBean: " + ex.getMessage(), ex);
+		}
+
+		if (controlFile != null && poller == null) {
+			poller = new Thread("perfload-agent-switches") {
+				@Override
+				public void run() {
+					pollControlFile();
+				}
+			};
+			poller.setDaemon(true);
+			poller.start();
+		}
+	}
+
+	private void pollControlFile() {
+		long lastModified = 0L;
+		while (true) {
+			long modified = controlFile.lastModified();
+			if (modified != lastModified) {
+				lastModified = modified;
+				applyControlFile();
+			}
+			try {
+				Thread.sleep(POLL_MILLIS);
+			} catch (InterruptedException ex) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the rules with those of the control file.
+	 */
+	void applyControlFile() {
+		List<Rule> newRules = new ArrayList<Rule>();
+		if (controlFile.exists()) {
+			try {
+				for (String line : Files.readLines(controlFile, Charsets.UTF_8)) {
+					line = line.trim();
+					if (line.length() > 1 && (line.charAt(0) == '+' || line.charAt(0) == '-')) {
+						newRules.add(new Rule(line.substring(1).trim(), line.charAt(0) == '+'));
+					} else if (line.length() > 0 && line.charAt(0) != '#') {
+						logger.writeln("Ignoring invalid line in " + controlFile + ": " + line);
+					}
+				}
+			} catch (IOException ex) {
+				logger.writeln("Error reading " + controlFile + ": " + ex.getMessage(), ex);
+				return;
+			}
+		}
+		synchronized (this) {
+			setRules(newRules);
+		}
+		logger.writeln("Applied " + newRules.size() + " switch rule(s) from " + controlFile);
+	}
+
+	static final class Rule {
+		final String pattern;
+		final boolean enabled;
+		private final Pattern regex;
+
+		Rule(final String pattern, final boolean enabled) {
+			this.pattern = pattern;
+			this.enabled = enabled;
+			this.regex = Pattern.compile(Pattern.quote(pattern).replace("*", "\\E.*\\Q"));
+		}
+
+		boolean matches(final String name) {
+			return regex.matcher(name).matches();
+		}
+	}
+}
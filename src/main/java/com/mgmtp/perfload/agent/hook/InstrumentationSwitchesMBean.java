@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+/**
+ * JMX interface of the {@link InstrumentationSwitches}. Patterns are matched against the
+ * switches' names, i. e. {@code <fully qualified class name>.<method name>}, and may contain
+ * {@code *} as a wildcard, e. g. {@code com.example.dao.*}.
+ * 
+ * @author rnaegele
+ */
+public interface InstrumentationSwitchesMBean {
+
+	/**
+	 * Switches on the measurements of all methods matching the pattern, including methods
+	 * instrumented later.
+	 * 
+	 * @return the number of currently instrumented methods matching the pattern
+	 */
+	int enable(String pattern);
+
+	/**
+	 * Switches off the measurements of all methods matching the pattern, including methods
+	 * instrumented later.
+	 * 
+	 * @return the number of currently instrumented methods matching the pattern
+	 */
+	int disable(String pattern);
+
+	/**
+	 * Switches on all measurements.
+	 */
+	void reset();
+
+	/**
+	 * @return the names of all switches
+	 */
+	String[] getSwitches();
+
+	/**
+	 * @return the names of the switches that are off
+	 */
+	String[] getDisabledSwitches();
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * An ASM {@link MethodVisitor} that weaves the {@link JdbcHook} into the methods of
+ * {@code java.sql.Connection} implementations that prepare statements, so the SQL of the returned
+ * statement is known when it is executed.
+ * 
+ * @author rnaegele
+ */
+public class JdbcConnectionHookMethodVisitor extends AdviceAdapter {
+
+	public static final String CONNECTION_CLASS = "java/sql/Connection";
+
+	private static final String HOOK_DESC = new StringBuilder(100)
+			.append('(')
+			.append(Type.getDescriptor(Object.class))
+			.append(Type.getDescriptor(String.class))
+			.append(")V")
+			.toString();
+
+	private static final String STRING_DESC = Type.getDescriptor(String.class);
+
+	private static final String OWNER = HookManager.class.getName().replace('.', '/');
+
+	public JdbcConnectionHookMethodVisitor(final int access, final String methodName, final String desc,
+			final MethodVisitor mv) {
+		super(ASM4, mv, access, methodName, desc);
+	}
+
+	/**
+	 * @return {@code true} if the specified method of a connection prepares a statement
+	 */
+	public static boolean isPreparation(final int access, final String name, final String desc) {
+		return (access & (ACC_STATIC | ACC_ABSTRACT)) == 0
+				&& ("prepareStatement".equals(name) || "prepareCall".equals(name))
+				&& desc.startsWith("(" + STRING_DESC) && Type.getReturnType(desc).getSort() == Type.OBJECT;
+	}
+
+	@Override
+	protected void onMethodExit(final int opcode) {
+		if (opcode == ARETURN) {
+			// pass the returned statement and the SQL
+			dup();
+			loadArg(0);
+			mv.visitMethodInsn(INVOKESTATIC, OWNER, "prepareJdbcStatement", HOOK_DESC);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.MapMaker;
+import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.util.ExecutionParams;
+import com.mgmtp.perfload.agent.util.OutermostCall;
+import com.mgmtp.perfload.agent.util.SqlNormalizer;
+import com.mgmtp.perfload.agent.util.OperationRegistry;
+import com.mgmtp.perfload.agent.util.ThreadState;
+import com.mgmtp.perfload.logging.ResultLogger;
+import com.mgmtp.perfload.logging.TimeInterval;
+
+/**
+ * Hook for timing the execution of JDBC statements. Statements are logged with their normalized
+ * SQL as uri, so executions of the same statement with different literals are aggregated. The SQL
+ * of prepared statements is remembered when they are created by the connection.
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class JdbcHook {
+
+	public static final String URI_PREFIX = "[sql] ";
+
+	private final OperationRegistry operationRegistry;
+	private final boolean loadTestTrafficOnly;
+
+	// normalized SQL by raw SQL
+	private final LoadingCache<String, String> normalizedSqlCache;
+
+	// weak keys are compared by identity
+	private final ConcurrentMap<Object, String> preparedStatementSql = new MapMaker().weakKeys().makeMap();
+
+	@Inject
+	JdbcHook(final OperationRegistry operationRegistry, final Config config) {
+		this.operationRegistry = operationRegistry;
+		this.loadTestTrafficOnly = config.getActivation().isLoadTestTrafficOnly();
+		this.normalizedSqlCache = CacheBuilder.newBuilder().maximumSize(config.getJdbc().getSqlCacheSize())
+				.build(new CacheLoader<String, String>() {
+					@Override
+					public String load(final String sql) {
+						return SqlNormalizer.normalize(sql);
+					}
+				});
+	}
+
+	/**
+	 * Remembers the SQL of a statement prepared by a connection.
+	 * 
+	 * @param statement
+	 *            the prepared statement returned by the connection
+	 * @param sql
+	 *            the SQL passed to the connection
+	 */
+	public void prepared(final Object statement, final String sql) {
+		if (statement != null && sql != null) {
+			preparedStatementSql.put(statement, normalizedSqlCache.getUnchecked(sql));
+		}
+	}
+
+	/**
+	 * Starts timing a statement execution. Nested executions are ignored.
+	 * 
+	 * @param statement
+	 *            the statement
+	 * @param sql
+	 *            the SQL passed to the execute method, {@code null} for prepared statements
+	 */
+	public void start(final Object statement, final String sql) {
+		if (loadTestTrafficOnly && !ThreadState.hasExecutionParams()) {
+			return;
+		}
+		OutermostCall jdbcCall = ThreadState.current().getJdbcCall();
+		if (!jdbcCall.enter()) {
+			return;
+		}
+		jdbcCall.start(sql != null ? normalizedSqlCache.getUnchecked(sql) : preparedStatementSql.get(statement));
+	}
+
+	/**
+	 * Stops timing a statement execution and logs it under the current perfLoad operation.
+	 * 
+	 * @param throwable
+	 *            the exception the statement failed with, or {@code null}
+	 */
+	public void stop(final Object statement, final Throwable throwable) {
+		if (loadTestTrafficOnly && !ThreadState.hasExecutionParams()) {
+			return;
+		}
+		ThreadState state = ThreadState.current();
+		OutermostCall jdbcCall = state.getJdbcCall();
+		if (!jdbcCall.exit()) {
+			return;
+		}
+		TimeInterval ti = jdbcCall.getTime();
+		if (ti == null) {
+			return;
+		}
+		ti.stop();
+
+		String sql = jdbcCall.getUri();
+		jdbcCall.clear();
+
+		String uri = URI_PREFIX + (sql != null ? sql : "unknown");
+		String errorMsg = throwable != null ? throwable.getMessage() : null;
+		ExecutionParams executionParams = state.getExecutionParams();
+
+		ResultLogger resultLogger = operationRegistry.getResultLogger(executionParams);
+		resultLogger.logResult(errorMsg, System.currentTimeMillis(), ti, ti, "AGENT", uri, uri,
+				executionParams.getExecutionId(), executionParams.getRequestId());
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+/**
+ * An ASM {@link MethodVisitor} that weaves the {@link JdbcHook} into the execute methods of
+ * {@code java.sql.Statement} implementations. The exit hook is called in a {@code finally} block,
+ * so failing statements are logged as well.
+ * 
+ * @author rnaegele
+ */
+public class JdbcHookMethodVisitor extends TryFinallyAdviceAdapter {
+
+	public static final Set<String> STATEMENT_CLASSES = new HashSet<String>(Arrays.asList("java/sql/Statement",
+			"java/sql/PreparedStatement", "java/sql/CallableStatement"));
+
+	private static final Set<String> EXECUTE_METHODS = new HashSet<String>(Arrays.asList("execute", "executeQuery",
+			"executeUpdate", "executeBatch", "executeLargeUpdate", "executeLargeBatch"));
+
+	private static final String ENTER_HOOK_DESC = new StringBuilder(100)
+			.append('(')
+			.append(Type.getDescriptor(Object.class))
+			.append(Type.getDescriptor(String.class))
+			.append(")V")
+			.toString();
+
+	private static final String EXIT_HOOK_DESC = new StringBuilder(100)
+			.append('(')
+			.append(Type.getDescriptor(Object.class))
+			.append(Type.getDescriptor(Throwable.class))
+			.append(")V")
+			.toString();
+
+	private static final String STRING_DESC = Type.getDescriptor(String.class);
+
+	private static final String OWNER = HookManager.class.getName().replace('.', '/');
+
+	private final boolean hasSqlArg;
+
+	public JdbcHookMethodVisitor(final int access, final String className, final String methodName, final String desc,
+			final MethodVisitor mv) {
+		super(mv, access, className, methodName, desc);
+		this.hasSqlArg = desc.startsWith("(" + STRING_DESC);
+	}
+
+	/**
+	 * @return {@code true} if the specified method of a statement executes SQL
+	 */
+	public static boolean isExecution(final int access, final String name) {
+		return (access & (ACC_STATIC | ACC_ABSTRACT)) == 0 && EXECUTE_METHODS.contains(name);
+	}
+
+	@Override
+	protected void invokeEnterHook() {
+		loadThis();
+		if (hasSqlArg) {
+			loadArg(0);
+		} else {
+			visitInsn(ACONST_NULL);
+		}
+		mv.visitMethodInsn(INVOKESTATIC, OWNER, "enterJdbcStatement", ENTER_HOOK_DESC);
+	}
+
+	@Override
+	protected void invokeExitHook(final boolean throwableOnStack) {
+		if (throwableOnStack) {
+			dup();
+			loadThis();
+			swap();
+		} else {
+			loadThis();
+			visitInsn(ACONST_NULL);
+		}
+		mv.visitMethodInsn(INVOKESTATIC, OWNER, "exitJdbcStatement", EXIT_HOOK_DESC);
+	}
+}
@@ -15,16 +15,18 @@
  */
 package com.mgmtp.perfload.agent.hook;
 
-import java.util.Arrays;
-import java.util.Deque;
-
 import javax.inject.Inject;
-import javax.inject.Provider;
 import javax.inject.Singleton;
 
-import com.google.common.cache.LoadingCache;
+import com.mgmtp.perfload.agent.AgentDiagnostics;
 import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.util.ArrayStack;
 import com.mgmtp.perfload.agent.util.ExecutionParams;
+import com.mgmtp.perfload.agent.util.OperationRegistry;
+import com.mgmtp.perfload.agent.util.RequestProfile;
+import com.mgmtp.perfload.agent.util.RequestState;
+import com.mgmtp.perfload.agent.util.ThreadState;
 import com.mgmtp.perfload.logging.ResultLogger;
 import com.mgmtp.perfload.logging.TimeInterval;
 
@@ -36,59 +38,107 @@ import com.mgmtp.perfload.logging.TimeInterval;
 @Singleton
 public class MeasuringHook extends AbstractHook {
 
-	private final Provider<Deque<Measurement>> measurementsStack;
 	private final AgentLogger logger;
-	private final Provider<ExecutionParams> executionParamsProvider;
-	private final LoadingCache<String, ResultLogger> resultLoggerCache;
+	private final OperationRegistry operationRegistry;
+	private final AgentDiagnostics diagnostics;
+	private final ArgumentLabels argumentLabels;
+	private final int maxStackDepth;
+	private final boolean loadTestTrafficOnly;
+	private final boolean profileRequests;
+	private final boolean summarizeRequests;
 
 	@Inject
-	MeasuringHook(final Provider<Deque<Measurement>> measurementsStack, final AgentLogger logger,
-			final Provider<ExecutionParams> executionParamsProvider, final LoadingCache<String, ResultLogger> resultLoggerCache) {
-		this.measurementsStack = measurementsStack;
+	MeasuringHook(final AgentLogger logger, final OperationRegistry operationRegistry,
+			final AgentDiagnostics diagnostics, final ArgumentLabels argumentLabels, final Config config) {
 		this.logger = logger;
-		this.executionParamsProvider = executionParamsProvider;
-		this.resultLoggerCache = resultLoggerCache;
+		this.operationRegistry = operationRegistry;
+		this.diagnostics = diagnostics;
+		this.argumentLabels = argumentLabels;
+		this.maxStackDepth = config.getLimits().getMaxStackDepth();
+		this.loadTestTrafficOnly = config.getActivation().isLoadTestTrafficOnly();
+		this.profileRequests = config.getServerTiming().isEnabled();
+		this.summarizeRequests = config.getRequestSummary().isEnabled();
 	}
 
 	/**
 	 * Starts timing the method pushing a {@link TimeInterval} on the internal thread-local
-	 * measurement stack.
+	 * measurement stack. If the stack is full, e. g. due to deep recursion, the measurement is
+	 * skipped. If only load test traffic is measured, nothing is done on threads without execution
+	 * params.
 	 */
 	@Override
 	public void start(final Object source, final String fullyQualifiedMethodName, final Object[] args) {
+		if (loadTestTrafficOnly && !ThreadState.hasExecutionParams()) {
+			return;
+		}
+		ThreadState state = ThreadState.current();
+		ArrayStack<Measurement> measurements = state.getMeasurements();
+		if (measurements.size() >= maxStackDepth) {
+			state.incrementOverflowDepth();
+			diagnostics.measurementDropped();
+			return;
+		}
 		TimeInterval ti = new TimeInterval();
 		Measurement measurement = new Measurement(fullyQualifiedMethodName, args, ti);
-		measurementsStack.get().push(measurement);
+		measurements.push(measurement);
 		ti.start();
 	}
 
 	/**
 	 * Stop timing the method polling the {@link TimeInterval} from the internal thread-local
-	 * measurement stack.
+	 * measurement stack. If the method has argument labels, they are appended to the logged uri.
+	 * They are computed from the arguments passed to {@link #start(Object, String, Object[])}, so
+	 * woven code does not need to pass them again. If the {@code Server-Timing} header or summary
+	 * records are enabled, the measurement is added to the current request's
+	 * {@link RequestProfile}. With summary records, measurements taken on a request thread are not
+	 * logged individually; the summary is written by the {@link ServletApiHook}.
 	 */
 	@Override
 	public void stop(final Object source, final Throwable throwable, final String fullyQualifiedMethodName, final Object[] args) {
-		Deque<Measurement> deque = measurementsStack.get();
-		Measurement measurement = deque.poll();
+		// execution params are set and cleared by the outermost entry point, so they are present at
+		// the start of a method if and only if they are present at its end
+		if (loadTestTrafficOnly && !ThreadState.hasExecutionParams()) {
+			return;
+		}
+		ThreadState state = ThreadState.current();
+		if (state.decrementOverflowDepth()) {
+			// end of a skipped measurement
+			return;
+		}
+		ArrayStack<Measurement> measurements = state.getMeasurements();
+		Measurement measurement = measurements.poll();
 		if (measurement != null) {
 			measurement.ti.stop();
-			if (measurement.fullyQualifiedMethodName.equals(fullyQualifiedMethodName) && Arrays.equals(measurement.args, args)) {
+			if (measurement.fullyQualifiedMethodName.equals(fullyQualifiedMethodName)) {
+				if (profileRequests || summarizeRequests) {
+					RequestState requestState = state.getRequestState();
+					if (!requestState.isIdle()) {
+						requestState.getProfile().add(fullyQualifiedMethodName,
+								measurement.ti.getStop() - measurement.ti.getStart(), throwable != null);
+						if (summarizeRequests) {
+							// logged with the request's summary record
+							return;
+						}
+					}
+				}
+
 				String errorMsg = throwable != null ? throwable.getMessage() : null;
-				ExecutionParams executionParams = executionParamsProvider.get();
-				String operation = executionParams.getOperation();
+				ExecutionParams executionParams = state.getExecutionParams();
 
-				ResultLogger resultLogger = resultLoggerCache.getUnchecked(operation != null ? operation : "unknown");
+				String label = argumentLabels.label(measurement.args);
+				String uri = label != null ? fullyQualifiedMethodName + " [" + label + "]" : fullyQualifiedMethodName;
+
+				ResultLogger resultLogger = operationRegistry.getResultLogger(executionParams);
 				resultLogger.logResult(errorMsg, System.currentTimeMillis(), measurement.ti, measurement.ti, "AGENT",
-						fullyQualifiedMethodName, fullyQualifiedMethodName, executionParams.getExecutionId(),
+						uri, fullyQualifiedMethodName, executionParams.getExecutionId(),
 						executionParams.getRequestId());
-
 				return;
 			}
 		}
 
 		// in case of an exception in the method we might end up here and lose the measurement
 		logger.writeln("No measurement found. Clearing measurements stack...");
-		deque.clear();
+		measurements.clear();
 	}
 
 	/**
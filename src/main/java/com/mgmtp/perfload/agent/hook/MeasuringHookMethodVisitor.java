@@ -17,6 +17,8 @@ package com.mgmtp.perfload.agent.hook;
 
 import static com.mgmtp.perfload.agent.util.ClassNameUtils.computeFullyQualifiedMethodName;
 
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
@@ -43,52 +45,146 @@ public class MeasuringHookMethodVisitor extends AdviceAdapter {
 			.append(")V")
 			.toString();
 
-	private static final String EXIT_HOOK_DESC = new StringBuilder()
+	private static final String ENTER_HOOK_DESC_WITH_FLAG = new StringBuilder(100)
 			.append('(')
 			.append(Type.getDescriptor(Object.class))
-			.append(Type.getDescriptor(Throwable.class))
 			.append(Type.getDescriptor(String.class))
-			.append(")V")
+			.append(Type.getDescriptor(Object[].class))
+			.append("Z)V")
 			.toString();
 
-	private static final String EXIT_HOOK_DESC_WITH_ARGS = new StringBuilder()
+	private static final String EXIT_HOOK_DESC = new StringBuilder()
 			.append('(')
 			.append(Type.getDescriptor(Object.class))
 			.append(Type.getDescriptor(Throwable.class))
 			.append(Type.getDescriptor(String.class))
-			.append(Type.getDescriptor(Object[].class))
-			.append(")V")
+			.append("Z)V")
 			.toString();
 
 	private static final String OWNER = HookManager.class.getName().replace('.', '/');
 
-	private final int numArgs;
+	// literals, so java.lang.invoke is not loaded before Java 7
+	private static final Handle SWITCH_BOOTSTRAP = new Handle(H_INVOKESTATIC, "com/mgmtp/perfload/agent/hook/SwitchCallSites",
+			"bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;I)"
+					+ "Ljava/lang/invoke/CallSite;");
+
+	private final int[] labelArgIndexes;
 	private final String fullyQualifiedMethodName;
+	private final String labelKey;
+	private final String classInternalName;
+	private final boolean constructor;
+	private final int switchId;
+	private final boolean switchCallSite;
+	private int enabledLocal;
 
+	/**
+	 * @param switchId
+	 *            the id of the method's {@link InstrumentationSwitches switch}
+	 * @param switchCallSite
+	 *            if {@code true}, the switch is read via {@code invokedynamic} linked by
+	 *            {@link SwitchCallSites}; requires a class file version of at least 51 and a class
+	 *            that sees the agent's classes
+	 */
 	public MeasuringHookMethodVisitor(final int access, final String className, final String methodName, final String desc,
-			final MethodVisitor mv) {
+			final int switchId, final boolean switchCallSite, final MethodVisitor mv) {
+		this(access, className, methodName, desc, switchId, switchCallSite, null, mv);
+	}
+
+	/**
+	 * @param switchId
+	 *            the id of the method's {@link InstrumentationSwitches switch}
+	 * @param switchCallSite
+	 *            if {@code true}, the switch is read via {@code invokedynamic} linked by
+	 *            {@link SwitchCallSites}; requires a class file version of at least 51 and a class
+	 *            that sees the agent's classes
+	 * @param labelArgIndexes
+	 *            if not {@code null}, only the arguments with these indexes are passed to the hook
+	 */
+	public MeasuringHookMethodVisitor(final int access, final String className, final String methodName, final String desc,
+			final int switchId, final boolean switchCallSite, final int[] labelArgIndexes, final MethodVisitor mv) {
 		super(ASM4, mv, access, methodName, desc);
 		Type[] argumentTypes = Type.getArgumentTypes(methodDesc);
-		this.numArgs = argumentTypes.length;
+		this.labelArgIndexes = labelArgIndexes;
 		this.fullyQualifiedMethodName = computeFullyQualifiedMethodName(className, methodName, argumentTypes);
+		this.labelKey = className + "." + methodName + desc;
+		this.classInternalName = className.replace('.', '/');
+		this.constructor = "<init>".equals(methodName);
+		this.switchId = switchId;
+		this.switchCallSite = switchCallSite;
+	}
+
+	/**
+	 * @return the fully qualified name of the method as passed to the hook
+	 */
+	public String getFullyQualifiedMethodName() {
+		return fullyQualifiedMethodName;
+	}
+
+	/**
+	 * @return the unabbreviated name and descriptor of the method, which the woven code passes
+	 *         ahead of the labelled arguments, since abbreviated names of different methods may be
+	 *         equal
+	 */
+	public String getLabelKey() {
+		return labelKey;
 	}
 
+	/**
+	 * Reads the method's switch into a local variable, so the exit hook is only called if the
+	 * enter hook was, and skips the enter hook if the switch is off.
+	 */
 	@Override
 	protected void onMethodEnter() {
-		if ((methodAccess & ACC_STATIC) != 0) {
-			visitInsn(ACONST_NULL);
+		if (switchCallSite) {
+			mv.visitInvokeDynamicInsn("isMeasuringEnabled", "()Z", SWITCH_BOOTSTRAP, switchId);
 		} else {
-			loadThis();
+			push(switchId);
+			mv.visitMethodInsn(INVOKESTATIC, OWNER, "isMeasuringEnabled", "(I)Z");
+		}
+		enabledLocal = newLocal(Type.BOOLEAN_TYPE);
+
+		if (constructor) {
+			// code before the super constructor call may have added locals unknown here, so no frame
+			// can be visited for a branch target; the hook checks the switch instead
+			storeLocal(enabledLocal);
+			loadSource();
+			push(fullyQualifiedMethodName);
+			if (labelArgIndexes != null) {
+				loadLabelArgArray();
+			} else {
+				// arguments are only needed for labels
+				visitInsn(ACONST_NULL);
+			}
+			loadLocal(enabledLocal);
+			mv.visitMethodInsn(INVOKESTATIC, OWNER, "enterMeasuringHook", ENTER_HOOK_DESC_WITH_FLAG);
+			return;
 		}
+
+		dup();
+		storeLocal(enabledLocal);
+		Label disabled = new Label();
+		mv.visitJumpInsn(IFEQ, disabled);
+		loadSource();
 		push(fullyQualifiedMethodName);
-		if (numArgs > 0) {
-			loadArgArray();
+		if (labelArgIndexes != null) {
+			loadLabelArgArray();
 			mv.visitMethodInsn(INVOKESTATIC, OWNER, "enterMeasuringHook", ENTER_HOOK_DESC_WITH_ARGS);
 		} else {
+			// arguments are only needed for labels, so they are neither boxed nor kept
 			mv.visitMethodInsn(INVOKESTATIC, OWNER, "enterMeasuringHook", ENTER_HOOK_DESC);
 		}
+		mv.visitLabel(disabled);
+		// visited directly, because the locals already use the remapped indexes
+		Object[] locals = FrameLocals.argumentLocals(classInternalName, methodAccess, methodDesc, INTEGER);
+		mv.visitFrame(F_NEW, locals.length, locals, 0, new Object[0]);
+		// keeps the frame apart from a frame of the method's first instruction
+		mv.visitInsn(NOP);
 	}
 
+	/**
+	 * Calls the exit hook with the switch's state read on entry. The arguments are not passed
+	 * again, since the hook already got them on entry.
+	 */
 	@Override
 	protected void onMethodExit(final int opcode) {
 		if (opcode == ATHROW) {
@@ -99,19 +195,40 @@ public class MeasuringHookMethodVisitor extends AdviceAdapter {
 			visitInsn(ACONST_NULL);
 		}
 
+		loadSource();
+
+		swap(); // Swap top two elements on stack to have them in the correct order for the call to exitHook
+		push(fullyQualifiedMethodName);
+		loadLocal(enabledLocal);
+		mv.visitMethodInsn(INVOKESTATIC, OWNER, "exitMeasuringHook", EXIT_HOOK_DESC);
+	}
+
+	private void loadSource() {
 		if ((methodAccess & ACC_STATIC) != 0) {
 			visitInsn(ACONST_NULL);
 		} else {
 			loadThis();
 		}
+	}
 
-		swap(); // Swap top two elements on stack to have them in the correct order for the call to exitHook
-		push(fullyQualifiedMethodName);
-		if (numArgs > 0) {
-			loadArgArray();
-			mv.visitMethodInsn(INVOKESTATIC, OWNER, "exitMeasuringHook", EXIT_HOOK_DESC_WITH_ARGS);
-		} else {
-			mv.visitMethodInsn(INVOKESTATIC, OWNER, "exitMeasuringHook", EXIT_HOOK_DESC);
+	/**
+	 * Creates an array with the {@link #getLabelKey() label key} followed by the labelled
+	 * arguments only, so the other arguments are neither loaded nor boxed.
+	 */
+	private void loadLabelArgArray() {
+		Type objectType = Type.getType(Object.class);
+		push(labelArgIndexes.length + 1);
+		newArray(objectType);
+		dup();
+		push(0);
+		push(labelKey);
+		arrayStore(objectType);
+		for (int i = 0; i < labelArgIndexes.length; ++i) {
+			dup();
+			push(i + 1);
+			loadArg(labelArgIndexes[i]);
+			box(Type.getArgumentTypes(methodDesc)[labelArgIndexes[i]]);
+			arrayStore(objectType);
 		}
 	}
 }
\ No newline at end of file
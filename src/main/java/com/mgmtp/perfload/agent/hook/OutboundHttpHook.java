@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.collect.MapMaker;
+import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.config.OutboundHttp;
+import com.mgmtp.perfload.agent.util.ExecutionParams;
+import com.mgmtp.perfload.agent.util.OutermostCall;
+import com.mgmtp.perfload.agent.util.OperationRegistry;
+import com.mgmtp.perfload.agent.util.ThreadState;
+import com.mgmtp.perfload.logging.ResultLogger;
+import com.mgmtp.perfload.logging.TimeInterval;
+
+/**
+ * Hook for outbound HTTP requests made via {@link HttpURLConnection}. Forwards the perfLoad
+ * headers of the current request to the configured hosts and times the request until the response
+ * headers have been received.
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class OutboundHttpHook {
+
+	public static final String URI_PREFIX = "[http] ";
+
+	private final OperationRegistry operationRegistry;
+	private final OutboundHttp outboundHttp;
+	private final boolean propagateHeaders;
+	private final boolean loadTestTrafficOnly;
+
+	// the headers are added by the first of connect, getOutputStream, and getInputStream
+	private final Set<Object> preparedConnections = Collections.newSetFromMap(new MapMaker().weakKeys()
+			.<Object, Boolean>makeMap());
+
+	// getInputStream is called again for the response headers, the first call is the request
+	private final Set<Object> timedConnections = Collections.newSetFromMap(new MapMaker().weakKeys()
+			.<Object, Boolean>makeMap());
+
+	@Inject
+	OutboundHttpHook(final OperationRegistry operationRegistry, final Config config) {
+		this.operationRegistry = operationRegistry;
+		this.outboundHttp = config.getOutboundHttp();
+		this.propagateHeaders = outboundHttp.isPropagateHeaders();
+		this.loadTestTrafficOnly = config.getActivation().isLoadTestTrafficOnly();
+	}
+
+	/**
+	 * Adds the perfLoad headers to a connection that is about to connect, if its host is one of the
+	 * configured propagation hosts. Only the first call per connection has an effect.
+	 * 
+	 * @param connection
+	 *            the {@link URLConnection}
+	 */
+	public void prepare(final Object connection) {
+		if (!propagateHeaders || !preparedConnections.add(connection)) {
+			return;
+		}
+		ThreadState state = ThreadState.peek();
+		if (state == null) {
+			return;
+		}
+		ExecutionParams executionParams = state.getExecutionParams();
+		if (executionParams.getExecutionId() == null || executionParams.getOperation() == null
+				|| executionParams.getRequestId() == null) {
+			return;
+		}
+
+		URLConnection urlConnection = (URLConnection) connection;
+		if (!outboundHttp.isPropagationHost(urlConnection.getURL().getHost())) {
+			return;
+		}
+		try {
+			urlConnection.setRequestProperty(ServletApiHook.EXECUTION_ID_HEADER, executionParams.getExecutionId().toString());
+			urlConnection.setRequestProperty(ServletApiHook.OPERATION_HEADER, executionParams.getOperation());
+			urlConnection.setRequestProperty(ServletApiHook.REQUEST_ID_HEADER, executionParams.getRequestId().toString());
+		} catch (IllegalStateException ex) {
+			// already connected
+		}
+	}
+
+	/**
+	 * Starts timing a request. Nested calls and calls on connections that have already been timed
+	 * are ignored.
+	 * 
+	 * @param connection
+	 *            the {@link URLConnection}
+	 */
+	public void start(final Object connection) {
+		if (loadTestTrafficOnly && !ThreadState.hasExecutionParams()) {
+			return;
+		}
+		OutermostCall httpCall = ThreadState.current().getHttpCall();
+		if (!httpCall.enter() || !timedConnections.add(connection)) {
+			return;
+		}
+		httpCall.start(computeUri((URLConnection) connection));
+	}
+
+	/**
+	 * Stops timing a request and logs it under the current perfLoad operation.
+	 * 
+	 * @param throwable
+	 *            the exception the request failed with, or {@code null}
+	 */
+	public void stop(final Object connection, final Throwable throwable) {
+		if (loadTestTrafficOnly && !ThreadState.hasExecutionParams()) {
+			return;
+		}
+		ThreadState state = ThreadState.current();
+		OutermostCall httpCall = state.getHttpCall();
+		if (!httpCall.exit()) {
+			return;
+		}
+		TimeInterval ti = httpCall.getTime();
+		if (ti == null) {
+			return;
+		}
+		ti.stop();
+
+		String uri = httpCall.getUri();
+		httpCall.clear();
+
+		String errorMsg = throwable != null ? throwable.getMessage() : null;
+		ExecutionParams executionParams = state.getExecutionParams();
+
+		ResultLogger resultLogger = operationRegistry.getResultLogger(executionParams);
+		resultLogger.logResult(errorMsg, System.currentTimeMillis(), ti, ti, "AGENT", uri, uri,
+				executionParams.getExecutionId(), executionParams.getRequestId());
+	}
+
+	/**
+	 * Computes the uri for a request, e. g. {@code [http] GET http://localhost:8080}. Path and
+	 * query string are omitted, because they often contain ids, which would make the number of
+	 * distinct uris grow without bounds.
+	 */
+	static String computeUri(final URLConnection connection) {
+		URL url = connection.getURL();
+		StringBuilder sb = new StringBuilder(URI_PREFIX);
+		if (connection instanceof HttpURLConnection) {
+			sb.append(((HttpURLConnection) connection).getRequestMethod()).append(' ');
+		}
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		sb.append(url.getProtocol()).append("://").append(url.getHost()).append(':').append(port);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ASM4;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.io.Resources;
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.servlet.CountingResponseWrapper;
+import com.mgmtp.perfload.agent.util.RequestProfile;
+import com.mgmtp.perfload.agent.util.RequestState;
+import com.mgmtp.perfload.agent.util.ResponseStats;
+import com.mgmtp.perfload.agent.util.ThreadState;
+import com.mgmtp.perfload.logging.TimeInterval;
+
+/**
+ * Wraps the servlet response at the outermost entry point in a {@link CountingResponseWrapper} in
+ * order to record its status code and the number of bytes written. The wrapper classes are
+ * defined per servlet api in a child of its class loader, because the agent is loaded by the
+ * system class loader which does not know the servlet api. They are therefore referenced by name
+ * only.
+ * <p>
+ * If enabled, the {@value #SERVER_TIMING_HEADER} header is added with the total server time and
+ * the instrumented methods with the highest total time from the request's {@link RequestProfile}.
+ * If the response is wrapped, it is added before the response can be committed, otherwise when the
+ * outermost entry point is left, unless the response is committed by then. Methods still running
+ * at that point are not included.
+ * </p>
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class ResponseWrapper {
+
+	public static final String SERVER_TIMING_HEADER = CountingResponseWrapper.SERVER_TIMING_HEADER;
+
+	private static final String SERVLET_PACKAGE = "com.mgmtp.perfload.agent.servlet.";
+	private static final String WRAPPER_CLASS_NAME = SERVLET_PACKAGE + "CountingResponseWrapper";
+	private static final String STREAM_CLASS_NAME = SERVLET_PACKAGE + "CountingServletOutputStream";
+	private static final String HTTP_RESPONSE_CLASS_NAME = "javax.servlet.http.HttpServletResponse";
+
+	private final AgentLogger logger;
+	private final boolean wrapResponse;
+	private final boolean loadTestTrafficOnly;
+	private final boolean serverTiming;
+	private final int maxServerTimingMethods;
+
+	// servlet api by response class, absent if the class is no http servlet response; the values
+	// reference the servlet api's class loader and thus possibly the key, so they must not be
+	// strongly reachable, or the cache would keep web applications from being unloaded
+	private final LoadingCache<Class<?>, Optional<ServletApi>> servletApiCache = CacheBuilder.newBuilder().weakKeys()
+			.softValues().build(new CacheLoader<Class<?>, Optional<ServletApi>>() {
+				@Override
+				public Optional<ServletApi> load(final Class<?> responseClass) throws Exception {
+					return createServletApi(responseClass);
+				}
+			});
+
+	@Inject
+	ResponseWrapper(final AgentLogger logger, final Config config) {
+		this.logger = logger;
+		this.serverTiming = config.getServerTiming().isEnabled();
+		this.maxServerTimingMethods = config.getServerTiming().getMaxMethods();
+		this.wrapResponse = config.getRequestTiming().isWrapResponse()
+				&& (config.getRequestTiming().isEnabled() || serverTiming);
+		this.loadTestTrafficOnly = config.getActivation().isLoadTestTrafficOnly();
+	}
+
+	/**
+	 * Wraps the response if the current thread has just entered the outermost entry point and
+	 * stores the {@link ResponseStats} in its {@link RequestState}. Responses of nested entry
+	 * points are already wrapped and returned unchanged.
+	 * 
+	 * @param response
+	 *            the servlet response
+	 * @return the wrapped response, or the response itself
+	 */
+	public Object wrap(final Object response) {
+		if (!wrapResponse || response == null || loadTestTrafficOnly && !ThreadState.hasExecutionParams()) {
+			return response;
+		}
+		ThreadState state = ThreadState.peek();
+		RequestState requestState = state != null ? state.getRequestState() : null;
+		if (requestState == null || requestState.isIdle() || requestState.getResponseStats() != null) {
+			return response;
+		}
+		try {
+			Optional<ServletApi> servletApi = servletApiCache.getUnchecked(response.getClass());
+			if (!servletApi.isPresent() || servletApi.get().wrapperClassLoader == null) {
+				return response;
+			}
+			ResponseStats stats = new ResponseStats();
+			Callable<String> serverTimingValue = serverTiming ? new ServerTimingValue(requestState.getProfile(),
+					requestState.getRequestTime()) : null;
+			Object wrapper = servletApi.get().wrapperClassLoader.wrapperConstructor.newInstance(response,
+					stats.getStatusHolder(), stats.getByteCounter(), serverTimingValue);
+			requestState.setResponseStats(stats);
+			return wrapper;
+		} catch (Exception ex) {
+			logger.writeln("Error wrapping servlet response: " + ex.getMessage(), ex);
+			return response;
+		}
+	}
+
+	/**
+	 * Adds the {@value #SERVER_TIMING_HEADER} header if enabled and the response is not committed
+	 * yet. Called when the outermost entry point of a request is left.
+	 * 
+	 * @param response
+	 *            the response as passed to the entry point, i. e. the wrapped response if it was
+	 *            wrapped
+	 */
+	public void addServerTiming(final Object response) {
+		if (!serverTiming || response == null) {
+			return;
+		}
+		try {
+			ClassLoader loader = response.getClass().getClassLoader();
+			if (loader instanceof WrapperClassLoader) {
+				((WrapperClassLoader) loader).addServerTiming.invoke(response);
+				return;
+			}
+			ThreadState state = ThreadState.peek();
+			RequestState requestState = state != null ? state.getRequestState() : null;
+			Optional<ServletApi> servletApi = servletApiCache.getUnchecked(response.getClass());
+			if (requestState == null || !servletApi.isPresent()) {
+				return;
+			}
+			ServletApi api = servletApi.get();
+			if (!(Boolean) api.isCommitted.invoke(response)
+					&& !(Boolean) api.containsHeader.invoke(response, SERVER_TIMING_HEADER)) {
+				String value = new ServerTimingValue(requestState.getProfile(), requestState.getRequestTime()).call();
+				if (value != null) {
+					api.setHeader.invoke(response, SERVER_TIMING_HEADER, value);
+				}
+			}
+		} catch (Exception ex) {
+			logger.writeln("Error adding " + SERVER_TIMING_HEADER + " header: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Formats the header value, e. g.
+	 * {@code total;dur=12.345, m1;desc="c.m.p.a.Foo.bar() x2";dur=4.567}.
+	 */
+	static String formatServerTiming(final long totalNanos, final List<RequestProfile.Entry> entries) {
+		StringBuilder sb = new StringBuilder(64 + entries.size() * 64);
+		sb.append("total;dur=");
+		RequestProfile.appendMillis(sb, totalNanos);
+		int i = 0;
+		for (RequestProfile.Entry entry : entries) {
+			sb.append(", m").append(++i).append(";desc=\"");
+			String name = entry.getFullyQualifiedMethodName();
+			for (int j = 0; j < name.length(); ++j) {
+				char c = name.charAt(j);
+				if (c == '"' || c == '\\') {
+					sb.append('\\');
+				}
+				sb.append(c);
+			}
+			sb.append(" x").append(entry.getCount()).append("\";dur=");
+			RequestProfile.appendMillis(sb, entry.getNanos());
+		}
+		return sb.toString();
+	}
+
+	private Optional<ServletApi> createServletApi(final Class<?> responseClass) throws NoSuchMethodException {
+		Class<?> httpResponseClass;
+		try {
+			httpResponseClass = Class.forName(HTTP_RESPONSE_CLASS_NAME, false, responseClass.getClassLoader());
+		} catch (ClassNotFoundException ex) {
+			logger.writeln("Not wrapping response, no http servlet api: " + responseClass.getName());
+			return Optional.absent();
+		}
+		if (!httpResponseClass.isAssignableFrom(responseClass)) {
+			logger.writeln("Not wrapping response, no http servlet response: " + responseClass.getName());
+			return Optional.absent();
+		}
+		WrapperClassLoader wrapperClassLoader = null;
+		if (wrapResponse) {
+			try {
+				wrapperClassLoader = new WrapperClassLoader(httpResponseClass);
+			} catch (Exception ex) {
+				logger.writeln("Not wrapping response " + responseClass.getName() + ": " + ex, ex);
+			} catch (LinkageError ex) {
+				logger.writeln("Not wrapping response " + responseClass.getName() + ": " + ex, ex);
+			}
+		}
+		return Optional.of(new ServletApi(httpResponseClass.getMethod("isCommitted"), httpResponseClass.getMethod(
+				"containsHeader", String.class), httpResponseClass.getMethod("setHeader", String.class, String.class),
+				wrapperClassLoader));
+	}
+
+	/**
+	 * Implements abstract methods of the servlet api's output stream, which the counting stream
+	 * compiled against servlet api 3.0 does not implement, e. g. {@code isReady()} and
+	 * {@code setWriteListener()} of servlet api 3.1, by delegating them to the container's stream.
+	 */
+	static byte[] implementAbstractMethods(final byte[] classBytes, final Class<?> outputStreamClass) {
+		final Set<String> abstractMethods = new LinkedHashSet<String>();
+		for (Method method : outputStreamClass.getMethods()) {
+			if (Modifier.isAbstract(method.getModifiers())) {
+				abstractMethods.add(method.getName() + Type.getMethodDescriptor(method));
+			}
+		}
+		final String superName = Type.getInternalName(outputStreamClass);
+		ClassReader cr = new ClassReader(classBytes);
+		final String className = cr.getClassName();
+		ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
+		cr.accept(new ClassVisitor(ASM4, cw) {
+			@Override
+			public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature,
+					final String[] exceptions) {
+				abstractMethods.remove(name + desc);
+				return super.visitMethod(access, name, desc, signature, exceptions);
+			}
+
+			@Override
+			public void visitEnd() {
+				for (String method : abstractMethods) {
+					int index = method.indexOf('(');
+					generateDelegate(cv, className, superName, method.substring(0, index), method.substring(index));
+				}
+				super.visitEnd();
+			}
+		}, 0);
+		return cw.toByteArray();
+	}
+
+	private static void generateDelegate(final ClassVisitor cv, final String className, final String superName,
+			final String name, final String desc) {
+		MethodVisitor mv = cv.visitMethod(ACC_PUBLIC, name, desc, null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETFIELD, className, "delegate", "L" + superName + ";");
+		int local = 1;
+		for (Type argumentType : Type.getArgumentTypes(desc)) {
+			mv.visitVarInsn(argumentType.getOpcode(ILOAD), local);
+			local += argumentType.getSize();
+		}
+		mv.visitMethodInsn(INVOKEVIRTUAL, superName, name, desc);
+		mv.visitInsn(Type.getReturnType(desc).getOpcode(IRETURN));
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/**
+	 * Computes the value of the {@value #SERVER_TIMING_HEADER} header from the request's profile.
+	 */
+	final class ServerTimingValue implements Callable<String> {
+
+		private final RequestProfile profile;
+		private final TimeInterval requestTime;
+
+		ServerTimingValue(final RequestProfile profile, final TimeInterval requestTime) {
+			this.profile = profile;
+			this.requestTime = requestTime;
+		}
+
+		@Override
+		public String call() {
+			try {
+				long totalNanos = requestTime != null ? System.nanoTime() - requestTime.getStart() : 0L;
+				return formatServerTiming(totalNanos, profile.getTopEntries(maxServerTimingMethods));
+			} catch (Exception ex) {
+				logger.writeln("Error adding " + SERVER_TIMING_HEADER + " header: " + ex.getMessage(), ex);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Reflective access to the http servlet response api.
+	 */
+	static final class ServletApi {
+
+		final Method isCommitted;
+		final Method containsHeader;
+		final Method setHeader;
+		// null if responses are not wrapped
+		final WrapperClassLoader wrapperClassLoader;
+
+		ServletApi(final Method isCommitted, final Method containsHeader, final Method setHeader,
+				final WrapperClassLoader wrapperClassLoader) {
+			this.isCommitted = isCommitted;
+			this.containsHeader = containsHeader;
+			this.setHeader = setHeader;
+			this.wrapperClassLoader = wrapperClassLoader;
+		}
+	}
+
+	/**
+	 * Defines the classes of the {@code com.mgmtp.perfload.agent.servlet} package from the agent's
+	 * class files as a child of the servlet api's class loader. They are loaded from this loader
+	 * first, all other classes from the servlet api's loader.
+	 */
+	static final class WrapperClassLoader extends ClassLoader {
+
+		final Constructor<?> wrapperConstructor;
+		final Method addServerTiming;
+
+		WrapperClassLoader(final Class<?> httpResponseClass) throws ClassNotFoundException, NoSuchMethodException {
+			super(httpResponseClass.getClassLoader());
+			Class<?> wrapperClass = loadClass(WRAPPER_CLASS_NAME);
+			this.wrapperConstructor = wrapperClass.getConstructor(httpResponseClass, AtomicInteger.class, AtomicLong.class,
+					Callable.class);
+			this.addServerTiming = wrapperClass.getMethod("addServerTiming");
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+			if (!name.startsWith(SERVLET_PACKAGE)) {
+				return super.loadClass(name, resolve);
+			}
+			Class<?> clazz = findLoadedClass(name);
+			if (clazz == null) {
+				byte[] classBytes = readClassFile(name);
+				if (STREAM_CLASS_NAME.equals(name)) {
+					classBytes = implementAbstractMethods(classBytes, loadClass("javax.servlet.ServletOutputStream"));
+				}
+				clazz = defineClass(name, classBytes, 0, classBytes.length);
+			}
+			if (resolve) {
+				resolveClass(clazz);
+			}
+			return clazz;
+		}
+
+		private static byte[] readClassFile(final String name) throws ClassNotFoundException {
+			URL url = ResponseWrapper.class.getResource('/' + name.replace('.', '/') + ".class");
+			if (url == null) {
+				throw new ClassNotFoundException(name);
+			}
+			try {
+				return Resources.toByteArray(url);
+			} catch (IOException ex) {
+				throw new ClassNotFoundException(name, ex);
+			}
+		}
+	}
+}
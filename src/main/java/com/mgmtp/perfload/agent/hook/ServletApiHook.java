@@ -19,15 +19,48 @@ import java.lang.reflect.Method;
 import java.util.UUID;
 
 import javax.inject.Inject;
-import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import com.mgmtp.perfload.agent.AgentDiagnostics;
 import com.mgmtp.perfload.agent.AgentLogger;
 import com.mgmtp.perfload.agent.annotations.Nullable;
+import com.mgmtp.perfload.agent.config.Config;
 import com.mgmtp.perfload.agent.util.ExecutionParams;
+import com.mgmtp.perfload.agent.util.OperationRegistry;
+import com.mgmtp.perfload.agent.util.RequestProfile;
+import com.mgmtp.perfload.agent.util.RequestState;
+import com.mgmtp.perfload.agent.util.ResponseStats;
+import com.mgmtp.perfload.agent.util.ThreadState;
+import com.mgmtp.perfload.logging.ResultLogger;
+import com.mgmtp.perfload.logging.TimeInterval;
 
 /**
  * Hook for extracting custom perfLoad headers from HTTP requeests.
+ * <p>
+ * If the client sends its send time in epoch milliseconds in the {@value #SEND_TIME_HEADER}
+ * header, the time until the outermost entry point is entered is logged as
+ * {@code [inbound] <entry point>}. It covers the network, the container's accept queue and the
+ * dispatch to a worker thread, i. e. the time a request waits before any instrumented method
+ * runs. Client and server clocks must be synchronized; negative times due to clock skew are logged
+ * as zero.
+ * </p>
+ * <p>
+ * If request timing is enabled, synchronously processed requests are logged as
+ * {@code [request] <entry point>} when the outermost entry point is left, with the status code
+ * and the number of bytes written appended to the uri if the response is wrapped by the
+ * {@link ResponseWrapper}. Server errors and requests failing with an exception are logged as
+ * errors, the latter with status 500.
+ * </p>
+ * <p>
+ * If summary records are enabled, the measurements taken on the request thread are logged in a
+ * single record {@code [summary] <entry point> [<method> x<count> <total>ms | ...]} when the
+ * outermost entry point is left, ordered by total time. Its duration is the time spent on the
+ * request thread. Argument labels are not applied.
+ * </p>
+ * <p>
+ * Threads processing perfLoad requests are registered with the {@link StackSampler} while inside
+ * the outermost entry point.
+ * </p>
  * 
  * @author rnaegele
  */
@@ -37,25 +70,51 @@ public class ServletApiHook extends AbstractHook {
 	public static final String EXECUTION_ID_HEADER = "X-perfLoad-Execution-Id";
 	public static final String OPERATION_HEADER = "X-perfLoad-Operation";
 	public static final String REQUEST_ID_HEADER = "X-perfLoad-Request-Id";
+	public static final String SEND_TIME_HEADER = "X-perfLoad-Send-Time";
 
 	private final AgentLogger logger;
 	private final Method getHeaderMethod;
-	private final Provider<ExecutionParams> executionParamsProvider;
+	private final AsyncRequestTracker asyncRequestTracker;
+	private final AgentDiagnostics diagnostics;
+	private final OperationRegistry operationRegistry;
+	private final ResponseWrapper responseWrapper;
+	private final StackSampler stackSampler;
+	private final boolean requestTiming;
+	private final boolean requestSummary;
+	private final boolean loadTestTrafficOnly;
 
 	@Inject
 	ServletApiHook(final AgentLogger logger, @Nullable final Method getHeaderMethod,
-			final Provider<ExecutionParams> executionParamsProvider) {
+			final AsyncRequestTracker asyncRequestTracker, final AgentDiagnostics diagnostics,
+			final OperationRegistry operationRegistry, final ResponseWrapper responseWrapper, final StackSampler stackSampler,
+			final Config config) {
 		this.logger = logger;
 		this.getHeaderMethod = getHeaderMethod;
-		this.executionParamsProvider = executionParamsProvider;
+		this.asyncRequestTracker = asyncRequestTracker;
+		this.diagnostics = diagnostics;
+		this.operationRegistry = operationRegistry;
+		this.responseWrapper = responseWrapper;
+		this.stackSampler = stackSampler;
+		this.requestTiming = config.getRequestTiming().isEnabled();
+		this.requestSummary = config.getRequestSummary().isEnabled();
+		this.loadTestTrafficOnly = config.getActivation().isLoadTestTrafficOnly();
 	}
 
 	/**
 	 * Retrieves custom perfLoad headers from the HTTP request and stores them in the current
-	 * {@link ExecutionParams} object.
+	 * {@link ExecutionParams} object, registering the operation with the
+	 * {@link OperationRegistry}. Nested entry points are ignored.
 	 */
 	@Override
 	public void start(final Object source, final String fullyQualifiedMethodName, final Object[] args) {
+		ThreadState state = ThreadState.current();
+		RequestState requestState = state.getRequestState();
+		if (!requestState.enter()) {
+			// nested entry point, e. g. a servlet called by a filter
+			return;
+		}
+		requestState.startRequestTime();
+
 		if (getHeaderMethod != null) {
 			try {
 				String executionId = (String) getHeaderMethod.invoke(args[0], EXECUTION_ID_HEADER);
@@ -63,10 +122,19 @@ public class ServletApiHook extends AbstractHook {
 				String requestId = (String) getHeaderMethod.invoke(args[0], REQUEST_ID_HEADER);
 
 				if (executionId != null && operation != null && requestId != null) {
-					ExecutionParams execParams = executionParamsProvider.get();
+					ExecutionParams execParams = state.getExecutionParams();
 					execParams.setExecutionId(UUID.fromString(executionId));
 					execParams.setOperation(operation);
+					// measurements look up their result logger by id
+					execParams.setOperationId(operationRegistry.register(operation));
 					execParams.setRequestId(UUID.fromString(requestId));
+					stackSampler.begin(operation);
+
+					String sendTime = (String) getHeaderMethod.invoke(args[0], SEND_TIME_HEADER);
+					// a request dispatched again by its async context has been received before
+					if (sendTime != null && !asyncRequestTracker.isTracked(args[0])) {
+						logInboundTime(execParams, fullyQualifiedMethodName, sendTime);
+					}
 				}
 			} catch (Exception ex) {
 				logger.writeln(ex.getMessage(), ex);
@@ -74,11 +142,156 @@ public class ServletApiHook extends AbstractHook {
 		}
 	}
 
+	private void logInboundTime(final ExecutionParams execParams, final String fullyQualifiedMethodName,
+			final String sendTime) {
+		long inboundMillis;
+		try {
+			inboundMillis = Math.max(0L, System.currentTimeMillis() - Long.parseLong(sendTime.trim()));
+		} catch (NumberFormatException ex) {
+			logger.writeln("Ignoring invalid " + SEND_TIME_HEADER + " header: " + sendTime);
+			return;
+		}
+		TimeInterval ti = new ElapsedTimeInterval(inboundMillis * 1000000L);
+		String uri = "[inbound] " + fullyQualifiedMethodName;
+		ResultLogger resultLogger = operationRegistry.getResultLogger(execParams);
+		resultLogger.logResult(null, System.currentTimeMillis(), ti, ti, "AGENT", uri, uri, execParams.getExecutionId(),
+				execParams.getRequestId());
+	}
+
 	/**
-	 * Clears the current {@link ExecutionParams} object.
+	 * Clears the current {@link ExecutionParams} object when the outermost entry point is left. A
+	 * request that is processed asynchronously is handed over to the {@link AsyncRequestTracker},
+	 * which also logs dispatches of a tracked request, otherwise the {@code Server-Timing} header is
+	 * added to the response and the request is logged, if enabled. The thread's agent state is
+	 * reset in place and kept for the next request.
 	 */
 	@Override
 	public void stop(final Object source, final Throwable throwable, final String fullyQualifiedMethodName, final Object[] args) {
-		executionParamsProvider.get().clear();
+		ThreadState state = ThreadState.current();
+		RequestState requestState = state.getRequestState();
+		if (!requestState.exit()) {
+			// nested entry point
+			return;
+		}
+
+		ExecutionParams execParams = state.getExecutionParams();
+		try {
+			TimeInterval requestTime = requestState.getRequestTime();
+			if (requestSummary && requestTime != null && !requestState.getProfile().isEmpty()
+					&& (!loadTestTrafficOnly || !execParams.isEmpty())) {
+				logSummary(execParams, fullyQualifiedMethodName, requestTime, requestState.getProfile());
+			}
+			// a request failing with an exception is not completed asynchronously, unless it is
+			// tracked already, then the container completes it and its listener logs it
+			boolean async = throwable != null ? asyncRequestTracker.isTracked(args[0]) : asyncRequestTracker.trackIfAsync(
+					args[0], fullyQualifiedMethodName, execParams, requestTime);
+			if (!async) {
+				responseWrapper.addServerTiming(args[1]);
+				if (requestTiming && requestTime != null && (!loadTestTrafficOnly || !execParams.isEmpty())) {
+					logRequestTime(execParams, fullyQualifiedMethodName, requestTime, requestState.getResponseStats(), throwable);
+				}
+			}
+		} finally {
+			// the state must be reset even if logging fails
+			stackSampler.end();
+
+			if (!state.getMeasurements().isEmpty()) {
+				diagnostics.unbalancedExit();
+			}
+			state.clear();
+		}
+	}
+
+	private void logSummary(final ExecutionParams execParams, final String fullyQualifiedMethodName,
+			final TimeInterval requestTime, final RequestProfile profile) {
+		TimeInterval ti = new ElapsedTimeInterval(System.nanoTime() - requestTime.getStart());
+		String uriAlias = "[summary] " + fullyQualifiedMethodName;
+		StringBuilder uri = new StringBuilder(256).append(uriAlias).append(" [");
+		int errorCount = 0;
+		boolean first = true;
+		for (RequestProfile.Entry entry : profile.getTopEntries(Integer.MAX_VALUE)) {
+			if (!first) {
+				uri.append(" | ");
+			}
+			first = false;
+			uri.append(entry.getFullyQualifiedMethodName()).append(" x").append(entry.getCount());
+			if (entry.getErrorCount() > 0) {
+				uri.append(" (").append(entry.getErrorCount()).append(" failed)");
+				errorCount += entry.getErrorCount();
+			}
+			uri.append(' ');
+			RequestProfile.appendMillis(uri, entry.getNanos()).append("ms");
+		}
+		uri.append(']');
+
+		String errorMsg = errorCount > 0 ? errorCount + " failed call(s)" : null;
+		ResultLogger resultLogger = operationRegistry.getResultLogger(execParams);
+		resultLogger.logResult(errorMsg, System.currentTimeMillis(), ti, ti, "AGENT", uri.toString(), uriAlias,
+				execParams.getExecutionId(), execParams.getRequestId());
+	}
+
+	private void logRequestTime(final ExecutionParams execParams, final String fullyQualifiedMethodName,
+			final TimeInterval requestTime, final ResponseStats responseStats, final Throwable throwable) {
+		requestTime.stop();
+		String uriAlias = "[request] " + fullyQualifiedMethodName;
+		String uri = uriAlias;
+		String errorMsg = null;
+		if (throwable != null) {
+			// the container responds with an internal server error
+			errorMsg = throwable.getMessage() != null ? throwable.getMessage() : throwable.getClass().getName();
+			if (responseStats != null) {
+				responseStats.setStatus(500);
+				uri = uriAlias + ' ' + responseStats.format();
+			} else {
+				uri = uriAlias + " [status=500]";
+			}
+		} else if (responseStats != null) {
+			uri = uriAlias + ' ' + responseStats.format();
+			if (responseStats.getStatus() >= 500) {
+				errorMsg = "HTTP status " + responseStats.getStatus();
+			}
+		}
+		ResultLogger resultLogger = operationRegistry.getResultLogger(execParams);
+		resultLogger.logResult(errorMsg, System.currentTimeMillis(), requestTime, requestTime, "AGENT", uri, uriAlias,
+				execParams.getExecutionId(), execParams.getRequestId());
+	}
+
+	/**
+	 * Time interval that ended now and was not measured by the agent itself.
+	 */
+	static final class ElapsedTimeInterval extends TimeInterval {
+
+		private final long start;
+		private final long stop;
+
+		ElapsedTimeInterval(final long elapsedNanos) {
+			this.stop = System.nanoTime();
+			this.start = stop - elapsedNanos;
+		}
+
+		@Override
+		public void start() {
+			// fixed interval
+		}
+
+		@Override
+		public void stop() {
+			// fixed interval
+		}
+
+		@Override
+		public long getStart() {
+			return start;
+		}
+
+		@Override
+		public long getStop() {
+			return stop;
+		}
+
+		@Override
+		public String format() {
+			return String.valueOf((stop - start) / 1000000L);
+		}
 	}
 }
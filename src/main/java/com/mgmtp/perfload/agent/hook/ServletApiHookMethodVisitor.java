@@ -15,40 +15,80 @@
  */
 package com.mgmtp.perfload.agent.hook;
 
+import static com.mgmtp.perfload.agent.util.ClassNameUtils.computeFullyQualifiedMethodName;
+
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
-import org.objectweb.asm.commons.AdviceAdapter;
 
 /**
- * An ASM {@link MethodVisitor} that weave the {@link HookManager} into a method's byte code.
+ * An ASM {@link MethodVisitor} that weave the {@link HookManager} into a method's byte code. The
+ * exit hook is called in a {@code finally} block, so it is also called if the method is left by an
+ * exception propagating from a callee, which is passed to the hook. The response argument is replaced with the one returned by
+ * {@link HookManager#wrapServletResponse(Object)}.
  * 
  * @author rnaegele
  */
-public class ServletApiHookMethodVisitor extends AdviceAdapter {
+public class ServletApiHookMethodVisitor extends TryFinallyAdviceAdapter {
 	private static final String ENTER_HOOK_DESC = new StringBuilder(100)
 			.append('(')
 			.append(Type.getDescriptor(Object.class))
+			.append(Type.getDescriptor(String.class))
+			.append(Type.getDescriptor(Object[].class))
+			.append(")V")
+			.toString();
+
+	private static final String EXIT_HOOK_DESC = new StringBuilder(100)
+			.append('(')
+			.append(Type.getDescriptor(Object.class))
+			.append(Type.getDescriptor(Throwable.class))
+			.append(Type.getDescriptor(String.class))
 			.append(Type.getDescriptor(Object[].class))
 			.append(")V")
 			.toString();
 
-	private static final String EXIT_HOOK_DESC = "()V";
+	private static final String WRAP_DESC = new StringBuilder(100)
+			.append('(')
+			.append(Type.getDescriptor(Object.class))
+			.append(')')
+			.append(Type.getDescriptor(Object.class))
+			.toString();
 
 	private static final String OWNER = HookManager.class.getName().replace('.', '/');
 
-	public ServletApiHookMethodVisitor(final int access, final String methodName, final String desc, final MethodVisitor mv) {
-		super(ASM4, mv, access, methodName, desc);
+	private final String fullyQualifiedMethodName;
+
+	public ServletApiHookMethodVisitor(final int access, final String className, final String methodName, final String desc,
+			final MethodVisitor mv) {
+		super(mv, access, className, methodName, desc);
+		this.fullyQualifiedMethodName = computeFullyQualifiedMethodName(className, methodName, Type.getArgumentTypes(desc));
 	}
 
 	@Override
-	protected void onMethodEnter() {
+	protected void invokeEnterHook() {
 		loadThis();
+		push(fullyQualifiedMethodName);
 		loadArgArray();
 		mv.visitMethodInsn(INVOKESTATIC, OWNER, "enterServletApiHook", ENTER_HOOK_DESC);
+
+		// service(request, response) or doFilter(request, response, chain)
+		loadArg(1);
+		mv.visitMethodInsn(INVOKESTATIC, OWNER, "wrapServletResponse", WRAP_DESC);
+		checkCast(Type.getArgumentTypes(methodDesc)[1]);
+		storeArg(1);
 	}
 
 	@Override
-	protected void onMethodExit(final int opcode) {
+	protected void invokeExitHook(final boolean throwableOnStack) {
+		if (throwableOnStack) {
+			dup();
+			loadThis();
+			swap();
+		} else {
+			loadThis();
+			visitInsn(ACONST_NULL);
+		}
+		push(fullyQualifiedMethodName);
+		loadArgArray();
 		mv.visitMethodInsn(INVOKESTATIC, OWNER, "exitServletApiHook", EXIT_HOOK_DESC);
 	}
-}
\ No newline at end of file
+}
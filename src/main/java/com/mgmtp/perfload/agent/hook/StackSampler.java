@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.StackSampling;
+import com.mgmtp.perfload.agent.util.ExecutionParams;
+
+/**
+ * Samples the stacks of threads that process perfLoad requests, i. e. requests with
+ * {@link ExecutionParams}, in order to find out where time is spent between instrumented methods.
+ * Samples are aggregated per operation in the folded format read by flame graph tools: one line
+ * per distinct stack consisting of the operation as root frame and the frames from the outermost
+ * to the innermost one, separated by {@code ;}, followed by the number of samples.
+ * <p>
+ * Only threads registered by the {@link ServletApiHook} are sampled, all of them with a single
+ * call to the {@link ThreadMXBean}. These are wall-clock samples, i. e. waiting threads are
+ * sampled as well. Samples are buffered per request and only kept if the request takes at least
+ * the configured threshold. The file is rewritten every {@value #WRITE_MILLIS} ms if samples were
+ * added and when the JVM shuts down.
+ * </p>
+ * 
+ * @author rnaegele
+ */
+public class StackSampler {
+
+	private static final long WRITE_MILLIS = 10000L;
+
+	private final boolean enabled;
+	private final long intervalMillis;
+	private final long thresholdNanos;
+	private final int maxFrames;
+	private final File stacksFile;
+	private final AgentLogger logger;
+
+	// requests by thread id
+	private final ConcurrentMap<Long, SampledRequest> requests = new ConcurrentHashMap<Long, SampledRequest>();
+
+	// counts by folded stack by operation, guarded by itself
+	private final Map<String, Map<String, int[]>> stacks = new TreeMap<String, Map<String, int[]>>();
+	private boolean modified;
+
+	// guarded by this
+	private Thread sampler;
+
+	public StackSampler(final StackSampling stackSampling, final File stacksFile, final AgentLogger logger) {
+		this.enabled = stackSampling.isEnabled();
+		this.intervalMillis = stackSampling.getIntervalMillis();
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(stackSampling.getThresholdMillis());
+		this.maxFrames = stackSampling.getMaxFrames();
+		this.stacksFile = stacksFile;
+		this.logger = logger;
+	}
+
+	/**
+	 * Starts sampling the current thread until {@link #end()} is called on it.
+	 * 
+	 * @param operation
+	 *            the perfLoad operation of the current request
+	 */
+	public void begin(final String operation) {
+		if (enabled) {
+			requests.put(Thread.currentThread().getId(), new SampledRequest(operation));
+		}
+	}
+
+	/**
+	 * Stops sampling the current thread, keeping the samples of its request if it took at least
+	 * the threshold.
+	 */
+	public void end() {
+		if (enabled) {
+			SampledRequest request = requests.remove(Thread.currentThread().getId());
+			if (request != null) {
+				Map<String, int[]> samples = request.finish();
+				if (!samples.isEmpty() && System.nanoTime() - request.startNanos >= thresholdNanos) {
+					merge(request.operation, samples);
+				}
+			}
+		}
+	}
+
+	private void merge(final String operation, final Map<String, int[]> samples) {
+		synchronized (stacks) {
+			Map<String, int[]> operationStacks = stacks.get(operation);
+			if (operationStacks == null) {
+				operationStacks = new HashMap<String, int[]>();
+				stacks.put(operation, operationStacks);
+			}
+			for (Map.Entry<String, int[]> entry : samples.entrySet()) {
+				int[] count = operationStacks.get(entry.getKey());
+				if (count == null) {
+					operationStacks.put(entry.getKey(), entry.getValue());
+				} else {
+					count[0] += entry.getValue()[0];
+				}
+			}
+			modified = true;
+		}
+	}
+
+	/**
+	 * Starts the sampler thread, if sampling is enabled.
+	 */
+	public synchronized void start() {
+		if (!enabled || sampler != null) {
+			return;
+		}
+		logger.writeln("Sampling stacks of perfLoad requests every " + intervalMillis + " ms to " + stacksFile);
+		sampler = new Thread("perfload-agent-sampler") {
+			@Override
+			public void run() {
+				sampleAndWrite();
+			}
+		};
+		sampler.setDaemon(true);
+		sampler.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				writeStacks();
+			}
+		});
+	}
+
+	private void sampleAndWrite() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long lastWrite = System.currentTimeMillis();
+		while (true) {
+			try {
+				Thread.sleep(intervalMillis);
+			} catch (InterruptedException ex) {
+				return;
+			}
+			try {
+				sample(threadBean);
+				long now = System.currentTimeMillis();
+				if (now - lastWrite >= WRITE_MILLIS) {
+					lastWrite = now;
+					writeStacks();
+				}
+			} catch (RuntimeException ex) {
+				logger.writeln("Error sampling stacks: " + ex.getMessage(), ex);
+			}
+		}
+	}
+
+	/**
+	 * Takes one sample of each registered thread.
+	 */
+	void sample(final ThreadMXBean threadBean) {
+		if (requests.isEmpty()) {
+			return;
+		}
+		// the requests are taken before the stacks, so a sample taken after a thread has ended
+		// its request is discarded by the request instead of being attributed to the next one
+		int size = requests.size();
+		long[] ids = new long[size];
+		SampledRequest[] sampledRequests = new SampledRequest[size];
+		int count = 0;
+		for (Map.Entry<Long, SampledRequest> entry : requests.entrySet()) {
+			if (count == size) {
+				break;
+			}
+			ids[count] = entry.getKey();
+			sampledRequests[count] = entry.getValue();
+			++count;
+		}
+		if (count < size) {
+			long[] newIds = new long[count];
+			System.arraycopy(ids, 0, newIds, 0, count);
+			ids = newIds;
+		}
+
+		ThreadInfo[] infos = threadBean.getThreadInfo(ids, maxFrames);
+		for (int i = 0; i < infos.length; ++i) {
+			if (infos[i] != null) {
+				sampledRequests[i].add(fold(infos[i].getStackTrace()));
+			}
+		}
+	}
+
+	private static String fold(final StackTraceElement[] stackTrace) {
+		StringBuilder sb = new StringBuilder(stackTrace.length * 48);
+		for (int i = stackTrace.length - 1; i >= 0; --i) {
+			sb.append(';').append(stackTrace[i].getClassName()).append('.').append(stackTrace[i].getMethodName());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Rewrites the file with all samples kept so far, if samples were added since it was last
+	 * written.
+	 */
+	void writeStacks() {
+		StringBuilder sb = new StringBuilder(4096);
+		synchronized (stacks) {
+			if (!modified) {
+				return;
+			}
+			modified = false;
+			for (Map.Entry<String, Map<String, int[]>> operationEntry : stacks.entrySet()) {
+				// the operation is a frame of its own
+				String operation = operationEntry.getKey().replace(';', '_').replace(' ', '_');
+				for (Map.Entry<String, int[]> entry : operationEntry.getValue().entrySet()) {
+					sb.append(operation).append(entry.getKey()).append(' ').append(entry.getValue()[0]).append('\n');
+				}
+			}
+		}
+
+		File tmpFile = new File(stacksFile.getPath() + ".tmp");
+		try {
+			Files.write(sb, tmpFile, Charsets.UTF_8);
+			Files.move(tmpFile, stacksFile);
+		} catch (IOException ex) {
+			logger.writeln("Error writing " + stacksFile + ": " + ex.getMessage(), ex);
+		}
+	}
+
+	static final class SampledRequest {
+		final String operation;
+		final long startNanos = System.nanoTime();
+
+		// counts by folded stack, guarded by this
+		private Map<String, int[]> samples = new HashMap<String, int[]>();
+		private boolean finished;
+
+		SampledRequest(final String operation) {
+			this.operation = operation;
+		}
+
+		synchronized void add(final String stack) {
+			if (!finished) {
+				int[] count = samples.get(stack);
+				if (count == null) {
+					samples.put(stack, new int[] { 1 });
+				} else {
+					++count[0];
+				}
+			}
+		}
+
+		synchronized Map<String, int[]> finish() {
+			finished = true;
+			return samples;
+		}
+	}
+}
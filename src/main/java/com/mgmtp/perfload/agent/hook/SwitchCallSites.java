@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Links the switch reads of woven classes with a class file version of at least 51 (Java 7). The
+ * {@code invokedynamic} instruction of such a read is bound to a call site per switch whose target
+ * returns the switch's state as a constant, so the JIT compiler folds the read and eliminates the
+ * branch of a switched off method. Changing a switch relinks its call site, which deoptimizes the
+ * code depending on it.
+ * <p>
+ * Only loaded on Java 7 or later, since older classes and JDK classes calling the hooks via the
+ * bootstrap bridge read the {@link InstrumentationSwitches#published published} state instead.
+ * </p>
+ * 
+ * @author rnaegele
+ */
+public class SwitchCallSites {
+
+	private static final MethodHandle ENABLED = MethodHandles.constant(boolean.class, true);
+	private static final MethodHandle DISABLED = MethodHandles.constant(boolean.class, false);
+
+	// by switch id, guarded by SwitchCallSites.class
+	private static MutableCallSite[] callSites = new MutableCallSite[0];
+
+	private SwitchCallSites() {
+		// static only
+	}
+
+	/**
+	 * Bootstrap method of the woven {@code invokedynamic} instructions. All instructions of a
+	 * switch share its call site.
+	 * 
+	 * @param switchId
+	 *            the id of the method's {@link InstrumentationSwitches switch}
+	 */
+	public static CallSite bootstrap(final MethodHandles.Lookup lookup, final String name, final MethodType type,
+			final int switchId) {
+		// initializes the hooks outside of the lock, so the switches are published
+		boolean enabled = HookManager.isMeasuringEnabled(switchId);
+
+		synchronized (SwitchCallSites.class) {
+			InstrumentationSwitches.callSitesLinked = true;
+			if (switchId >= callSites.length) {
+				callSites = Arrays.copyOf(callSites, switchId + 1);
+			}
+			MutableCallSite callSite = callSites[switchId];
+			if (callSite == null) {
+				// read again, since an update may have been missed before the call site existed
+				boolean[] published = InstrumentationSwitches.published;
+				callSite = new MutableCallSite(target(switchId < published.length ? published[switchId] : enabled));
+				callSites[switchId] = callSite;
+			}
+			return callSite;
+		}
+	}
+
+	/**
+	 * Relinks the call sites whose switches changed.
+	 * 
+	 * @param enabled
+	 *            the published state of the switches
+	 */
+	static synchronized void update(final boolean[] enabled) {
+		List<MutableCallSite> changed = new ArrayList<MutableCallSite>();
+		for (int i = 0; i < callSites.length && i < enabled.length; ++i) {
+			MutableCallSite callSite = callSites[i];
+			if (callSite != null && callSite.getTarget() != target(enabled[i])) {
+				callSite.setTarget(target(enabled[i]));
+				changed.add(callSite);
+			}
+		}
+		if (!changed.isEmpty()) {
+			MutableCallSite.syncAll(changed.toArray(new MutableCallSite[changed.size()]));
+		}
+	}
+
+	private static MethodHandle target(final boolean enabled) {
+		return enabled ? ENABLED : DISABLED;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * Base class for ASM {@link MethodVisitor}s that call an exit hook in a {@code finally} block, so
+ * it is also called if the method is left by an exception propagating from a callee.
+ * 
+ * @author rnaegele
+ */
+public abstract class TryFinallyAdviceAdapter extends AdviceAdapter {
+
+	private final String classInternalName;
+	private final Label startFinally = new Label();
+
+	protected TryFinallyAdviceAdapter(final MethodVisitor mv, final int access, final String className,
+			final String methodName, final String desc) {
+		super(ASM4, mv, access, methodName, desc);
+		this.classInternalName = className.replace('.', '/');
+	}
+
+	@Override
+	protected final void onMethodEnter() {
+		invokeEnterHook();
+		visitLabel(startFinally);
+	}
+
+	@Override
+	protected final void onMethodExit(final int opcode) {
+		if (opcode != ATHROW) {
+			// exceptions are handled in the finally block
+			invokeExitHook(false);
+		}
+	}
+
+	@Override
+	public void visitMaxs(final int maxStack, final int maxLocals) {
+		Label endFinally = new Label();
+		visitTryCatchBlock(startFinally, endFinally, endFinally, null);
+		visitLabel(endFinally);
+		// other local variables are not available in the exception handler
+		Object[] locals = FrameLocals.argumentLocals(classInternalName, methodAccess, methodDesc);
+		visitFrame(F_NEW, locals.length, locals, 1, new Object[] { "java/lang/Throwable" });
+		invokeExitHook(true);
+		visitInsn(ATHROW);
+		super.visitMaxs(maxStack, maxLocals);
+	}
+
+	/**
+	 * Weaves the call to the enter hook.
+	 */
+	protected abstract void invokeEnterHook();
+
+	/**
+	 * Weaves the call to the exit hook. The stack must be left unchanged.
+	 * 
+	 * @param throwableOnStack
+	 *            {@code true} if called in the exception handler with the exception on top of the
+	 *            stack
+	 */
+	protected abstract void invokeExitHook(boolean throwableOnStack);
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Wraps the servlet response at the outermost entry point in order to record its status code and
+ * the number of bytes written, and to add the {@value #SERVER_TIMING_HEADER} header before the
+ * response can be committed, i. e. on the first write to or flush of its output stream or writer
+ * and on {@link #flushBuffer()}, {@code sendError()} or {@link #sendRedirect(String)}.
+ * <p>
+ * The classes of this package are defined in a child of the servlet api's class loader by the
+ * {@link com.mgmtp.perfload.agent.hook.ResponseWrapper}, because the agent is loaded by the system
+ * class loader which does not know the servlet api. They must only depend on the JDK and the
+ * servlet api.
+ * </p>
+ * 
+ * @author rnaegele
+ */
+public class CountingResponseWrapper extends HttpServletResponseWrapper {
+
+	public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+	private final AtomicInteger status;
+	private final AtomicLong bytes;
+	private final Callable<String> serverTiming;
+	private CountingServletOutputStream outputStream;
+	private CountingWriter countingWriter;
+	private PrintWriter writer;
+	private boolean serverTimingAdded;
+
+	/**
+	 * @param response
+	 *            the response to wrap
+	 * @param status
+	 *            the holder for the status code
+	 * @param bytes
+	 *            the counter for the bytes written
+	 * @param serverTiming
+	 *            computes the value of the {@value #SERVER_TIMING_HEADER} header, {@code null} if
+	 *            the header is disabled
+	 */
+	public CountingResponseWrapper(final HttpServletResponse response, final AtomicInteger status, final AtomicLong bytes,
+			final Callable<String> serverTiming) {
+		super(response);
+		this.status = status;
+		this.bytes = bytes;
+		this.serverTiming = serverTiming;
+	}
+
+	@Override
+	public void setStatus(final int sc) {
+		status.set(sc);
+		super.setStatus(sc);
+	}
+
+	@Override
+	@Deprecated
+	public void setStatus(final int sc, final String sm) {
+		status.set(sc);
+		super.setStatus(sc, sm);
+	}
+
+	@Override
+	public void sendError(final int sc) throws IOException {
+		status.set(sc);
+		addServerTiming();
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError(final int sc, final String msg) throws IOException {
+		status.set(sc);
+		addServerTiming();
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendRedirect(final String location) throws IOException {
+		status.set(SC_FOUND);
+		addServerTiming();
+		super.sendRedirect(location);
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		addServerTiming();
+		super.flushBuffer();
+	}
+
+	@Override
+	public synchronized ServletOutputStream getOutputStream() throws IOException {
+		if (outputStream == null) {
+			outputStream = new CountingServletOutputStream(super.getOutputStream(), bytes, beforeFirstWrite());
+		}
+		return outputStream;
+	}
+
+	@Override
+	public synchronized PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			boolean utf8 = "UTF-8".equalsIgnoreCase(getCharacterEncoding());
+			countingWriter = new CountingWriter(super.getWriter(), bytes, utf8, beforeFirstWrite());
+			writer = new PrintWriter(countingWriter);
+		}
+		return writer;
+	}
+
+	/**
+	 * Clears the status code and the bytes written along with the response's status, headers and
+	 * buffer, so the {@value #SERVER_TIMING_HEADER} header is added again.
+	 */
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		status.set(SC_OK);
+		bytes.set(0L);
+		serverTimingAdded = false;
+		if (outputStream != null) {
+			outputStream.setBeforeFirstWrite(beforeFirstWrite());
+		}
+		if (countingWriter != null) {
+			countingWriter.setBeforeFirstWrite(beforeFirstWrite());
+		}
+	}
+
+	@Override
+	public void resetBuffer() {
+		super.resetBuffer();
+		bytes.set(0L);
+	}
+
+	/**
+	 * Adds the {@value #SERVER_TIMING_HEADER} header once, unless it is disabled or the response is
+	 * already committed. Called by the agent when the outermost entry point is left.
+	 */
+	public synchronized void addServerTiming() {
+		if (serverTiming == null || serverTimingAdded) {
+			return;
+		}
+		serverTimingAdded = true;
+		if (!isCommitted()) {
+			String value;
+			try {
+				value = serverTiming.call();
+			} catch (Exception ex) {
+				// errors are logged by the agent
+				value = null;
+			}
+			if (value != null) {
+				setHeader(SERVER_TIMING_HEADER, value);
+			}
+		}
+	}
+
+	/**
+	 * @return the callback adding the header before the stream or writer may commit the response,
+	 *         {@code null} if the header is disabled
+	 */
+	private Runnable beforeFirstWrite() {
+		if (serverTiming == null) {
+			return null;
+		}
+		return new Runnable() {
+			@Override
+			public void run() {
+				addServerTiming();
+			}
+		};
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+
+/**
+ * Delegates to the container's output stream and counts the bytes written. The callback, if any,
+ * is run once before the first write, flush or close. Abstract methods added by later servlet api
+ * versions, e. g. {@code isReady()}, are implemented by the
+ * {@link com.mgmtp.perfload.agent.hook.ResponseWrapper} when the class is defined.
+ * 
+ * @author rnaegele
+ */
+public class CountingServletOutputStream extends ServletOutputStream {
+
+	private final ServletOutputStream delegate;
+	private final AtomicLong counter;
+	private Runnable beforeFirstWrite;
+
+	public CountingServletOutputStream(final ServletOutputStream delegate, final AtomicLong counter,
+			final Runnable beforeFirstWrite) {
+		this.delegate = delegate;
+		this.counter = counter;
+		this.beforeFirstWrite = beforeFirstWrite;
+	}
+
+	void setBeforeFirstWrite(final Runnable beforeFirstWrite) {
+		this.beforeFirstWrite = beforeFirstWrite;
+	}
+
+	private void beforeWrite() {
+		Runnable callback = beforeFirstWrite;
+		if (callback != null) {
+			beforeFirstWrite = null;
+			callback.run();
+		}
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		beforeWrite();
+		delegate.write(b);
+		counter.incrementAndGet();
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		beforeWrite();
+		delegate.write(b, off, len);
+		counter.addAndGet(len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		beforeWrite();
+		delegate.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		beforeWrite();
+		delegate.close();
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes of the characters written, as UTF-8 bytes if that is the response's encoding,
+ * as one byte each otherwise. The callback, if any, is run once before the first write, flush or
+ * close.
+ * 
+ * @author rnaegele
+ */
+public class CountingWriter extends Writer {
+
+	private final Writer delegate;
+	private final AtomicLong counter;
+	private final boolean utf8;
+	private Runnable beforeFirstWrite;
+
+	public CountingWriter(final Writer delegate, final AtomicLong counter, final boolean utf8, final Runnable beforeFirstWrite) {
+		this.delegate = delegate;
+		this.counter = counter;
+		this.utf8 = utf8;
+		this.beforeFirstWrite = beforeFirstWrite;
+	}
+
+	void setBeforeFirstWrite(final Runnable beforeFirstWrite) {
+		this.beforeFirstWrite = beforeFirstWrite;
+	}
+
+	private void beforeWrite() {
+		Runnable callback = beforeFirstWrite;
+		if (callback != null) {
+			beforeFirstWrite = null;
+			callback.run();
+		}
+	}
+
+	@Override
+	public void write(final int c) throws IOException {
+		beforeWrite();
+		delegate.write(c);
+		counter.addAndGet(utf8 ? utf8Length((char) c) : 1);
+	}
+
+	@Override
+	public void write(final char[] cbuf, final int off, final int len) throws IOException {
+		beforeWrite();
+		delegate.write(cbuf, off, len);
+		if (utf8) {
+			long bytes = 0L;
+			for (int i = off; i < off + len; ++i) {
+				bytes += utf8Length(cbuf[i]);
+			}
+			counter.addAndGet(bytes);
+		} else {
+			counter.addAndGet(len);
+		}
+	}
+
+	@Override
+	public void write(final String str, final int off, final int len) throws IOException {
+		beforeWrite();
+		delegate.write(str, off, len);
+		if (utf8) {
+			long bytes = 0L;
+			for (int i = off; i < off + len; ++i) {
+				bytes += utf8Length(str.charAt(i));
+			}
+			counter.addAndGet(bytes);
+		} else {
+			counter.addAndGet(len);
+		}
+	}
+
+	/**
+	 * Returns the number of UTF-8 bytes of the character. A surrogate pair is encoded in four
+	 * bytes, so each of its characters counts two.
+	 */
+	private static int utf8Length(final char c) {
+		if (c < 0x80) {
+			return 1;
+		}
+		if (c < 0x800 || Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+			return 2;
+		}
+		return 3;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		beforeWrite();
+		delegate.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		beforeWrite();
+		delegate.close();
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.sink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.logging.SimpleLogger;
+
+/**
+ * {@link SimpleLogger} that decouples request threads from a synchronous logger, e. g. a
+ * {@link com.mgmtp.perfload.logging.SimpleFileLogger}, which holds a lock while writing and
+ * flushing each line. Request threads only enqueue measurements into a bounded queue and never
+ * block: if the queue is full, measurements are dropped and counted. A daemon thread writes them
+ * to the delegate, so its lock is never contended and lines cannot interleave.
+ * 
+ * @author rnaegele
+ */
+public class AsyncLogger implements SimpleLogger, Runnable {
+
+	private static final long POLL_MILLIS = 100L;
+	private static final long CLOSE_TIMEOUT_MILLIS = 5000L;
+	private static final int MAX_BATCH_SIZE = 1000;
+
+	private final SimpleLogger delegate;
+	private final AgentLogger logger;
+	private final BlockingQueue<String> queue;
+
+	private final AtomicLong writtenRecords = new AtomicLong();
+	private final AtomicLong droppedRecords = new AtomicLong();
+
+	private volatile boolean closed;
+	private Thread writer;
+
+	/**
+	 * @param delegate
+	 *            the logger that writes the measurements
+	 * @param queueCapacity
+	 *            the maximum number of measurements waiting to be written
+	 * @param logger
+	 *            the agent logger for write errors
+	 */
+	public AsyncLogger(final SimpleLogger delegate, final int queueCapacity, final AgentLogger logger) {
+		this.delegate = delegate;
+		this.logger = logger;
+		this.queue = new ArrayBlockingQueue<String>(queueCapacity);
+	}
+
+	/**
+	 * Opens the delegate and starts the writer thread.
+	 */
+	@Override
+	public synchronized void open() throws IOException {
+		if (writer == null) {
+			delegate.open();
+			writer = new Thread(this, "perfload-agent-measuring");
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	/**
+	 * Enqueues a measurement. Never blocks.
+	 */
+	@Override
+	public void writeln(final String output) {
+		if (closed || !queue.offer(output)) {
+			droppedRecords.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Writes the measurements still queued, waiting for a limited time, and closes the delegate.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		Thread t;
+		synchronized (this) {
+			t = writer;
+		}
+		if (t != null) {
+			try {
+				t.join(CLOSE_TIMEOUT_MILLIS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		delegate.close();
+	}
+
+	@Override
+	public void run() {
+		List<String> batch = new ArrayList<String>(MAX_BATCH_SIZE);
+		try {
+			while (!closed || !queue.isEmpty()) {
+				String first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+				for (String line : batch) {
+					delegate.writeln(line);
+				}
+				writtenRecords.addAndGet(batch.size());
+				batch.clear();
+			}
+		} catch (InterruptedException ex) {
+			// stop writing
+		} catch (RuntimeException ex) {
+			logger.writeln("Error writing measurements, measurements are discarded from now on.", ex);
+			closed = true;
+			droppedRecords.addAndGet(batch.size() + queue.size());
+			queue.clear();
+		}
+	}
+
+	/**
+	 * @return the number of measurements written to the delegate
+	 */
+	public long getWrittenRecords() {
+		return writtenRecords.get();
+	}
+
+	/**
+	 * @return the number of measurements dropped because the queue was full
+	 */
+	public long getDroppedRecords() {
+		return droppedRecords.get();
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.sink;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+
+import com.mgmtp.perfload.agent.sink.SinkProtocol.RecordHandler;
+
+/**
+ * Reference collector for measurements streamed by agents via {@link NetworkSinkLogger}. Writes
+ * one line per measurement in the format {@code <timestamp>;<node id>;<measurement>} as the
+ * batches arrive. The timestamp is the wall clock time derived from the node's monotonic clock,
+ * so the output can be sorted by it in order to merge the nodes' measurements. Start with:
+ * 
+ * <pre>
+ * java -cp perfload-agent.jar com.mgmtp.perfload.agent.sink.Collector &lt;tcp|udp&gt; &lt;port&gt; [&lt;output file&gt;]
+ * </pre>
+ * 
+ * @author rnaegele
+ */
+public class Collector implements RecordHandler {
+
+	private final boolean udp;
+	private final int port;
+	private final PrintWriter out;
+
+	private volatile boolean closed;
+	private ServerSocket serverSocket;
+	private DatagramSocket datagramSocket;
+
+	/**
+	 * @param udp
+	 *            {@code true} for UDP, {@code false} for TCP
+	 * @param port
+	 *            the port to listen on, {@code 0} for an ephemeral port
+	 * @param out
+	 *            the writer measurements are written to
+	 */
+	public Collector(final boolean udp, final int port, final Writer out) {
+		this.udp = udp;
+		this.port = port;
+		this.out = new PrintWriter(out);
+	}
+
+	/**
+	 * Binds the socket and starts receiving in a daemon thread.
+	 * 
+	 * @return the local port
+	 */
+	public int start() throws IOException {
+		Thread receiver;
+		int localPort;
+		if (udp) {
+			datagramSocket = new DatagramSocket(port);
+			localPort = datagramSocket.getLocalPort();
+			receiver = new Thread("perfload-collector-udp") {
+				@Override
+				public void run() {
+					receiveDatagrams();
+				}
+			};
+		} else {
+			serverSocket = new ServerSocket();
+			serverSocket.bind(new InetSocketAddress(port));
+			localPort = serverSocket.getLocalPort();
+			receiver = new Thread("perfload-collector-tcp") {
+				@Override
+				public void run() {
+					acceptConnections();
+				}
+			};
+		}
+		receiver.setDaemon(true);
+		receiver.start();
+		return localPort;
+	}
+
+	/**
+	 * Stops receiving and flushes the output.
+	 */
+	public void close() {
+		closed = true;
+		closeQuietly(serverSocket);
+		if (datagramSocket != null) {
+			datagramSocket.close();
+		}
+		synchronized (out) {
+			out.flush();
+		}
+	}
+
+	@Override
+	public void handle(final String nodeId, final long timestamp, final String line) {
+		// callers synchronize on out for a whole batch
+		out.print(timestamp);
+		out.print(';');
+		out.print(nodeId);
+		out.print(';');
+		out.println(line);
+	}
+
+	private void receiveDatagrams() {
+		byte[] buffer = new byte[SinkProtocol.MAX_DATAGRAM_SIZE];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		while (!closed) {
+			try {
+				packet.setLength(buffer.length);
+				datagramSocket.receive(packet);
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, 0, packet.getLength()));
+				synchronized (out) {
+					SinkProtocol.decode(in, this);
+					out.flush();
+				}
+			} catch (SocketException ex) {
+				// socket closed
+			} catch (IOException ex) {
+				System.err.println("Invalid datagram from " + packet.getSocketAddress() + ": " + ex.getMessage());
+			}
+		}
+	}
+
+	private void acceptConnections() {
+		while (!closed) {
+			try {
+				final Socket socket = serverSocket.accept();
+				Thread reader = new Thread("perfload-collector-" + socket.getRemoteSocketAddress()) {
+					@Override
+					public void run() {
+						receiveBatches(socket);
+					}
+				};
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException ex) {
+				// socket closed
+			}
+		}
+	}
+
+	private void receiveBatches(final Socket socket) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			while (!closed) {
+				int length = in.readInt();
+				if (length <= 0 || length > SinkProtocol.MAX_FRAME_SIZE) {
+					throw new IOException("Invalid batch length: " + length);
+				}
+				byte[] batch = new byte[length];
+				in.readFully(batch);
+				synchronized (out) {
+					SinkProtocol.decode(new DataInputStream(new ByteArrayInputStream(batch)), this);
+					out.flush();
+				}
+			}
+		} catch (EOFException ex) {
+			// agent disconnected
+		} catch (IOException ex) {
+			if (!closed) {
+				System.err.println("Error receiving from " + socket.getRemoteSocketAddress() + ": " + ex.getMessage());
+			}
+		} finally {
+			closeQuietly(in);
+			closeQuietly(socket);
+		}
+	}
+
+	public static void main(final String[] args) throws IOException, InterruptedException {
+		if (args.length < 2 || !"tcp".equals(args[0]) && !"udp".equals(args[0])) {
+			System.err.println("Usage: Collector <tcp|udp> <port> [<output file>]");
+			System.exit(1);
+		}
+		Writer writer = args.length > 2
+				? new OutputStreamWriter(new FileOutputStream(new File(args[2]), true), Charset.forName("UTF-8"))
+				: new OutputStreamWriter(System.out, Charset.forName("UTF-8"));
+		final Collector collector = new Collector("udp".equals(args[0]), Integer.parseInt(args[1]), writer);
+		int localPort = collector.start();
+		System.err.println("Collecting measurements via " + args[0] + " on port " + localPort);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				collector.close();
+			}
+		});
+		Thread.currentThread().join();
+	}
+}
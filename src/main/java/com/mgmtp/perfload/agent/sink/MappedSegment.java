@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A preallocated memory-mapped segment file of measurement records. The layout is:
+ * 
+ * <pre>
+ * int     magic
+ * int     version
+ * long    creation time in milliseconds
+ * record* int length, UTF-8 measurement line
+ * </pre>
+ * 
+ * Writers reserve space by advancing an atomic cursor and write the length of a record after its
+ * content, so a length of {@code 0} means that a record has not been committed yet. A length of
+ * {@value #END_OF_SEGMENT}, or less than four bytes left, marks the end of a segment.
+ * 
+ * @author rnaegele
+ */
+final class MappedSegment {
+
+	static final int MAGIC = 0x50464c53;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	static final int END_OF_SEGMENT = -1;
+
+	final int index;
+	final MappedByteBuffer buffer;
+	final int capacity;
+
+	private final AtomicInteger cursor = new AtomicInteger(HEADER_SIZE);
+	// only updated in order to publish a record's content before its length
+	private final AtomicInteger records = new AtomicInteger();
+
+	private MappedSegment(final int index, final MappedByteBuffer buffer) {
+		this.index = index;
+		this.buffer = buffer;
+		this.capacity = buffer.capacity();
+	}
+
+	/**
+	 * Creates and maps a new segment file.
+	 */
+	static MappedSegment create(final File dir, final int pid, final int index, final int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file(dir, pid, index), "rw");
+		try {
+			raf.setLength(size);
+			MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putLong(8, System.currentTimeMillis());
+			return new MappedSegment(index, buffer);
+		} finally {
+			// the mapping stays valid
+			raf.close();
+		}
+	}
+
+	/**
+	 * Maps an existing segment file for reading.
+	 * 
+	 * @return the mapped file, or {@code null} if it is still being created
+	 */
+	static ByteBuffer openForReading(final File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) == 0) {
+				return null;
+			}
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("Not a measurement segment: " + file);
+			}
+			return buffer;
+		} finally {
+			raf.close();
+		}
+	}
+
+	static File file(final File dir, final int pid, final int index) {
+		return new File(dir, String.format("perfload-agent-measuring-%d-%05d.seg", pid, index));
+	}
+
+	/**
+	 * Reserves space for a record of the specified length.
+	 * 
+	 * @return the record's offset; if the record does not fit, an offset beyond the capacity
+	 */
+	int reserve(final int length) {
+		return cursor.getAndAdd(4 + length);
+	}
+
+	boolean fits(final int offset, final int length) {
+		return offset + 4 + length <= capacity;
+	}
+
+	/**
+	 * Writes a record into reserved space and commits it.
+	 */
+	void write(final int offset, final byte[] content) {
+		ByteBuffer target = buffer.duplicate();
+		target.position(offset + 4);
+		target.put(content);
+		// the atomic update orders the content before the length
+		records.incrementAndGet();
+		buffer.putInt(offset, content.length);
+	}
+
+	/**
+	 * Marks the end of the segment at the offset of the first record that did not fit.
+	 */
+	void seal(final int offset) {
+		if (offset + 4 <= capacity) {
+			buffer.putInt(offset, END_OF_SEGMENT);
+		}
+	}
+}
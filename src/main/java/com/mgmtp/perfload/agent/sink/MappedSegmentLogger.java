@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.logging.SimpleLogger;
+
+/**
+ * {@link SimpleLogger} that writes measurements to preallocated memory-mapped
+ * {@link MappedSegment segments}. Request threads reserve space with an atomic cursor and copy
+ * the record into the mapping, without locks or system calls. The next segment is created in the
+ * background while the current one is filled, so rolling over only switches a reference. The
+ * operating system writes the pages back, so records survive a crash of the JVM, and other
+ * processes can tail the segments concurrently using a {@link MappedSegmentReader}.
+ * 
+ * @author rnaegele
+ */
+public class MappedSegmentLogger implements SimpleLogger {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// number of times a writer yields while another one rolls over
+	private static final int MAX_SPINS = 1000;
+
+	private final File dir;
+	private final int pid;
+	private final int segmentSize;
+	private final AgentLogger logger;
+
+	private final AtomicLong droppedRecords = new AtomicLong();
+
+	private volatile MappedSegment current;
+	private FutureTask<MappedSegment> next;
+
+	/**
+	 * @param dir
+	 *            the directory for the segment files
+	 * @param pid
+	 *            the process id, which is part of the file names
+	 * @param segmentSize
+	 *            the size of a segment file in bytes
+	 * @param logger
+	 *            the agent logger for errors creating segments
+	 */
+	public MappedSegmentLogger(final File dir, final int pid, final int segmentSize, final AgentLogger logger) {
+		this.dir = dir;
+		this.pid = pid;
+		this.segmentSize = segmentSize;
+		this.logger = logger;
+	}
+
+	/**
+	 * Creates the first segment.
+	 */
+	@Override
+	public synchronized void open() throws IOException {
+		if (current == null) {
+			current = MappedSegment.create(dir, pid, 0, segmentSize);
+			next = preallocate(1);
+		}
+	}
+
+	@Override
+	public void writeln(final String output) {
+		byte[] content = output.getBytes(UTF_8);
+		if (MappedSegment.HEADER_SIZE + 4 + content.length > segmentSize) {
+			droppedRecords.incrementAndGet();
+			return;
+		}
+		MappedSegment segment = current;
+		while (segment != null) {
+			int offset = segment.reserve(content.length);
+			if (segment.fits(offset, content.length)) {
+				segment.write(offset, content);
+				return;
+			}
+			if (offset <= segment.capacity) {
+				// reservations are contiguous, so only the first writer that does not fit
+				// anymore starts within the segment; it rolls over
+				segment.seal(offset);
+				segment = rollOver(segment);
+			} else {
+				segment = awaitRollOver(segment);
+			}
+		}
+		droppedRecords.incrementAndGet();
+	}
+
+	private MappedSegment rollOver(final MappedSegment segment) {
+		MappedSegment result = null;
+		synchronized (this) {
+			try {
+				// usually created already
+				result = next.get();
+				next = preallocate(result.index + 1);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException ex) {
+				logger.writeln("Error creating measurement segment " + (segment.index + 1), ex.getCause());
+			}
+		}
+		// writers waiting for the roll-over give up on null
+		current = result;
+		return result;
+	}
+
+	private MappedSegment awaitRollOver(final MappedSegment segment) {
+		for (int i = 0; i < MAX_SPINS; ++i) {
+			MappedSegment result = current;
+			if (result != segment) {
+				return result;
+			}
+			Thread.yield();
+		}
+		return null;
+	}
+
+	private FutureTask<MappedSegment> preallocate(final int index) {
+		FutureTask<MappedSegment> task = new FutureTask<MappedSegment>(new Callable<MappedSegment>() {
+			@Override
+			public MappedSegment call() throws IOException {
+				return MappedSegment.create(dir, pid, index, segmentSize);
+			}
+		});
+		Thread thread = new Thread(task, "perfload-agent-segment-" + index);
+		thread.setDaemon(true);
+		thread.start();
+		return task;
+	}
+
+	/**
+	 * Forces the current segment to disk.
+	 */
+	@Override
+	public void close() {
+		MappedSegment segment = current;
+		if (segment != null) {
+			segment.buffer.force();
+		}
+	}
+
+	/**
+	 * @return the number of measurements dropped because no segment was available
+	 */
+	public long getDroppedRecords() {
+		return droppedRecords.get();
+	}
+}
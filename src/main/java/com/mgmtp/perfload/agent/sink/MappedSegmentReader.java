@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tails the {@link MappedSegment segments} a {@link MappedSegmentLogger} writes, concurrently
+ * with the writing JVM. The segments are mapped read-only, so records are read without copying
+ * the files. Start with:
+ * 
+ * <pre>
+ * java -cp perfload-agent.jar com.mgmtp.perfload.agent.sink.MappedSegmentReader &lt;agent dir&gt; &lt;pid&gt;
+ * </pre>
+ * 
+ * @author rnaegele
+ */
+public class MappedSegmentReader {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File dir;
+	private final int pid;
+
+	private int index;
+	private ByteBuffer buffer;
+	private int position = MappedSegment.HEADER_SIZE;
+
+	/**
+	 * @param dir
+	 *            the directory containing the segment files
+	 * @param pid
+	 *            the process id of the writing JVM
+	 */
+	public MappedSegmentReader(final File dir, final int pid) {
+		this.dir = dir;
+		this.pid = pid;
+	}
+
+	/**
+	 * Reads the records committed since the last call.
+	 * 
+	 * @return the measurement lines
+	 */
+	public List<String> read() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		while (true) {
+			if (buffer == null) {
+				File file = MappedSegment.file(dir, pid, index);
+				if (!file.exists()) {
+					return lines;
+				}
+				buffer = MappedSegment.openForReading(file);
+				if (buffer == null) {
+					return lines;
+				}
+				position = MappedSegment.HEADER_SIZE;
+			}
+			int length = position + 4 <= buffer.capacity() ? buffer.getInt(position) : MappedSegment.END_OF_SEGMENT;
+			if (length == 0) {
+				// not committed yet
+				return lines;
+			}
+			if (length == MappedSegment.END_OF_SEGMENT) {
+				buffer = null;
+				index++;
+				continue;
+			}
+			byte[] content = new byte[length];
+			ByteBuffer source = buffer.duplicate();
+			source.position(position + 4);
+			source.get(content);
+			lines.add(new String(content, UTF_8));
+			position += 4 + length;
+		}
+	}
+
+	public static void main(final String[] args) throws IOException, InterruptedException {
+		if (args.length != 2) {
+			System.err.println("Usage: MappedSegmentReader <agent dir> <pid>");
+			System.exit(1);
+		}
+		MappedSegmentReader reader = new MappedSegmentReader(new File(args[0]), Integer.parseInt(args[1]));
+		while (true) {
+			for (String line : reader.read()) {
+				System.out.println(line);
+			}
+			Thread.sleep(200L);
+		}
+	}
+}
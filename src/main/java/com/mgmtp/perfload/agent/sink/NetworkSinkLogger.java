@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.sink;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.NetworkSink;
+import com.mgmtp.perfload.agent.sink.SinkProtocol.BatchEncoder;
+import com.mgmtp.perfload.logging.SimpleLogger;
+
+/**
+ * {@link SimpleLogger} that streams measurements to a {@link Collector} via TCP or UDP. Request
+ * threads only enqueue measurements into a bounded queue and never block: if the queue is full,
+ * measurements are dropped and counted. A daemon thread sends them in batches using the
+ * {@link SinkProtocol}. If the collector cannot be reached, the batches are dropped and counted
+ * as failed, and the connection is retried after a delay.
+ * 
+ * @author rnaegele
+ */
+public class NetworkSinkLogger implements SimpleLogger, Runnable {
+
+	private static final long POLL_MILLIS = 100L;
+	private static final long RETRY_MILLIS = 5000L;
+	private static final long CLOSE_TIMEOUT_MILLIS = 2000L;
+	private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+	private final NetworkSink config;
+	private final AgentLogger logger;
+	private final BlockingQueue<SinkRecord> queue;
+	private final BatchEncoder encoder;
+
+	private final AtomicLong sentRecords = new AtomicLong();
+	private final AtomicLong droppedRecords = new AtomicLong();
+	private final AtomicLong failedRecords = new AtomicLong();
+
+	private volatile boolean closed;
+	private Thread sender;
+
+	// only accessed by the sender thread
+	private Socket socket;
+	private DataOutputStream socketOut;
+	private DatagramSocket datagramSocket;
+	private InetSocketAddress address;
+	private long retryTime;
+
+	/**
+	 * @param config
+	 *            the network sink configuration
+	 * @param nodeId
+	 *            identifies this JVM in the collector's output, e. g. host and pid
+	 * @param logger
+	 *            the agent logger for connection errors
+	 */
+	public NetworkSinkLogger(final NetworkSink config, final String nodeId, final AgentLogger logger) {
+		this.config = config;
+		this.logger = logger;
+		this.queue = new ArrayBlockingQueue<SinkRecord>(config.getQueueCapacity());
+		this.encoder = new BatchEncoder(nodeId, System.currentTimeMillis(), System.nanoTime(),
+				config.isUdp() ? SinkProtocol.MAX_DATAGRAM_SIZE : SinkProtocol.MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * Starts the sender thread.
+	 */
+	@Override
+	public synchronized void open() {
+		if (sender == null) {
+			sender = new Thread(this, "perfload-agent-sink");
+			sender.setDaemon(true);
+			sender.start();
+		}
+	}
+
+	/**
+	 * Enqueues a measurement. Never blocks.
+	 */
+	@Override
+	public void writeln(final String output) {
+		if (closed || !queue.offer(new SinkRecord(System.nanoTime(), output))) {
+			droppedRecords.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Sends the measurements still queued, waiting for a limited time, and stops the sender
+	 * thread.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		Thread t;
+		synchronized (this) {
+			t = sender;
+		}
+		if (t != null) {
+			try {
+				t.join(CLOSE_TIMEOUT_MILLIS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		List<SinkRecord> batch = new ArrayList<SinkRecord>(config.getMaxBatchSize());
+		try {
+			while (!closed || !queue.isEmpty()) {
+				SinkRecord first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, config.getMaxBatchSize() - 1);
+				send(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException ex) {
+			// stop sending
+		} finally {
+			disconnect();
+		}
+	}
+
+	private void send(final List<SinkRecord> batch) {
+		try {
+			for (SinkRecord record : batch) {
+				if (!encoder.add(record)) {
+					flush();
+					encoder.add(record);
+				}
+			}
+			flush();
+		} catch (IOException ex) {
+			// cannot happen when writing to memory
+			failedRecords.addAndGet(encoder.getCount());
+		}
+	}
+
+	private void flush() throws IOException {
+		int count = encoder.getCount();
+		byte[] data = encoder.finish();
+		if (System.currentTimeMillis() < retryTime) {
+			failedRecords.addAndGet(count);
+			return;
+		}
+		try {
+			if (config.isUdp()) {
+				if (datagramSocket == null) {
+					address = new InetSocketAddress(config.getHost(), config.getPort());
+					datagramSocket = new DatagramSocket();
+				}
+				datagramSocket.send(new DatagramPacket(data, data.length, address));
+			} else {
+				if (socket == null) {
+					socket = new Socket();
+					socket.connect(new InetSocketAddress(config.getHost(), config.getPort()), CONNECT_TIMEOUT_MILLIS);
+					socketOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				}
+				socketOut.writeInt(data.length);
+				socketOut.write(data);
+				socketOut.flush();
+			}
+			sentRecords.addAndGet(count);
+		} catch (IOException ex) {
+			failedRecords.addAndGet(count);
+			logger.writeln("Error sending measurements to " + config.getHost() + ":" + config.getPort() + ": " + ex);
+			disconnect();
+			retryTime = System.currentTimeMillis() + RETRY_MILLIS;
+		}
+	}
+
+	private void disconnect() {
+		closeQuietly(socketOut);
+		closeQuietly(socket);
+		if (datagramSocket != null) {
+			datagramSocket.close();
+		}
+		socket = null;
+		socketOut = null;
+		datagramSocket = null;
+	}
+
+	/**
+	 * @return the number of measurements sent to the collector
+	 */
+	public long getSentRecords() {
+		return sentRecords.get();
+	}
+
+	/**
+	 * @return the number of measurements dropped because the queue was full
+	 */
+	public long getDroppedRecords() {
+		return droppedRecords.get();
+	}
+
+	/**
+	 * @return the number of measurements lost because the collector could not be reached
+	 */
+	public long getFailedRecords() {
+		return failedRecords.get();
+	}
+}
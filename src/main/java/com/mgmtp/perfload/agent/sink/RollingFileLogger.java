@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import com.mgmtp.perfload.agent.config.Rotation;
+import com.mgmtp.perfload.agent.util.RollingFileWriter;
+import com.mgmtp.perfload.logging.SimpleLogger;
+
+/**
+ * {@link SimpleLogger} for the measuring log that rotates and compresses the file using a
+ * {@link RollingFileWriter}.
+ * 
+ * @author rnaegele
+ */
+public class RollingFileLogger implements SimpleLogger {
+
+	private final File file;
+	private final Rotation rotation;
+	private PrintWriter writer;
+
+	public RollingFileLogger(final File file, final Rotation rotation) {
+		this.file = file;
+		this.rotation = rotation;
+	}
+
+	@Override
+	public synchronized void open() throws IOException {
+		writer = new PrintWriter(new RollingFileWriter(file, rotation));
+	}
+
+	@Override
+	public synchronized void writeln(final String output) {
+		if (writer == null) {
+			try {
+				open();
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+		writer.println(output);
+		// rotates if due
+		writer.flush();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (writer != null) {
+			writer.close();
+		}
+	}
+}
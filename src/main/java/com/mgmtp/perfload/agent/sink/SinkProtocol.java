@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The binary format of measurement batches sent to the {@link Collector}. A batch consists of a
+ * header and its records:
+ * 
+ * <pre>
+ * int     magic
+ * byte    version
+ * UTF     node id, i. e. host and pid
+ * long    anchor wall clock time in milliseconds
+ * long    anchor {@link System#nanoTime()}
+ * int     number of records
+ * record* long {@link System#nanoTime()}, UTF measurement line
+ * </pre>
+ * 
+ * The anchors are taken once per node. The collector derives a record's wall clock time from its
+ * monotonic timestamp, so records of one node are ordered correctly even if the node's clock is
+ * adjusted, and records of several nodes can be merged by their wall clock times. Via TCP each
+ * batch is prefixed with its length, via UDP each datagram holds one batch.
+ * 
+ * @author rnaegele
+ */
+public final class SinkProtocol {
+
+	static final int MAGIC = 0x50464c41;
+	static final byte VERSION = 1;
+
+	/** Maximum size of a batch sent via UDP. */
+	static final int MAX_DATAGRAM_SIZE = 60000;
+
+	/** Maximum size of a batch sent via TCP. */
+	static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+	// keeps a line's UTF encoding within the 64k limit of DataOutput.writeUTF
+	private static final int MAX_LINE_LENGTH = 8192;
+
+	private SinkProtocol() {
+		// constants and static methods only
+	}
+
+	/**
+	 * Callback for decoded records.
+	 */
+	public interface RecordHandler {
+
+		/**
+		 * @param nodeId
+		 *            the node the record was sent by
+		 * @param timestamp
+		 *            the wall clock time the record was logged at in milliseconds
+		 * @param line
+		 *            the measurement line
+		 */
+		void handle(String nodeId, long timestamp, String line);
+	}
+
+	/**
+	 * Decodes a batch.
+	 * 
+	 * @return the number of records decoded
+	 */
+	static int decode(final DataInput in, final RecordHandler handler) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Invalid batch: bad magic number");
+		}
+		byte version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported batch version: " + version);
+		}
+		String nodeId = in.readUTF();
+		long anchorMillis = in.readLong();
+		long anchorNanos = in.readLong();
+		int count = in.readInt();
+		for (int i = 0; i < count; ++i) {
+			long nanoTime = in.readLong();
+			String line = in.readUTF();
+			handler.handle(nodeId, anchorMillis + (nanoTime - anchorNanos) / 1000000L, line);
+		}
+		return count;
+	}
+
+	/**
+	 * Encodes records into batches of limited size.
+	 */
+	static final class BatchEncoder {
+
+		private final String nodeId;
+		private final long anchorMillis;
+		private final long anchorNanos;
+		private final int maxBytes;
+		private final int headerSize;
+
+		private final ByteArrayOutputStream records = new ByteArrayOutputStream(4096);
+		private final DataOutputStream recordsOut = new DataOutputStream(records);
+		private int count;
+
+		BatchEncoder(final String nodeId, final long anchorMillis, final long anchorNanos, final int maxBytes) {
+			this.nodeId = nodeId;
+			this.anchorMillis = anchorMillis;
+			this.anchorNanos = anchorNanos;
+			this.maxBytes = maxBytes;
+			this.headerSize = 4 + 1 + 2 + utfLength(nodeId) + 8 + 8 + 4;
+		}
+
+		/**
+		 * Adds a record to the current batch.
+		 * 
+		 * @return {@code false} if the batch is full and must be finished first; a record is
+		 *         always added to an empty batch
+		 */
+		boolean add(final SinkRecord record) throws IOException {
+			String line = record.line.length() > MAX_LINE_LENGTH ? record.line.substring(0, MAX_LINE_LENGTH) : record.line;
+			if (count > 0 && headerSize + records.size() + 8 + 2 + utfLength(line) > maxBytes) {
+				return false;
+			}
+			recordsOut.writeLong(record.nanoTime);
+			recordsOut.writeUTF(line);
+			count++;
+			return true;
+		}
+
+		boolean isEmpty() {
+			return count == 0;
+		}
+
+		int getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the current batch and starts a new one.
+		 */
+		byte[] finish() throws IOException {
+			ByteArrayOutputStream batch = new ByteArrayOutputStream(headerSize + records.size());
+			DataOutputStream out = new DataOutputStream(batch);
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeUTF(nodeId);
+			out.writeLong(anchorMillis);
+			out.writeLong(anchorNanos);
+			out.writeInt(count);
+			records.writeTo(out);
+			records.reset();
+			count = 0;
+			return batch.toByteArray();
+		}
+
+		private static int utfLength(final String s) {
+			int length = 0;
+			for (int i = 0, n = s.length(); i < n; ++i) {
+				char c = s.charAt(i);
+				if (c >= 0x0001 && c <= 0x007F) {
+					length++;
+				} else if (c > 0x07FF) {
+					length += 3;
+				} else {
+					length += 2;
+				}
+			}
+			return length;
+		}
+	}
+}
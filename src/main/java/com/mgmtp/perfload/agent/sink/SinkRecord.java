@@ -13,24 +13,21 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.mgmtp.perfload.agent.annotations;
-
-import java.lang.annotation.ElementType;
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
-import java.lang.annotation.Target;
-
-import javax.inject.Scope;
+package com.mgmtp.perfload.agent.sink;
 
 /**
- * Scope annotation for {@link ThreadScope}. Types annotated with this annotation are bound in
- * {@link ThreadScope}.
+ * A measurement queued for sending, timestamped with {@link System#nanoTime()} when it was
+ * logged.
  * 
  * @author rnaegele
  */
-@Target({ ElementType.TYPE, ElementType.METHOD })
-@Retention(RetentionPolicy.RUNTIME)
-@Scope
-public @interface ThreadScoped {
-	// marker annotation
-}
\ No newline at end of file
+final class SinkRecord {
+
+	final long nanoTime;
+	final String line;
+
+	SinkRecord(final long nanoTime, final String line) {
+		this.nanoTime = nanoTime;
+		this.line = line;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import java.util.Arrays;
+
+/**
+ * A minimal, array-based stack. Unlike {@link java.util.ArrayDeque}, no array is allocated until
+ * the first element is pushed, so an unused instance is cheap.
+ * 
+ * @author rnaegele
+ */
+public final class ArrayStack<E> {
+
+	private static final Object[] EMPTY = new Object[0];
+	private static final int INITIAL_CAPACITY = 8;
+
+	private Object[] elements = EMPTY;
+	private int size;
+
+	public void push(final E element) {
+		if (size == elements.length) {
+			elements = Arrays.copyOf(elements, Math.max(INITIAL_CAPACITY, size << 1));
+		}
+		elements[size++] = element;
+	}
+
+	/**
+	 * Removes and returns the top element.
+	 * 
+	 * @return the top element, or {@code null} if the stack is empty
+	 */
+	public E poll() {
+		if (size == 0) {
+			return null;
+		}
+		@SuppressWarnings("unchecked")
+		E element = (E) elements[--size];
+		elements[size] = null;
+		return element;
+	}
+
+	/**
+	 * @return the top element, or {@code null} if the stack is empty
+	 */
+	public E peek() {
+		@SuppressWarnings("unchecked")
+		E element = size == 0 ? null : (E) elements[size - 1];
+		return element;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(elements, 0, size, null);
+		size = 0;
+	}
+}
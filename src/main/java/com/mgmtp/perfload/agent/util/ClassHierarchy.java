@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+
+/**
+ * Resolves the super types of classes from their class files without loading them. Classes are
+ * transformed before they are loaded, so reflection cannot be used for finding out whether a
+ * class implements an interface or extends a class.
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class ClassHierarchy {
+
+	private static final int MAX_CACHE_SIZE = 10000;
+
+	// direct super types by internal class name per class loader, since the same name may denote
+	// different classes in different loaders; loaders are weak keys compared by identity
+	private final LoadingCache<ClassLoader, Cache<String, List<String>>> superTypesCaches = CacheBuilder.newBuilder()
+			.weakKeys().build(new CacheLoader<ClassLoader, Cache<String, List<String>>>() {
+				@Override
+				public Cache<String, List<String>> load(final ClassLoader loader) {
+					return createSuperTypesCache();
+				}
+			});
+	private final Cache<String, List<String>> bootstrapSuperTypesCache = createSuperTypesCache();
+
+	private static Cache<String, List<String>> createSuperTypesCache() {
+		return CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE)
+				.concurrencyLevel(Math.max(4, Runtime.getRuntime().availableProcessors())).build();
+	}
+
+	/**
+	 * Finds the first of the specified interfaces implemented by a class, directly or indirectly.
+	 * 
+	 * @param loader
+	 *            the class loader loading the class, {@code null} for the bootstrap class loader
+	 * @param superName
+	 *            the internal name of the class' super class
+	 * @param interfaces
+	 *            the internal names of the interfaces the class implements directly
+	 * @param candidates
+	 *            the internal names of the interfaces to look for
+	 * @return the internal name of the implemented interface, or {@code null} if the class
+	 *         implements none of the candidates
+	 */
+	public String findImplementedInterface(final ClassLoader loader, final String superName, final String[] interfaces,
+			final Set<String> candidates) {
+		List<String> superTypes = Lists.newArrayList(interfaces);
+		if (superName != null) {
+			superTypes.add(superName);
+		}
+		return find(loader, superTypes, candidates, new HashSet<String>(), true);
+	}
+
+	/**
+	 * Checks whether a class is the specified type or a subtype of it.
+	 * 
+	 * @param loader
+	 *            the class loader used for reading class files, {@code null} for the bootstrap
+	 *            class loader
+	 * @param internalName
+	 *            the internal name of the class
+	 * @param superType
+	 *            the internal name of the super type
+	 * @return {@code true} if the class is assignable to the super type
+	 */
+	public boolean isSubtypeOf(final ClassLoader loader, final String internalName, final String superType) {
+		if (internalName.equals(superType)) {
+			return true;
+		}
+		return find(loader, getSuperTypes(loader, internalName), Collections.singleton(superType), new HashSet<String>(),
+				false) != null;
+	}
+
+	private String find(final ClassLoader loader, final List<String> types, final Set<String> candidates,
+			final Set<String> visited, final boolean skipJdkTypes) {
+		for (String type : types) {
+			if (candidates.contains(type)) {
+				return type;
+			}
+		}
+		for (String type : types) {
+			// JDK types cannot implement the interfaces of an application or driver
+			if (skipJdkTypes && type.startsWith("java/") || "java/lang/Object".equals(type) || !visited.add(type)) {
+				continue;
+			}
+			String result = find(loader, getSuperTypes(loader, type), candidates, visited, skipJdkTypes);
+			if (result != null) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	private List<String> getSuperTypes(final ClassLoader loader, final String internalName) {
+		Cache<String, List<String>> superTypesCache = loader != null ? superTypesCaches.getUnchecked(loader)
+				: bootstrapSuperTypesCache;
+		// the class file is read outside of the cache, so class loading threads never wait for
+		// each other; a class may be read more than once if threads race for it
+		List<String> superTypes = superTypesCache.getIfPresent(internalName);
+		if (superTypes == null) {
+			try {
+				superTypes = readSuperTypes(loader, internalName);
+			} catch (IOException ex) {
+				return Collections.emptyList();
+			}
+			if (superTypes == null) {
+				// not visible to the loader; not cached, since it may become visible later
+				return Collections.emptyList();
+			}
+			superTypesCache.put(internalName, superTypes);
+		}
+		return superTypes;
+	}
+
+	/**
+	 * @return the direct super types, or {@code null} if the class file is not found
+	 */
+	static List<String> readSuperTypes(final ClassLoader loader, final String internalName) throws IOException {
+		String resource = internalName + ".class";
+		InputStream is = loader != null ? loader.getResourceAsStream(resource) : ClassLoader.getSystemResourceAsStream(resource);
+		if (is == null) {
+			return null;
+		}
+		try {
+			ClassReader cr;
+			try {
+				cr = new ClassReader(is);
+			} catch (IllegalArgumentException ex) {
+				// class file of a newer Java version than ASM supports, e. g. of the JDK
+				return loadSuperTypes(loader, internalName);
+			}
+			List<String> superTypes = Lists.newArrayList(cr.getInterfaces());
+			if (cr.getSuperName() != null) {
+				superTypes.add(cr.getSuperName());
+			}
+			return superTypes;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	/**
+	 * Reads the direct super types via reflection. Only done for types of the Java api, because
+	 * loading them while another class is transformed cannot interfere with application class
+	 * loading.
+	 */
+	private static List<String> loadSuperTypes(final ClassLoader loader, final String internalName) {
+		if (!internalName.startsWith("java/") && !internalName.startsWith("javax/")) {
+			return Collections.emptyList();
+		}
+		try {
+			Class<?> clazz = Class.forName(internalName.replace('/', '.'), false, loader);
+			List<String> superTypes = Lists.newArrayList();
+			for (Class<?> iface : clazz.getInterfaces()) {
+				superTypes.add(Type.getInternalName(iface));
+			}
+			if (clazz.getSuperclass() != null) {
+				superTypes.add(Type.getInternalName(clazz.getSuperclass()));
+			}
+			return superTypes;
+		} catch (ClassNotFoundException ex) {
+			return Collections.emptyList();
+		} catch (LinkageError ex) {
+			return Collections.emptyList();
+		}
+	}
+}
@@ -15,19 +15,12 @@
  */
 package com.mgmtp.perfload.agent.util;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import com.google.common.base.Function;
-import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
 import org.apache.commons.lang3.text.StrBuilder;
 import org.objectweb.asm.Type;
 
-import java.util.List;
-
-import static com.google.common.collect.FluentIterable.from;
-import static org.apache.commons.lang.StringUtils.substringAfterLast;
-import static org.apache.commons.lang.StringUtils.substringBeforeLast;
-
 /**
  * Utility class for class names.
  *
@@ -35,6 +28,10 @@ import static org.apache.commons.lang.StringUtils.substringBeforeLast;
  * @author rnaegele
  */
 public class ClassNameUtils {
+
+	// abbreviated names by class name; the number of entries is bounded by the classes instrumented
+	private static final ConcurrentMap<String, String> ABBREVIATED_NAMES = new ConcurrentHashMap<String, String>(256);
+
 	public static String computeFullyQualifiedMethodName(final String className, final String methodName, final Type[] argumentTypes) {
 		StrBuilder sb = new StrBuilder(50);
 		sb.append(abbreviatePackageName(className));
@@ -49,19 +46,35 @@ public class ClassNameUtils {
 		return sb.toString();
 	}
 
-	public static String abbreviatePackageName(String className) {
-		if (className.contains(".")) {
-			String packageName = substringBeforeLast(className, ".");
-			String simpleClassName = substringAfterLast(className, ".");
-			List<String> list = from(Splitter.on('.').splitToList(packageName)).transform(new Function<String, String>() {
-				@Override
-				public String apply(String input) {
-					return input.substring(0, 1);
-				}
-			}).toList();
-			return Joiner.on('.').join(list) + '.' + simpleClassName;
-		} else {
+	/**
+	 * Abbreviates each package segment of the specified class name to its first character, e. g.
+	 * {@code j.l.String} for {@code java.lang.String}. Results are cached.
+	 */
+	public static String abbreviatePackageName(final String className) {
+		String result = ABBREVIATED_NAMES.get(className);
+		if (result == null) {
+			result = doAbbreviatePackageName(className);
+			ABBREVIATED_NAMES.putIfAbsent(className, result);
+		}
+		return result;
+	}
+
+	private static String doAbbreviatePackageName(final String className) {
+		int lastDot = className.lastIndexOf('.');
+		if (lastDot < 0) {
 			return className;
 		}
+		StringBuilder sb = new StringBuilder(className.length());
+		boolean segmentStart = true;
+		for (int i = 0; i < lastDot; ++i) {
+			char c = className.charAt(i);
+			if (c == '.') {
+				segmentStart = true;
+			} else if (segmentStart) {
+				sb.append(c).append('.');
+				segmentStart = false;
+			}
+		}
+		return sb.append(className, lastDot + 1, className.length()).toString();
 	}
 }
@@ -17,17 +17,19 @@ package com.mgmtp.perfload.agent.util;
 
 import java.util.UUID;
 
-import com.mgmtp.perfload.agent.annotations.ThreadScoped;
-
 /**
+ * The perfLoad execution params of a request. Held per thread by {@link ThreadState}.
+ * 
  * @author rnaegele
  */
-@ThreadScoped
 public class ExecutionParams {
 
 	private UUID executionId;
 	private UUID requestId;
 	private String operation;
+	// id assigned by the OperationRegistry, negative if not registered yet
+	private int operationId = -1;
+	private ExecutionParams snapshot;
 
 	public boolean isEmpty() {
 		return executionId == null && requestId == null && operation == null;
@@ -37,6 +39,42 @@ public class ExecutionParams {
 		executionId = null;
 		requestId = null;
 		operation = null;
+		operationId = -1;
+		snapshot = null;
+	}
+
+	/**
+	 * Returns an immutable copy of this object, e. g. for handing it over to another thread. The
+	 * copy is cached until this object is modified, so multiple calls during a request only create
+	 * a single copy. The returned object must not be modified.
+	 * 
+	 * @return the snapshot
+	 */
+	public ExecutionParams snapshot() {
+		if (snapshot == null) {
+			ExecutionParams copy = new ExecutionParams();
+			copy.executionId = executionId;
+			copy.requestId = requestId;
+			copy.operation = operation;
+			copy.operationId = operationId;
+			copy.snapshot = copy;
+			snapshot = copy;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Sets the values of this object to those of the specified snapshot.
+	 * 
+	 * @param other
+	 *            a snapshot previously created with {@link #snapshot()}
+	 */
+	public void restore(final ExecutionParams other) {
+		executionId = other.executionId;
+		requestId = other.requestId;
+		operation = other.operation;
+		operationId = other.operationId;
+		snapshot = other;
 	}
 
 	/**
@@ -52,6 +90,7 @@ public class ExecutionParams {
 	 */
 	public void setExecutionId(final UUID executionId) {
 		this.executionId = executionId;
+		this.snapshot = null;
 	}
 
 	/**
@@ -67,6 +106,31 @@ public class ExecutionParams {
 	 */
 	public void setOperation(final String operation) {
 		this.operation = operation;
+		this.operationId = -1;
+		this.snapshot = null;
+	}
+
+	/**
+	 * @return the id of the operation, or a negative value if it has not been registered yet
+	 */
+	public int getOperationId() {
+		return operationId;
+	}
+
+	/**
+	 * @param operationId
+	 *            the operationId to set
+	 */
+	public void setOperationId(final int operationId) {
+		this.operationId = operationId;
+		this.snapshot = null;
+	}
+
+	/**
+	 * @return {@code true} if this object is an immutable snapshot
+	 */
+	public boolean isSnapshot() {
+		return snapshot == this;
 	}
 
 	/**
@@ -82,5 +146,6 @@ public class ExecutionParams {
 	 */
 	public void setRequestId(final UUID requestId) {
 		this.requestId = requestId;
+		this.snapshot = null;
 	}
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.logging.DefaultResultLogger;
+import com.mgmtp.perfload.logging.ResultLogger;
+import com.mgmtp.perfload.logging.SimpleLogger;
+
+/**
+ * Interns perfLoad operations into dense ids and holds a {@link ResultLogger} per operation. An
+ * operation is registered once per request, and measurements look up their result logger by the
+ * id stored in the {@link ExecutionParams}. The number of operations is limited, so clients
+ * sending unexpected operation names cannot exhaust the heap; further operations share the
+ * {@value #OVERFLOW} result logger.
+ * 
+ * @author rnaegele
+ */
+@Singleton
+public class OperationRegistry {
+
+	public static final int UNKNOWN_ID = 0;
+	public static final int OVERFLOW_ID = 1;
+
+	static final String UNKNOWN = "unknown";
+	static final String OVERFLOW = "overflow";
+
+	private final SimpleLogger logger;
+	private final InetAddress localhost;
+
+	private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private final AtomicReferenceArray<ResultLogger> resultLoggers;
+	private final AtomicLong overflows = new AtomicLong();
+
+	// guarded by this
+	private int size;
+
+	// set once all ids are taken, so overflowing operations do not need the lock
+	private volatile boolean full;
+
+	@Inject
+	public OperationRegistry(final SimpleLogger logger, final Config config) {
+		this.logger = logger;
+		InetAddress tmpLocalhost;
+		try {
+			tmpLocalhost = InetAddress.getLocalHost();
+		} catch (UnknownHostException ex) {
+			tmpLocalhost = null;
+		}
+		this.localhost = tmpLocalhost;
+		this.resultLoggers = new AtomicReferenceArray<ResultLogger>(config.getLimits().getMaxOperations() + 2);
+		register(UNKNOWN);
+		register(OVERFLOW);
+	}
+
+	/**
+	 * Returns the id of an operation, registering it if necessary.
+	 * 
+	 * @param operation
+	 *            the operation, may be {@code null}
+	 * @return the id, {@link #UNKNOWN_ID} for {@code null}, or {@link #OVERFLOW_ID} if too many
+	 *         operations have been registered
+	 */
+	public int register(final String operation) {
+		if (operation == null) {
+			return UNKNOWN_ID;
+		}
+		Integer id = ids.get(operation);
+		if (id != null) {
+			return id;
+		}
+		if (full) {
+			overflows.incrementAndGet();
+			return OVERFLOW_ID;
+		}
+		synchronized (this) {
+			id = ids.get(operation);
+			if (id != null) {
+				return id;
+			}
+			if (size == resultLoggers.length()) {
+				full = true;
+				overflows.incrementAndGet();
+				return OVERFLOW_ID;
+			}
+			int newId = size++;
+			resultLoggers.set(newId, new DefaultResultLogger(logger, localhost, "agent", operation, "agent", 0, 0, 0));
+			ids.put(operation, newId);
+			return newId;
+		}
+	}
+
+	/**
+	 * @param id
+	 *            an id returned by {@link #register(String)}
+	 * @return the result logger for the operation
+	 */
+	public ResultLogger getResultLogger(final int id) {
+		return resultLoggers.get(id);
+	}
+
+	/**
+	 * Returns the result logger for the operation of the specified execution params. If the
+	 * operation has not been registered yet, e. g. because it was not set by an entry point, it is
+	 * registered and its id is stored in the execution params, unless they are an immutable
+	 * snapshot.
+	 */
+	public ResultLogger getResultLogger(final ExecutionParams executionParams) {
+		int id = executionParams.getOperationId();
+		if (id < 0) {
+			id = register(executionParams.getOperation());
+			if (!executionParams.isSnapshot()) {
+				executionParams.setOperationId(id);
+			}
+		}
+		return resultLoggers.get(id);
+	}
+
+	/**
+	 * @return the number of registered operations including {@value #UNKNOWN} and
+	 *         {@value #OVERFLOW}
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of registrations that were mapped to {@value #OVERFLOW}
+	 */
+	public long getOverflows() {
+		return overflows.get();
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import com.mgmtp.perfload.logging.TimeInterval;
+
+/**
+ * Holds the state of a call that is timed only at its outermost level, e. g. a JDBC statement
+ * execution or an outbound HTTP request. Drivers and libraries often delegate from one
+ * implementation to another, so the nesting depth is tracked in order to measure the outermost
+ * call only. Held per thread by {@link ThreadState}.
+ * 
+ * @author rnaegele
+ */
+public class OutermostCall {
+
+	private int depth;
+	private String uri;
+	private TimeInterval time;
+
+	/**
+	 * Enters a call.
+	 * 
+	 * @return {@code true} if this is the outermost call
+	 */
+	public boolean enter() {
+		return depth++ == 0;
+	}
+
+	/**
+	 * Exits a call.
+	 * 
+	 * @return {@code true} if this is the outermost call
+	 */
+	public boolean exit() {
+		if (depth > 0) {
+			depth--;
+		}
+		return depth == 0;
+	}
+
+	/**
+	 * @return {@code true} if the thread is not in a call
+	 */
+	public boolean isIdle() {
+		return depth == 0;
+	}
+
+	/**
+	 * Starts timing the call.
+	 * 
+	 * @param callUri
+	 *            the uri the call is logged with, may be {@code null} if unknown
+	 */
+	public void start(final String callUri) {
+		uri = callUri;
+		time = new TimeInterval();
+		time.start();
+	}
+
+	/**
+	 * Clears the state of the finished call.
+	 */
+	public void clear() {
+		uri = null;
+		time = null;
+	}
+
+	/**
+	 * @return the uri of the current call
+	 */
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * @return the time interval of the current call, or {@code null} if none was started
+	 */
+	public TimeInterval getTime() {
+		return time;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts and sums up the durations of the instrumented methods called while processing a request.
+ * Held per thread by {@link RequestState}.
+ * 
+ * @author rnaegele
+ */
+public class RequestProfile {
+
+	private static final Comparator<Entry> BY_TOTAL_TIME = new Comparator<Entry>() {
+		@Override
+		public int compare(final Entry e1, final Entry e2) {
+			return e1.nanos < e2.nanos ? 1 : e1.nanos > e2.nanos ? -1 : 0;
+		}
+	};
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * Adds a call of the method.
+	 * 
+	 * @param fullyQualifiedMethodName
+	 *            the method name
+	 * @param nanos
+	 *            the duration of the call
+	 * @param error
+	 *            {@code true} if the call ended with an exception
+	 */
+	public void add(final String fullyQualifiedMethodName, final long nanos, final boolean error) {
+		Entry entry = entries.get(fullyQualifiedMethodName);
+		if (entry == null) {
+			entry = new Entry(fullyQualifiedMethodName);
+			entries.put(fullyQualifiedMethodName, entry);
+		}
+		entry.count++;
+		entry.nanos += nanos;
+		if (error) {
+			entry.errorCount++;
+		}
+	}
+
+	/**
+	 * @return the entries in no particular order
+	 */
+	public Collection<Entry> getEntries() {
+		return entries.values();
+	}
+
+	/**
+	 * @param max
+	 *            the maximum number of entries returned
+	 * @return the entries with the highest total time, in descending order
+	 */
+	public List<Entry> getTopEntries(final int max) {
+		List<Entry> result = new ArrayList<Entry>(entries.values());
+		Collections.sort(result, BY_TOTAL_TIME);
+		return result.size() > max ? result.subList(0, max) : result;
+	}
+
+	/**
+	 * @return {@code true} if no method was added
+	 */
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * Appends the nanoseconds as milliseconds with three decimal places, e. g. {@code 12.345}.
+	 * 
+	 * @return the string builder
+	 */
+	public static StringBuilder appendMillis(final StringBuilder sb, final long nanos) {
+		long micros = nanos / 1000L;
+		sb.append(micros / 1000L).append('.');
+		long fraction = micros % 1000L;
+		if (fraction < 100L) {
+			sb.append('0');
+		}
+		if (fraction < 10L) {
+			sb.append('0');
+		}
+		return sb.append(fraction);
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Count and total time of a method.
+	 */
+	public static final class Entry {
+
+		private final String fullyQualifiedMethodName;
+		private int count;
+		private int errorCount;
+		private long nanos;
+
+		Entry(final String fullyQualifiedMethodName) {
+			this.fullyQualifiedMethodName = fullyQualifiedMethodName;
+		}
+
+		/**
+		 * @return the fullyQualifiedMethodName
+		 */
+		public String getFullyQualifiedMethodName() {
+			return fullyQualifiedMethodName;
+		}
+
+		/**
+		 * @return the number of calls
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the number of calls that ended with an exception
+		 */
+		public int getErrorCount() {
+			return errorCount;
+		}
+
+		/**
+		 * @return the total time of all calls in nanoseconds
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import com.mgmtp.perfload.logging.TimeInterval;
+
+/**
+ * Holds the state of the request the current thread processes. Servlet api entry points may be
+ * nested (e.g. a filter calling a servlet), so the nesting depth is tracked in order to be able to
+ * detect the outermost entry point. Held per thread by {@link ThreadState}.
+ * 
+ * @author rnaegele
+ */
+public class RequestState {
+
+	private int depth;
+	private TimeInterval requestTime;
+	private ResponseStats responseStats;
+	private RequestProfile profile;
+
+	/**
+	 * Enters a servlet api entry point.
+	 * 
+	 * @return {@code true} if this is the outermost entry point
+	 */
+	public boolean enter() {
+		return depth++ == 0;
+	}
+
+	/**
+	 * Exits a servlet api entry point.
+	 * 
+	 * @return {@code true} if this is the outermost entry point
+	 */
+	public boolean exit() {
+		if (depth > 0) {
+			depth--;
+		}
+		return depth == 0;
+	}
+
+	/**
+	 * @return {@code true} if the thread is not in a servlet api entry point
+	 */
+	public boolean isIdle() {
+		return depth == 0;
+	}
+
+	/**
+	 * Starts timing the request. A new {@link TimeInterval} is created for each request, so it may
+	 * safely be handed over to another thread.
+	 */
+	public void startRequestTime() {
+		requestTime = new TimeInterval();
+		requestTime.start();
+		responseStats = null;
+		if (profile != null) {
+			profile.clear();
+		}
+	}
+
+	/**
+	 * Clears the state of the finished request. The profile is kept for reuse by the next request.
+	 */
+	public void clear() {
+		requestTime = null;
+		responseStats = null;
+		if (profile != null) {
+			profile.clear();
+		}
+	}
+
+	/**
+	 * @return the time interval of the current request, started at the outermost entry point
+	 */
+	public TimeInterval getRequestTime() {
+		return requestTime;
+	}
+
+	/**
+	 * @return the stats of the current request's wrapped response, or {@code null} if it was not
+	 *         wrapped
+	 */
+	public ResponseStats getResponseStats() {
+		return responseStats;
+	}
+
+	/**
+	 * @param responseStats
+	 *            the responseStats to set
+	 */
+	public void setResponseStats(final ResponseStats responseStats) {
+		this.responseStats = responseStats;
+	}
+
+	/**
+	 * @return the profile of the current request, created on first use
+	 */
+	public RequestProfile getProfile() {
+		if (profile == null) {
+			profile = new RequestProfile();
+		}
+		return profile;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Status code and number of bytes written of a servlet response. The response may be written by
+ * a thread other than the request thread if it is processed asynchronously.
+ * 
+ * @author rnaegele
+ */
+public class ResponseStats {
+
+	private final AtomicInteger status = new AtomicInteger(200);
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * @return the status code last set, {@code 200} if none was set
+	 */
+	public int getStatus() {
+		return status.get();
+	}
+
+	/**
+	 * @param status
+	 *            the status to set
+	 */
+	public void setStatus(final int status) {
+		this.status.set(status);
+	}
+
+	/**
+	 * @return the holder of the status code, set by the wrapped response
+	 */
+	public AtomicInteger getStatusHolder() {
+		return status;
+	}
+
+	/**
+	 * @return the counter for the bytes written, incremented by the wrapped output stream and writer
+	 */
+	public AtomicLong getByteCounter() {
+		return bytes;
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return the status and bytes formatted for appending to a logged uri
+	 */
+	public String format() {
+		return new StringBuilder(40).append("[status=").append(status.get()).append(", bytes=").append(bytes.get()).append(']')
+				.toString();
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.time.DateFormatUtils;
+
+import com.mgmtp.perfload.agent.config.Rotation;
+
+/**
+ * Writer for a log file that is rotated by size and time. Rotation is checked on {@link #flush()},
+ * so callers flushing after each line never split a line. A rotated file is renamed to
+ * {@code <name>.<sequence>.<start>-<end>.<extension>} with the time range it covers, e. g.
+ * {@code perfload-agent-measuring-4711.00001.20140301T120000-20140301T130000.log}. Compressing it
+ * and adding it to the index file {@code <name>.index} happens in a background thread. Each index
+ * line holds the sequence number, the start and end time in milliseconds, and the file name.
+ * 
+ * @author rnaegele
+ */
+public class RollingFileWriter extends Writer {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String TIMESTAMP_PATTERN = "yyyyMMdd'T'HHmmss";
+
+	private final File file;
+	private final Rotation rotation;
+	private final String baseName;
+	private final String extension;
+	private final ExecutorService archiver;
+
+	private Writer out;
+	private long size;
+	private long startMillis;
+	private int sequence;
+
+	/**
+	 * @param file
+	 *            the log file, which is appended to
+	 * @param rotation
+	 *            the rotation configuration
+	 */
+	public RollingFileWriter(final File file, final Rotation rotation) throws IOException {
+		this.file = file.getAbsoluteFile();
+		this.rotation = rotation;
+		this.baseName = FilenameUtils.getBaseName(file.getName());
+		this.extension = FilenameUtils.getExtension(file.getName());
+		this.sequence = findNextSequence();
+		this.archiver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "perfload-agent-archiver-" + baseName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		open();
+	}
+
+	private void open() throws IOException {
+		out = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+		size = file.length();
+		startMillis = System.currentTimeMillis();
+	}
+
+	@Override
+	public void write(final char[] cbuf, final int off, final int len) throws IOException {
+		out.write(cbuf, off, len);
+		size += len;
+	}
+
+	@Override
+	public void write(final String str, final int off, final int len) throws IOException {
+		out.write(str, off, len);
+		size += len;
+	}
+
+	/**
+	 * Flushes the current file and rotates it if it is due.
+	 */
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+		long now = System.currentTimeMillis();
+		if (size > 0 && (size >= rotation.getMaxFileSize() || now - startMillis >= rotation.getIntervalMillis())) {
+			rotate(now);
+		}
+	}
+
+	private void rotate(final long now) throws IOException {
+		out.close();
+		final int archiveSequence = sequence++;
+		final long archiveStart = startMillis;
+		final File archive = new File(file.getParentFile(), String.format("%s.%05d.%s-%s.%s", baseName, archiveSequence,
+				DateFormatUtils.format(archiveStart, TIMESTAMP_PATTERN), DateFormatUtils.format(now, TIMESTAMP_PATTERN),
+				extension));
+		boolean renamed = file.renameTo(archive);
+		open();
+		if (renamed) {
+			archiver.execute(new Runnable() {
+				@Override
+				public void run() {
+					archive(archive, archiveSequence, archiveStart, now);
+				}
+			});
+		}
+	}
+
+	private void archive(final File archive, final int archiveSequence, final long start, final long end) {
+		File result = archive;
+		try {
+			if (rotation.isCompress()) {
+				result = gzip(archive);
+			}
+			Writer index = new FileWriter(new File(file.getParentFile(), baseName + ".index"), true);
+			try {
+				index.write(archiveSequence + ";" + start + ";" + end + ";" + result.getName() + IOUtils.LINE_SEPARATOR);
+			} finally {
+				index.close();
+			}
+		} catch (IOException ex) {
+			// the agent log may be the file being archived
+			ex.printStackTrace();
+		}
+	}
+
+	private static File gzip(final File source) throws IOException {
+		File target = new File(source.getPath() + ".gz");
+		File tmp = new File(source.getPath() + ".gz.tmp");
+		InputStream in = null;
+		OutputStream out = null;
+		try {
+			in = new FileInputStream(source);
+			out = new GZIPOutputStream(new FileOutputStream(tmp));
+			IOUtils.copy(in, out);
+			out.close();
+		} finally {
+			closeQuietly(in);
+			closeQuietly(out);
+		}
+		if (!tmp.renameTo(target)) {
+			throw new IOException("Could not rename " + tmp + " to " + target);
+		}
+		if (!source.delete()) {
+			throw new IOException("Could not delete " + source);
+		}
+		return target;
+	}
+
+	/**
+	 * Continues the sequence of rotated files from a previous run with the same pid.
+	 */
+	private int findNextSequence() {
+		int next = 1;
+		String prefix = baseName + ".";
+		String[] names = file.getParentFile().list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(prefix) && name.length() > prefix.length() + 5) {
+					try {
+						next = Math.max(next, Integer.parseInt(name.substring(prefix.length(), prefix.length() + 5)) + 1);
+					} catch (NumberFormatException ex) {
+						// not a rotated file
+					}
+				}
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Closes the current file and waits a limited time for pending compressions.
+	 */
+	@Override
+	public void close() throws IOException {
+		out.close();
+		archiver.shutdown();
+		try {
+			archiver.awaitTermination(10L, TimeUnit.SECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
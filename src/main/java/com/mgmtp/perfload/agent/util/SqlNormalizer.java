@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+/**
+ * Normalizes SQL text, so that statements differing only in literal values are aggregated under
+ * the same name. String and numeric literals are replaced with {@code ?}, comments are removed and
+ * whitespace is collapsed.
+ * 
+ * @author rnaegele
+ */
+public final class SqlNormalizer {
+
+	private SqlNormalizer() {
+		// utility class
+	}
+
+	/**
+	 * Normalizes the specified SQL text.
+	 * 
+	 * @param sql
+	 *            the SQL text
+	 * @return the normalized SQL text
+	 */
+	public static String normalize(final String sql) {
+		int length = sql.length();
+		StringBuilder sb = new StringBuilder(length);
+		boolean pendingSpace = false;
+
+		for (int i = 0; i < length; ++i) {
+			char c = sql.charAt(i);
+
+			if (Character.isWhitespace(c)) {
+				pendingSpace = sb.length() > 0;
+				continue;
+			}
+
+			if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+				// line comment
+				while (i < length && sql.charAt(i) != '\n') {
+					++i;
+				}
+				pendingSpace = sb.length() > 0;
+				continue;
+			}
+
+			if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+				// block comment
+				int end = sql.indexOf("*/", i + 2);
+				i = end < 0 ? length : end + 1;
+				pendingSpace = sb.length() > 0;
+				continue;
+			}
+
+			if (pendingSpace) {
+				sb.append(' ');
+				pendingSpace = false;
+			}
+
+			if (c == '\'') {
+				// string literal, quotes are escaped by doubling them
+				++i;
+				while (i < length) {
+					if (sql.charAt(i) == '\'') {
+						if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+							++i;
+						} else {
+							break;
+						}
+					}
+					++i;
+				}
+				sb.append('?');
+			} else if (c == '"') {
+				// quoted identifier, kept as is
+				int end = sql.indexOf('"', i + 1);
+				end = end < 0 ? length - 1 : end;
+				sb.append(sql, i, end + 1);
+				i = end;
+			} else if (Character.isDigit(c) && !isIdentifierPart(sb)) {
+				// numeric literal
+				while (i + 1 < length && isNumberPart(sql.charAt(i + 1))) {
+					++i;
+				}
+				sb.append('?');
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static boolean isIdentifierPart(final StringBuilder sb) {
+		if (sb.length() == 0) {
+			return false;
+		}
+		char c = sb.charAt(sb.length() - 1);
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#';
+	}
+
+	private static boolean isNumberPart(final char c) {
+		return Character.isDigit(c) || c == '.' || c == 'e' || c == 'E';
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mgmtp.perfload.agent.hook.MeasuringHook.Measurement;
+
+/**
+ * Holds the agent's state of a thread. The state has a small, fixed layout and is stored in a
+ * single {@link ThreadLocal}, which keeps per-thread overhead low even for large numbers of
+ * short-lived (e. g. virtual) threads. Hooks access it directly rather than through Guice, so
+ * there are no provider calls and no map lookups in the hot path.
+ * <p>
+ * When a thread is done with a request, its state is reset in place (see {@link #clear()}) and
+ * kept, so the next request on the thread reuses it including its buffers. Threads that only run
+ * tasks on behalf of requests remove their state when it becomes idle (see
+ * {@link #removeIfIdle()}).
+ * </p>
+ * 
+ * @author rnaegele
+ */
+public final class ThreadState {
+
+	private static final ThreadLocal<ThreadState> STATE = new ThreadLocal<ThreadState>();
+	private static final AtomicInteger LIVE_COUNT = new AtomicInteger();
+
+	private final ExecutionParams executionParams = new ExecutionParams();
+	private final RequestState requestState = new RequestState();
+	private final OutermostCall jdbcCall = new OutermostCall();
+	private final OutermostCall httpCall = new OutermostCall();
+	private final ArrayStack<Measurement> measurements = new ArrayStack<Measurement>();
+
+	// number of nested measurements skipped because the stack was full
+	private int overflowDepth;
+
+	// the thread pool executor task being run and the execution params to restore after it
+	private Object executorTask;
+	private ExecutionParams executorTaskPrevious;
+
+	private ThreadState() {
+		// created via current()
+	}
+
+	/**
+	 * Returns the state of the current thread, creating it if necessary.
+	 * 
+	 * @return the state
+	 */
+	public static ThreadState current() {
+		ThreadState state = STATE.get();
+		if (state == null) {
+			state = new ThreadState();
+			STATE.set(state);
+			LIVE_COUNT.incrementAndGet();
+		}
+		return state;
+	}
+
+	/**
+	 * Removes the state of the current thread, releasing everything it references.
+	 */
+	public static void remove() {
+		ThreadState state = STATE.get();
+		if (state != null) {
+			state.measurements.clear();
+			STATE.remove();
+			LIVE_COUNT.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes the state of the current thread if it does not hold anything, i. e. the thread is
+	 * neither processing a request nor has any execution params or pending measurements.
+	 */
+	public static void removeIfIdle() {
+		ThreadState state = STATE.get();
+		if (state != null && state.requestState.isIdle() && state.jdbcCall.isIdle() && state.httpCall.isIdle()
+				&& state.measurements.isEmpty() && state.overflowDepth == 0 && state.executionParams.isEmpty()
+				&& state.executorTask == null) {
+			STATE.remove();
+			LIVE_COUNT.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Resets the state when the thread is done with a request. Execution params, request state and
+	 * pending measurements are cleared; the thread pool executor task, if any, is kept, because the
+	 * request may be processed inside of it.
+	 */
+	public void clear() {
+		executionParams.clear();
+		requestState.clear();
+		measurements.clear();
+		overflowDepth = 0;
+	}
+
+	/**
+	 * @return the number of threads that currently have a state
+	 */
+	public static int getLiveCount() {
+		return LIVE_COUNT.get();
+	}
+
+	/**
+	 * Returns the state of the current thread without creating it. Use this for read-only access
+	 * from threads that may never need any state.
+	 * 
+	 * @return the state, or {@code null} if the current thread does not have any
+	 */
+	public static ThreadState peek() {
+		return STATE.get();
+	}
+
+	/**
+	 * Checks whether the current thread works on behalf of a perfLoad request, i. e. it carries
+	 * execution params. The state is not created if the thread does not have any.
+	 */
+	public static boolean hasExecutionParams() {
+		ThreadState state = STATE.get();
+		return state != null && !state.executionParams.isEmpty();
+	}
+
+	/**
+	 * @return the executionParams
+	 */
+	public ExecutionParams getExecutionParams() {
+		return executionParams;
+	}
+
+	/**
+	 * @return the requestState
+	 */
+	public RequestState getRequestState() {
+		return requestState;
+	}
+
+	/**
+	 * @return the JDBC statement execution of the current thread
+	 */
+	public OutermostCall getJdbcCall() {
+		return jdbcCall;
+	}
+
+	/**
+	 * @return the outbound HTTP request of the current thread
+	 */
+	public OutermostCall getHttpCall() {
+		return httpCall;
+	}
+
+	/**
+	 * @return the measurements stack
+	 */
+	public ArrayStack<Measurement> getMeasurements() {
+		return measurements;
+	}
+
+	/**
+	 * @return the thread pool executor task being run, {@code null} if none or if no execution
+	 *         params were captured for it
+	 */
+	public Object getExecutorTask() {
+		return executorTask;
+	}
+
+	/**
+	 * @return the execution params to restore after the thread pool executor task
+	 */
+	public ExecutionParams getExecutorTaskPrevious() {
+		return executorTaskPrevious;
+	}
+
+	/**
+	 * @param task
+	 *            the thread pool executor task being run, {@code null} when it is done
+	 * @param previous
+	 *            the execution params to restore after the task
+	 */
+	public void setExecutorTask(final Object task, final ExecutionParams previous) {
+		this.executorTask = task;
+		this.executorTaskPrevious = previous;
+	}
+
+	/**
+	 * Records that a measurement was skipped because the stack was full.
+	 */
+	public void incrementOverflowDepth() {
+		overflowDepth++;
+	}
+
+	/**
+	 * Records the end of a skipped measurement.
+	 * 
+	 * @return {@code true} if a skipped measurement ended, {@code false} if the stack is not in
+	 *         overflow
+	 */
+	public boolean decrementOverflowDepth() {
+		if (overflowDepth > 0) {
+			overflowDepth--;
+			return true;
+		}
+		return false;
+	}
+}
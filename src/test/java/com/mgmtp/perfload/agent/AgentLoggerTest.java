@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+/**
+ * @author rnaegele
+ */
+public class AgentLoggerTest {
+
+	@Test
+	public void testCoalesceAndRateLimit() throws IOException {
+		File file = new File("target", "perfload-agent-logger-test.log");
+		AgentLogger logger = new AgentLogger(file);
+
+		for (int i = 0; i < 1000; ++i) {
+			logger.writeln("No measurement found.");
+		}
+		for (int i = 0; i < 1000; ++i) {
+			logger.writeln("message " + i);
+		}
+		logger.close();
+
+		List<String> lines = FileUtils.readLines(file, "UTF-8");
+		assertTrue(lines.get(0).endsWith("[perfLoad Agent] No measurement found."), lines.get(0));
+		assertTrue(lines.get(1).endsWith("[perfLoad Agent] Last message repeated 999 times"), lines.get(1));
+		assertTrue(lines.size() <= AgentLogger.MAX_MESSAGES_PER_SECOND + 3, "lines: " + lines.size());
+		assertTrue(lines.get(lines.size() - 1).contains("[perfLoad Agent] Suppressed "), lines.get(lines.size() - 1));
+		assertEquals(logger.getSuppressedMessages(), 1000L + 1 - lines.size() + 2);
+	}
+}
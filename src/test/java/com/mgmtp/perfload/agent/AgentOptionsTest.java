@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+
+import org.testng.annotations.Test;
+
+/**
+ * @author rnaegele
+ */
+public class AgentOptionsTest {
+
+	private final File agentDir = new File("agent").getAbsoluteFile();
+
+	@Test
+	public void testDefaults() {
+		AgentOptions options = AgentOptions.parse(null, agentDir);
+		assertEquals(options.getConfigFile(), new File(agentDir, AgentOptions.DEFAULT_CONFIG_FILE));
+		assertFalse(options.isLazyInit());
+	}
+
+	@Test
+	public void testOptions() {
+		AgentOptions options = AgentOptions.parse("config=conf/test.json, init=lazy", agentDir);
+		assertEquals(options.getConfigFile(), new File(agentDir, "conf/test.json"));
+		assertTrue(options.isLazyInit());
+
+		File absolute = new File("test.json").getAbsoluteFile();
+		assertEquals(AgentOptions.parse("config=" + absolute, agentDir).getConfigFile(), absolute);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testUnknownOption() {
+		AgentOptions.parse("foo=bar", agentDir);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testInvalidInit() {
+		AgentOptions.parse("init=later", agentDir);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.instrument.Instrumentation;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.testng.SkipException;
+
+/**
+ * Provides an {@link Instrumentation} for tests of hooks woven into JDK classes. The test JVM
+ * attaches to itself and loads this class as agent. Tests are skipped if attaching is not
+ * possible, e. g. on Java 9 and later without {@code -Djdk.attach.allowAttachSelf=true}.
+ * 
+ * @author rnaegele
+ */
+public class AttachedInstrumentation {
+
+	private static final String VIRTUAL_MACHINE_CLASS = "com.sun.tools.attach.VirtualMachine";
+
+	private static volatile Instrumentation instrumentation;
+
+	public static void agentmain(final String agentArgs, final Instrumentation inst) {
+		instrumentation = inst;
+	}
+
+	/**
+	 * @return the instrumentation
+	 * @throws SkipException
+	 *             if the test JVM cannot attach to itself
+	 */
+	public static synchronized Instrumentation get() {
+		if (instrumentation == null) {
+			try {
+				File jarFile = new File("target", "perfload-agent-attached.jar");
+				Manifest manifest = new Manifest();
+				manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+				manifest.getMainAttributes().putValue("Agent-Class", AttachedInstrumentation.class.getName());
+				manifest.getMainAttributes().putValue("Can-Retransform-Classes", "true");
+				new JarOutputStream(new FileOutputStream(jarFile), manifest).close();
+
+				Class<?> vmClass = loadVirtualMachineClass();
+				Object vm = vmClass.getMethod("attach", String.class).invoke(null, String.valueOf(Agent.retrievePid()));
+				try {
+					vmClass.getMethod("loadAgent", String.class).invoke(vm, jarFile.getAbsolutePath());
+				} finally {
+					vmClass.getMethod("detach").invoke(vm);
+				}
+			} catch (Exception ex) {
+				throw new SkipException("Cannot attach to the test JVM: " + ex);
+			}
+		}
+		return instrumentation;
+	}
+
+	private static Class<?> loadVirtualMachineClass() throws Exception {
+		try {
+			return Class.forName(VIRTUAL_MACHINE_CLASS);
+		} catch (ClassNotFoundException ex) {
+			// up to Java 8, the attach api is part of tools.jar
+			File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar");
+			return Class.forName(VIRTUAL_MACHINE_CLASS, true, new URLClassLoader(new URL[] { toolsJar.toURI().toURL() }));
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author rnaegele
+ */
+public class BootstrapBridgeTest {
+
+	@Test
+	public void testWriteBridgeJar() throws IOException {
+		File file = new File("target", "perfload-agent-bootstrap-test.jar");
+		BootstrapBridge.writeBridgeJar(file);
+
+		JarFile jarFile = new JarFile(file);
+		try {
+			List<String> entries = Lists.newArrayList();
+			for (Enumeration<JarEntry> en = jarFile.entries(); en.hasMoreElements();) {
+				JarEntry entry = en.nextElement();
+				entries.add(entry.getName());
+				assertBootstrapOnly(new ClassReader(jarFile.getInputStream(entry)));
+			}
+			assertEquals(entries.size(), BootstrapBridge.BRIDGE_CLASSES.length);
+		} finally {
+			jarFile.close();
+		}
+	}
+
+	/**
+	 * Classes on the bootstrap class path cannot see any agent classes outside the bridge.
+	 */
+	private void assertBootstrapOnly(final ClassReader cr) {
+		cr.accept(new ClassVisitor(Opcodes.ASM4) {
+			@Override
+			public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature,
+					final String[] exceptions) {
+				assertAllowed(desc);
+				return new MethodVisitor(Opcodes.ASM4) {
+					@Override
+					public void visitMethodInsn(final int opcode, final String owner, final String name, final String desc) {
+						assertAllowed(owner);
+						assertAllowed(desc);
+					}
+
+					@Override
+					public void visitTypeInsn(final int opcode, final String type) {
+						assertAllowed(type);
+					}
+				};
+			}
+		}, 0);
+	}
+
+	private void assertAllowed(final String typeOrDesc) {
+		String s = typeOrDesc.replace(BootstrapBridge.BRIDGE_PACKAGE, "");
+		assertTrue(!s.contains("com/mgmtp/perfload/agent/"), typeOrDesc);
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the throughput of a measured method called concurrently by an increasing number of
+ * threads in a JVM with the agent and the test configuration. Not run as part of the tests.
+ * 
+ * <pre>
+ * java -cp target/test-classes com.mgmtp.perfload.agent.MeasuringBenchmark &lt;agent jar&gt; [calls per run]
+ * </pre>
+ * 
+ * @author rnaegele
+ */
+public class MeasuringBenchmark {
+
+	private static final String CONFIG_FILE = "src/test/resources/perfload-agent.json";
+
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: MeasuringBenchmark <agent jar> [calls per run]");
+			System.exit(1);
+		}
+		String agentJar = new File(args[0]).getAbsolutePath();
+		String calls = args.length > 1 ? args[1] : "100000";
+
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-javaagent:" + agentJar + "=config=" + new File(CONFIG_FILE).getAbsolutePath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Probe.class.getName());
+		command.add(calls);
+
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+		try {
+			for (String line; (line = reader.readLine()) != null;) {
+				System.out.println(line);
+			}
+		} finally {
+			reader.close();
+		}
+		System.exit(process.waitFor());
+	}
+
+	/**
+	 * Main class of the measured JVM.
+	 */
+	public static class Probe {
+		private static final String MEASURED_CLASS = "com.mgmtp.perfload.agent.Test";
+
+		public static void main(final String[] args) throws Exception {
+			int callsPerRun = Integer.parseInt(args[0]);
+			int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+			Class<?> measuredClass = loadMeasuredClass();
+			Object test = measuredClass.getConstructor(Boolean.class).newInstance(Boolean.FALSE);
+			Method compute = measuredClass.getMethod("compute", int.class);
+
+			// warm up
+			run(test, compute, 1, callsPerRun);
+
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				long millis = Math.max(1L, run(test, compute, threads, callsPerRun));
+				System.out.println(String.format("%2d thread(s): %8d calls/s", threads, callsPerRun * 1000L / millis));
+			}
+		}
+
+		/**
+		 * Loads the measured class with a class loader of its own, since the agent does not
+		 * transform the classes of its package loaded by its own class loader.
+		 */
+		private static Class<?> loadMeasuredClass() throws ClassNotFoundException {
+			URL testClasses = Probe.class.getProtectionDomain().getCodeSource().getLocation();
+			ClassLoader loader = new URLClassLoader(new URL[] { testClasses }, Probe.class.getClassLoader()) {
+				@Override
+				protected synchronized Class<?> loadClass(final String name, final boolean resolve)
+						throws ClassNotFoundException {
+					if (MEASURED_CLASS.equals(name)) {
+						Class<?> loadedClass = findLoadedClass(name);
+						return loadedClass != null ? loadedClass : findClass(name);
+					}
+					return super.loadClass(name, resolve);
+				}
+			};
+			return loader.loadClass(MEASURED_CLASS);
+		}
+
+		private static long run(final Object test, final Method compute, final int threads, final int callsPerRun)
+				throws Exception {
+			final int callsPerThread = callsPerRun / threads;
+			final CountDownLatch start = new CountDownLatch(1);
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<Void>> results = new ArrayList<Future<Void>>();
+				for (int t = 0; t < threads; ++t) {
+					results.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							start.await();
+							for (int i = 0; i < callsPerThread; ++i) {
+								compute.invoke(test, i);
+							}
+							return null;
+						}
+					}));
+				}
+				long startTime = System.nanoTime();
+				start.countDown();
+				for (Future<Void> result : results) {
+					result.get();
+				}
+				return (System.nanoTime() - startTime) / 1000000L;
+			} finally {
+				executor.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the time from starting a JVM until its main method is called without the agent and
+ * with the agent initialized eagerly and lazily. Not run as part of the tests.
+ * 
+ * <pre>
+ * java -cp target/test-classes com.mgmtp.perfload.agent.StartupBenchmark &lt;agent jar&gt; [runs]
+ * </pre>
+ * 
+ * @author rnaegele
+ */
+public class StartupBenchmark {
+
+	private static final String MAIN_CALLED = "main called";
+
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: StartupBenchmark <agent jar> [runs]");
+			System.exit(1);
+		}
+		String agentJar = new File(args[0]).getAbsolutePath();
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		List<String> modes = Arrays.asList("none", "eager", "lazy");
+
+		// warm up file system caches
+		for (String mode : modes) {
+			measure(agentJar, mode);
+		}
+
+		for (String mode : modes) {
+			List<Long> times = new ArrayList<Long>(runs);
+			for (int i = 0; i < runs; ++i) {
+				times.add(measure(agentJar, mode));
+			}
+			Collections.sort(times);
+			long sum = 0L;
+			for (long time : times) {
+				sum += time;
+			}
+			System.out.println(String.format("%-6s min=%4d ms  median=%4d ms  mean=%4d ms", mode, times.get(0),
+					times.get(runs / 2), sum / runs));
+		}
+	}
+
+	private static long measure(final String agentJar, final String mode) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if (!"none".equals(mode)) {
+			command.add("-javaagent:" + agentJar + "=init=" + mode);
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Probe.class.getName());
+
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+		try {
+			for (String line; (line = reader.readLine()) != null;) {
+				if (MAIN_CALLED.equals(line)) {
+					long time = (System.nanoTime() - start) / 1000000L;
+					process.waitFor();
+					return time;
+				}
+			}
+			throw new IllegalStateException("Probe did not start in mode: " + mode);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Main class of the measured JVM.
+	 */
+	public static class Probe {
+		public static void main(final String[] args) {
+			System.out.println(MAIN_CALLED);
+		}
+	}
+}
@@ -50,6 +50,14 @@ public class Test {
 		System.out.println(l1 + "-" + l2);
 	}
 
+	public void checkSI(final String s, final int i) {
+		System.out.println(s + i);
+	}
+
+	public int compute(final int i) {
+		return i * 31 + (flag ? 1 : 0);
+	}
+
 	public static void main(final String[] args) {
 		checkI(42);
 		Test test = new Test(Boolean.FALSE);
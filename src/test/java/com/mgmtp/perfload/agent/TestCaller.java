@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @author rnaegele
+ */
+public class TestCaller {
+
+	private final int first;
+
+	public TestCaller(final InputStream in) throws IOException {
+		this.first = in.read();
+	}
+
+	public int getFirst() {
+		return first;
+	}
+
+	public int count(final InputStream in) throws IOException {
+		int count = 0;
+		while (in.read() >= 0) {
+			++count;
+		}
+		return count;
+	}
+
+	public int countBytes(final byte[] bytes) {
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+		int count = 0;
+		try {
+			while (in.read() >= 0) {
+				++count;
+			}
+		} finally {
+			in.reset();
+		}
+		return count;
+	}
+}
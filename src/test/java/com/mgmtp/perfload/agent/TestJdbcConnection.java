@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+/**
+ * In-memory stand-in for a JDBC driver's connection. Only the methods needed by the tests are
+ * implemented.
+ * 
+ * @author rnaegele
+ */
+public abstract class TestJdbcConnection implements Connection {
+
+	private PreparedStatement statement;
+
+	public void setStatement(final PreparedStatement statement) {
+		this.statement = statement;
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(final String sql) {
+		return statement;
+	}
+}
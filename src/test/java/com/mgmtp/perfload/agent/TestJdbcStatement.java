@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * In-memory stand-in for a JDBC driver's prepared statement. Only the methods needed by the tests
+ * are implemented.
+ * 
+ * @author rnaegele
+ */
+public abstract class TestJdbcStatement implements PreparedStatement {
+
+	@Override
+	public ResultSet executeQuery() {
+		return null;
+	}
+
+	@Override
+	public int executeUpdate(final String sql) {
+		return 1;
+	}
+
+	@Override
+	public boolean execute(final String sql) throws SQLException {
+		// nested execution as done by some drivers
+		executeUpdate(sql);
+		throw new SQLException("Table does not exist");
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread pool executor with a priority queue, which requires its tasks to be
+ * {@link Comparable}.
+ * 
+ * @author rnaegele
+ */
+public class TestPriorityExecutor extends ThreadPoolExecutor {
+
+	private final List<Runnable> executedTasks = new CopyOnWriteArrayList<Runnable>();
+
+	public TestPriorityExecutor() {
+		super(1, 1, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+	}
+
+	@Override
+	public void execute(final Runnable command) {
+		super.execute(command);
+	}
+
+	@Override
+	protected void beforeExecute(final Thread thread, final Runnable task) {
+		super.beforeExecute(thread, task);
+	}
+
+	@Override
+	protected void afterExecute(final Runnable task, final Throwable throwable) {
+		super.afterExecute(task, throwable);
+		executedTasks.add(task);
+	}
+
+	/**
+	 * @return the tasks passed to {@link #afterExecute(Runnable, Throwable)}
+	 */
+	public List<Runnable> getExecutedTasks() {
+		return executedTasks;
+	}
+}
@@ -31,6 +31,23 @@ public class TestServlet extends HttpServlet {
 	@Override
 	public void service(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
 		new Test(false).checkLL(42L, 43L);
+
+		String body = req.getParameter("body");
+		if (body != null) {
+			resp.setStatus(HttpServletResponse.SC_CREATED);
+			resp.getOutputStream().write(body.getBytes("UTF-8"));
+		}
+		if (req.getParameter("flush") != null) {
+			resp.getOutputStream().flush();
+		}
+		if (req.getParameter("reset") != null) {
+			req.setAttribute("response", resp);
+			resp.reset();
+		}
+		String text = req.getParameter("text");
+		if (text != null) {
+			resp.getWriter().print(text);
+		}
 	}
 }
 //
\ No newline at end of file
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread pool executor that inherits the worker callbacks of {@link ThreadPoolExecutor}, which
+ * is not instrumented in the tests, so only its submission method gets a hook.
+ * 
+ * @author rnaegele
+ */
+public class TestThreadPoolExecutor extends ThreadPoolExecutor {
+
+	public TestThreadPoolExecutor() {
+		super(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+	}
+
+	@Override
+	public void execute(final Runnable command) {
+		super.execute(command);
+	}
+}
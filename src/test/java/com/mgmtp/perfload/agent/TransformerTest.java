@@ -15,44 +15,106 @@
  */
 package com.mgmtp.perfload.agent;
 
+import static java.util.Arrays.asList;
 import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import com.mgmtp.perfload.agent.util.ClassNameUtils;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
 import com.google.inject.AbstractModule;
 import com.google.inject.Injector;
 import com.google.inject.util.Modules;
 import com.mgmtp.perfload.agent.annotations.ConfigFile;
+import com.mgmtp.perfload.agent.hook.AsyncRequestTracker;
+import com.mgmtp.perfload.agent.hook.HttpUrlConnectionHookMethodVisitor;
+import com.mgmtp.perfload.agent.hook.InstrumentationSwitches;
+import com.mgmtp.perfload.agent.hook.ResponseWrapper;
 import com.mgmtp.perfload.agent.hook.ServletApiHook;
+import com.mgmtp.perfload.agent.util.ExecutionParams;
+import com.mgmtp.perfload.agent.util.ThreadState;
 
 /**
  * @author rnaegele
@@ -65,9 +127,21 @@ public class TransformerTest {
 	@Inject
 	private Transformer transformer;
 
+	@Inject
+	private BootstrapBridge bootstrapBridge;
+
+	@Inject
+	private InstrumentationSwitches switches;
+
 	private Class<?> testClass;
 	private Class<?> filterClass;
 	private Class<?> servletClass;
+	private Class<?> executorClass;
+	private Class<?> priorityExecutorClass;
+	private Class<?> threadPoolExecutorClass;
+	private Class<?> jdbcConnectionClass;
+	private Class<?> jdbcStatementClass;
+	private Class<?> callerClass;
 
 	private HttpServletRequest request;
 	private UUID execId;
@@ -93,6 +167,12 @@ public class TransformerTest {
 		testClass = loadClass("com.mgmtp.perfload.agent.Test");
 		filterClass = loadClass("com.mgmtp.perfload.agent.TestFilter");
 		servletClass = loadClass("com.mgmtp.perfload.agent.TestServlet");
+		executorClass = loadClass("com.mgmtp.perfload.agent.TestExecutor");
+		priorityExecutorClass = loadClass("com.mgmtp.perfload.agent.TestPriorityExecutor");
+		threadPoolExecutorClass = loadClass("com.mgmtp.perfload.agent.TestThreadPoolExecutor");
+		jdbcConnectionClass = loadClass("com.mgmtp.perfload.agent.TestJdbcConnection");
+		jdbcStatementClass = loadClass("com.mgmtp.perfload.agent.TestJdbcStatement");
+		callerClass = loadClass("com.mgmtp.perfload.agent.TestCaller");
 	}
 
 	@BeforeMethod
@@ -107,6 +187,9 @@ public class TransformerTest {
 
 	@Test
 	public void testMeasuringHook() throws Exception {
+		// other tests may have logged measurements before
+		int offset = MEASURING_LOG_FILE.exists() ? Files.readLines(MEASURING_LOG_FILE, Charsets.UTF_8).size() : 0;
+
 		Constructor<?> constructor = testClass.getConstructor(Boolean.class);
 
 		Object object = constructor.newInstance(Boolean.TRUE);
@@ -123,6 +206,7 @@ public class TransformerTest {
 		testClass.getMethod("check").invoke(object);
 
 		List<String> measuringLogContents = Files.readLines(MEASURING_LOG_FILE, Charsets.UTF_8);
+		measuringLogContents = measuringLogContents.subList(offset, measuringLogContents.size());
 		assertEquals(measuringLogContents.size(), 4);
 		assertTrue(measuringLogContents.get(0).contains("ERROR"));
 		assertTrue(measuringLogContents.get(1).contains("SUCCESS"));
@@ -130,6 +214,102 @@ public class TransformerTest {
 		assertTrue(measuringLogContents.get(3).contains("SUCCESS"));
 	}
 
+	@Test
+	public void testMeasuringHookWithArgumentLabels() throws Exception {
+		Object object = testClass.getConstructor(Boolean.class).newInstance(Boolean.FALSE);
+		testClass.getMethod("checkSI", String.class, int.class).invoke(object, "report", 42);
+
+		String fileContents = Files.toString(MEASURING_LOG_FILE, Charsets.UTF_8);
+		assertTrue(fileContents.contains("checkSI(j.l.String, int) [42, 6];c.m.p.a.Test.checkSI(j.l.String, int);"));
+	}
+
+	@Test
+	public void testMeasuringHookPassesArgumentsForLabelsOnly() throws Exception {
+		String internalName = "com/mgmtp/perfload/agent/Test";
+		byte[] classBytes = transformer.transform(null, internalName, null, null,
+				Resources.toByteArray(Resources.getResource(internalName + ".class")));
+
+		final Map<String, String> enterHookDescs = Maps.newHashMap();
+		new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM4) {
+			@Override
+			public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature,
+					final String[] exceptions) {
+				return new MethodVisitor(Opcodes.ASM4) {
+					@Override
+					@SuppressWarnings("deprecation")
+					public void visitMethodInsn(final int opcode, final String owner, final String methodName,
+							final String methodDesc) {
+						if ("enterMeasuringHook".equals(methodName)) {
+							enterHookDescs.put(name, methodDesc);
+						}
+					}
+				};
+			}
+		}, 0);
+
+		assertEquals(enterHookDescs.get("checkLL"), "(Ljava/lang/Object;Ljava/lang/String;)V");
+		assertEquals(enterHookDescs.get("checkSI"), "(Ljava/lang/Object;Ljava/lang/String;[Ljava/lang/Object;)V");
+	}
+
+	@Test
+	public void testInstrumentationSwitches() throws Exception {
+		int offset = MEASURING_LOG_FILE.exists() ? Files.readLines(MEASURING_LOG_FILE, Charsets.UTF_8).size() : 0;
+
+		Object object = testClass.getConstructor(Boolean.class).newInstance(Boolean.FALSE);
+		Method checkLL = testClass.getMethod("checkLL", long.class, long.class);
+
+		assertEquals(switches.disable("com.mgmtp.perfload.agent.Test.check*"), 4);
+		try {
+			checkLL.invoke(object, 1L, 2L);
+			assertTrue(asList(switches.getDisabledSwitches()).contains("com.mgmtp.perfload.agent.Test.checkLL"));
+			assertEquals(switches.enable("com.mgmtp.perfload.agent.Test.checkLL"), 1);
+			checkLL.invoke(object, 3L, 4L);
+		} finally {
+			switches.reset();
+		}
+
+		List<String> lines = Files.readLines(MEASURING_LOG_FILE, Charsets.UTF_8);
+		lines = lines.subList(offset, lines.size());
+		assertEquals(lines.size(), 1);
+		assertTrue(lines.get(0).contains("c.m.p.a.Test.checkLL(long, long)"));
+	}
+
+	@Test
+	public void testInstrumentationSwitchesWithCallSites() throws Exception {
+		String internalName = "com/mgmtp/perfload/agent/Test";
+		byte[] classBytes = Resources.toByteArray(Resources.getResource(internalName + ".class"));
+		// Java 7 class file version, so the switches are read via invokedynamic
+		classBytes[6] = 0;
+		classBytes[7] = (byte) Opcodes.V1_7;
+		final byte[] transformedClass = transformer.transform(null, internalName, null, null, classBytes);
+		Class<?> clazz = new ClassLoader(getClass().getClassLoader()) {
+			Class<?> define() {
+				return defineClass(null, transformedClass, 0, transformedClass.length);
+			}
+		}.define();
+
+		int offset = MEASURING_LOG_FILE.exists() ? Files.readLines(MEASURING_LOG_FILE, Charsets.UTF_8).size() : 0;
+
+		Object object = clazz.getConstructor(Boolean.class).newInstance(Boolean.FALSE);
+		Method checkLL = clazz.getMethod("checkLL", long.class, long.class);
+
+		// links the call site before the switch is toggled
+		checkLL.invoke(object, 1L, 2L);
+		assertEquals(switches.disable("com.mgmtp.perfload.agent.Test.checkLL"), 1);
+		try {
+			checkLL.invoke(object, 3L, 4L);
+		} finally {
+			switches.reset();
+		}
+		checkLL.invoke(object, 5L, 6L);
+
+		List<String> lines = Files.readLines(MEASURING_LOG_FILE, Charsets.UTF_8);
+		lines = lines.subList(offset, lines.size());
+		assertEquals(lines.size(), 2);
+		assertTrue(lines.get(0).contains("c.m.p.a.Test.checkLL(long, long)"));
+		assertTrue(lines.get(1).contains("c.m.p.a.Test.checkLL(long, long)"));
+	}
+
 	@Test
 	public void testServletApiHookWithFilter() throws Exception {
 		Object filter = filterClass.newInstance();
@@ -151,6 +331,543 @@ public class TransformerTest {
 		assertTrue(fileContents.contains(ClassNameUtils.abbreviatePackageName(servletClass.getName())));
 	}
 
+	@Test
+	public void testServletApiHookResetsThreadState() throws Exception {
+		ThreadState.remove();
+		Object servlet = servletClass.newInstance();
+		Method service = servletClass.getMethod("service", HttpServletRequest.class, HttpServletResponse.class);
+
+		service.invoke(servlet, request, mock(HttpServletResponse.class));
+		ThreadState state = ThreadState.peek();
+		assertNotNull(state, "state must be kept for the next request");
+		assertReset(state);
+
+		// the servlet fails
+		when(request.getParameter("body")).thenReturn("hello");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.getOutputStream()).thenThrow(new IOException("broken pipe"));
+		try {
+			service.invoke(servlet, request, response);
+			fail();
+		} catch (InvocationTargetException ex) {
+			assertTrue(ex.getCause() instanceof IOException, ex.getCause().toString());
+		}
+		assertSame(ThreadState.peek(), state);
+		assertReset(state);
+	}
+
+	private void assertReset(final ThreadState state) {
+		assertTrue(state.getExecutionParams().isEmpty());
+		assertTrue(state.getRequestState().isIdle());
+		assertNull(state.getRequestState().getRequestTime());
+		assertNull(state.getRequestState().getResponseStats());
+		assertTrue(state.getMeasurements().isEmpty());
+	}
+
+	@Test
+	public void testServletApiHookWithException() throws Exception {
+		when(request.getParameter("body")).thenReturn("hello");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.getOutputStream()).thenThrow(new IOException("connection reset"));
+
+		Object servlet = servletClass.newInstance();
+		try {
+			servletClass.getMethod("service", HttpServletRequest.class, HttpServletResponse.class).invoke(servlet, request,
+					response);
+			fail();
+		} catch (InvocationTargetException ex) {
+			assertTrue(ex.getCause() instanceof IOException, ex.getCause().toString());
+		}
+
+		String fileContents = Files.toString(MEASURING_LOG_FILE, Charsets.UTF_8);
+		assertTrue(fileContents.contains(String.format("operation;AGENT;[request] %s [status=500, bytes=0];[request] %1$s;"
+				+ "ERROR;%s;%s", "c.m.p.a.TestServlet.service(j.s.h.HttpServletRequest, j.s.h.HttpServletResponse)", execId,
+				reqId)), fileContents);
+	}
+
+	@Test
+	public void testServletApiHookWithSendTime() throws Exception {
+		when(request.getHeader(ServletApiHook.SEND_TIME_HEADER)).thenReturn(String.valueOf(System.currentTimeMillis() - 250L));
+
+		Object servlet = servletClass.newInstance();
+		servletClass.getMethod("service", HttpServletRequest.class, HttpServletResponse.class).invoke(servlet, request,
+				mock(HttpServletResponse.class));
+
+		String fileContents = Files.toString(MEASURING_LOG_FILE, Charsets.UTF_8);
+		Matcher matcher = Pattern.compile(String.format("[^\r\n;]*;(\\d+);operation;AGENT;\\[inbound\\] [^\r\n]*?%s;%s",
+				execId, reqId)).matcher(fileContents);
+		assertTrue(matcher.find());
+		assertTrue(Long.parseLong(matcher.group(1)) >= 250L, matcher.group());
+	}
+
+	@Test
+	public void testServletApiHookWithRequestTiming() throws Exception {
+		when(request.getParameter("body")).thenReturn("hello");
+		when(request.getParameter("text")).thenReturn("gr\u00fc\u00df");
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		StringWriter text = new StringWriter();
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+			@Override
+			public void write(final int b) throws IOException {
+				bytes.write(b);
+			}
+		});
+		when(response.getWriter()).thenReturn(new PrintWriter(text));
+		when(response.getCharacterEncoding()).thenReturn("UTF-8");
+
+		Object servlet = servletClass.newInstance();
+		servletClass.getMethod("service", HttpServletRequest.class, HttpServletResponse.class).invoke(servlet, request,
+				response);
+
+		verify(response).setStatus(HttpServletResponse.SC_CREATED);
+		ArgumentCaptor<String> serverTiming = ArgumentCaptor.forClass(String.class);
+		verify(response).setHeader(eq(ResponseWrapper.SERVER_TIMING_HEADER), serverTiming.capture());
+		// added before the first write, so the servlet itself is still running and not included
+		assertTrue(serverTiming.getValue().matches("total;dur=\\d+\\.\\d{3}, m1;desc=\"c\\.m\\.p\\.a\\.Test\\.checkLL\\(long, long\\) x1\";"
+				+ "dur=\\d+\\.\\d{3}"), serverTiming.getValue());
+		assertEquals(bytes.toString("UTF-8"), "hello");
+		assertEquals(text.toString(), "gr\u00fc\u00df");
+
+		String fileContents = Files.toString(MEASURING_LOG_FILE, Charsets.UTF_8);
+		// two bytes for each umlaut
+		assertTrue(fileContents.contains(String.format("operation;AGENT;[request] %s [status=201, bytes=11];[request] %1$s;"
+				+ "SUCCESS;%s;%s", "c.m.p.a.TestServlet.service(j.s.h.HttpServletRequest, j.s.h.HttpServletResponse)", execId,
+				reqId)));
+	}
+
+	@Test
+	public void testResponseWrapperReset() throws Exception {
+		when(request.getParameter("body")).thenReturn("hello");
+		when(request.getParameter("reset")).thenReturn("true");
+		when(request.getParameter("text")).thenReturn("hi");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+		when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+
+		Object servlet = servletClass.newInstance();
+		servletClass.getMethod("service", HttpServletRequest.class, HttpServletResponse.class).invoke(servlet, request,
+				response);
+
+		ArgumentCaptor<Object> wrapped = ArgumentCaptor.forClass(Object.class);
+		verify(request).setAttribute(eq("response"), wrapped.capture());
+		assertTrue(wrapped.getValue() instanceof HttpServletResponseWrapper);
+		assertSame(((HttpServletResponseWrapper) wrapped.getValue()).getResponse(), response);
+		verify(response).reset();
+		// the reset clears the header, so it is added again before the next write
+		verify(response, times(2)).setHeader(eq(ResponseWrapper.SERVER_TIMING_HEADER), startsWith("total;dur="));
+
+		String fileContents = Files.toString(MEASURING_LOG_FILE, Charsets.UTF_8);
+		assertTrue(fileContents.contains(String.format("operation;AGENT;[request] %s [status=200, bytes=2];[request] %1$s;"
+				+ "SUCCESS;%s;%s", "c.m.p.a.TestServlet.service(j.s.h.HttpServletRequest, j.s.h.HttpServletResponse)", execId,
+				reqId)));
+	}
+
+	@Test
+	public void testServerTimingBeforeStreamCommitsResponse() throws Exception {
+		when(request.getParameter("flush")).thenReturn("true");
+		final AtomicBoolean committed = new AtomicBoolean();
+		ServletOutputStream stream = mock(ServletOutputStream.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(final InvocationOnMock invocation) {
+				committed.set(true);
+				return null;
+			}
+		}).when(stream).flush();
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.getOutputStream()).thenReturn(stream);
+		when(response.isCommitted()).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(final InvocationOnMock invocation) {
+				return committed.get();
+			}
+		});
+
+		Object servlet = servletClass.newInstance();
+		servletClass.getMethod("service", HttpServletRequest.class, HttpServletResponse.class).invoke(servlet, request,
+				response);
+
+		// the flush commits the response, so the header must be set before
+		InOrder inOrder = inOrder(response, stream);
+		inOrder.verify(response).setHeader(eq(ResponseWrapper.SERVER_TIMING_HEADER), startsWith("total;dur="));
+		inOrder.verify(stream).flush();
+	}
+
+	@Test
+	public void testServletApiHookWithAsyncServlet() throws Exception {
+		AsyncContext asyncContext = mock(AsyncContext.class);
+		when(request.isAsyncStarted()).thenReturn(true);
+		when(request.getAsyncContext()).thenReturn(asyncContext);
+
+		Object servlet = servletClass.newInstance();
+		servletClass.getMethod("service", HttpServletRequest.class, HttpServletResponse.class).invoke(servlet, request,
+				mock(HttpServletResponse.class));
+
+		ArgumentCaptor<AsyncListener> listenerCaptor = ArgumentCaptor.forClass(AsyncListener.class);
+		verify(asyncContext).addListener(listenerCaptor.capture());
+
+		// complete the request on a different thread
+		final AsyncListener listener = listenerCaptor.getValue();
+		final AsyncEvent event = mock(AsyncEvent.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.getStatus()).thenReturn(HttpServletResponse.SC_ACCEPTED);
+		when(event.getSuppliedResponse()).thenReturn(response);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					listener.onComplete(event);
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+
+		String fileContents = Files.toString(MEASURING_LOG_FILE, Charsets.UTF_8);
+		assertTrue(fileContents.matches(String.format("(?s).*%s[^\r\n]*?\\[async\\] \\[status=202\\];[^\r\n]*?%s[^\r\n]*?%s.*",
+				"operation", execId, reqId)), fileContents);
+	}
+
+	@Test
+	public void testServletApiHookWithAsyncDispatch() throws Exception {
+		when(request.getHeader(ServletApiHook.SEND_TIME_HEADER)).thenReturn(String.valueOf(System.currentTimeMillis()));
+		AsyncContext asyncContext = mock(AsyncContext.class);
+		when(request.isAsyncStarted()).thenReturn(true);
+		when(request.getAsyncContext()).thenReturn(asyncContext);
+
+		Object servlet = servletClass.newInstance();
+		Method service = servletClass.getMethod("service", HttpServletRequest.class, HttpServletResponse.class);
+		service.invoke(servlet, request, mock(HttpServletResponse.class));
+		verify(request).setAttribute(AsyncRequestTracker.TRACKED_ATTRIBUTE, Boolean.TRUE);
+
+		// dispatched again by the async context, the container completes the request afterwards
+		when(request.getAttribute(AsyncRequestTracker.TRACKED_ATTRIBUTE)).thenReturn(Boolean.TRUE);
+		when(request.isAsyncStarted()).thenReturn(false);
+		service.invoke(servlet, request, mock(HttpServletResponse.class));
+
+		ArgumentCaptor<AsyncListener> listenerCaptor = ArgumentCaptor.forClass(AsyncListener.class);
+		verify(asyncContext).addListener(listenerCaptor.capture());
+		AsyncEvent event = mock(AsyncEvent.class);
+		when(event.getSuppliedResponse()).thenReturn(mock(HttpServletResponse.class));
+		listenerCaptor.getValue().onComplete(event);
+
+		String fileContents = Files.toString(MEASURING_LOG_FILE, Charsets.UTF_8);
+		assertEquals(countRecords(fileContents, "[inbound] "), 1);
+		assertEquals(countRecords(fileContents, "[request] "), 0);
+		assertEquals(countRecords(fileContents, " [async] "), 1);
+	}
+
+	@Test
+	public void testContextPropagationWithExecutor() throws Exception {
+		ExecutionParams executionParams = ThreadState.current().getExecutionParams();
+		executionParams.setExecutionId(execId);
+		executionParams.setOperation("operation");
+		executionParams.setRequestId(reqId);
+		try {
+			Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						testClass.getMethod("checkI", int.class).invoke(null, 4711);
+					} catch (Exception ex) {
+						throw new IllegalStateException(ex);
+					}
+				}
+			};
+			Object executor = executorClass.newInstance();
+			executorClass.getMethod("execute", Runnable.class).invoke(executor, task);
+		} finally {
+			executionParams.clear();
+		}
+
+		String fileContents = Files.toString(MEASURING_LOG_FILE, Charsets.UTF_8);
+		assertTrue(fileContents.matches(String.format("(?s).*%s[^\r\n]*?checkI[^\r\n]*?%s[^\r\n]*?%s.*", "operation",
+				execId, reqId)));
+		assertTrue(fileContents.matches(String.format(
+				"(?s).*%s[^\r\n]*?\\[queue\\] c.m.p.a.TestExecutor;[^\r\n]*?%s[^\r\n]*?%s.*", "operation", execId, reqId)));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testContextPropagationWithPriorityExecutor() throws Exception {
+		ThreadPoolExecutor executor = (ThreadPoolExecutor) priorityExecutorClass.newInstance();
+		CountDownLatch blocker = new CountDownLatch(1);
+		List<PriorityTask> tasks = new ArrayList<PriorityTask>();
+
+		ExecutionParams executionParams = ThreadState.current().getExecutionParams();
+		executionParams.setExecutionId(execId);
+		executionParams.setOperation("operation");
+		executionParams.setRequestId(reqId);
+		try {
+			// occupies the worker, so the other tasks are queued
+			tasks.add(new PriorityTask(0, blocker));
+			executor.execute(tasks.get(0));
+			for (int priority = 3; priority > 0; --priority) {
+				executor.execute(new PriorityTask(priority, null));
+			}
+			PriorityTask removed = new PriorityTask(4, null);
+			executor.execute(removed);
+			assertTrue(executor.remove(removed), "the submitted task must be queued");
+		} finally {
+			executionParams.clear();
+			blocker.countDown();
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10L, TimeUnit.SECONDS));
+
+		List<Runnable> executedTasks = (List<Runnable>) priorityExecutorClass.getMethod("getExecutedTasks").invoke(executor);
+		assertEquals(executedTasks.size(), 4);
+		for (int i = 0; i < executedTasks.size(); ++i) {
+			PriorityTask task = (PriorityTask) executedTasks.get(i);
+			assertEquals(task.priority, i, "tasks must run in priority order");
+			assertEquals(task.requestId, reqId);
+		}
+	}
+
+	@Test
+	public void testContextPropagationWithoutWorkerHooks() throws Exception {
+		ThreadPoolExecutor executor = (ThreadPoolExecutor) threadPoolExecutorClass.newInstance();
+		final PriorityTask task = new PriorityTask(0, null);
+
+		ExecutionParams executionParams = ThreadState.current().getExecutionParams();
+		executionParams.setExecutionId(execId);
+		executionParams.setOperation("operation");
+		executionParams.setRequestId(reqId);
+		try {
+			// the worker callbacks are not instrumented, so the task must be wrapped
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					task.run();
+				}
+			});
+		} finally {
+			executionParams.clear();
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10L, TimeUnit.SECONDS));
+		assertEquals(task.requestId, reqId);
+	}
+
+	@Test
+	public void testJdbcHook() throws Exception {
+		// real methods of the abstract stand-in classes are called
+		PreparedStatement statement = (PreparedStatement) mock(jdbcStatementClass, CALLS_REAL_METHODS);
+		Connection connection = (Connection) mock(jdbcConnectionClass, CALLS_REAL_METHODS);
+		jdbcConnectionClass.getMethod("setStatement", PreparedStatement.class).invoke(connection, statement);
+
+		ExecutionParams executionParams = ThreadState.current().getExecutionParams();
+		executionParams.setExecutionId(execId);
+		executionParams.setOperation("operation");
+		executionParams.setRequestId(reqId);
+		try {
+			connection.prepareStatement("select * from foo  where id = 42 and name = 'it''s' -- comment").executeQuery();
+			statement.executeUpdate("update foo set bar = 1.5e3 where baz_2 = 'x'");
+			try {
+				statement.execute("delete from \"foo1\" where id = 0");
+				fail();
+			} catch (SQLException ex) {
+				// expected
+			}
+		} finally {
+			executionParams.clear();
+		}
+
+		String fileContents = Files.toString(MEASURING_LOG_FILE, Charsets.UTF_8);
+		assertTrue(fileContents.matches(String.format("(?s).*%s[^\r\n]*?\\[sql\\] select \\* from foo where id = \\? and name = \\?;"
+				+ "[^\r\n]*?SUCCESS[^\r\n]*?%s[^\r\n]*?%s.*", "operation", execId, reqId)));
+		assertTrue(fileContents.contains("[sql] update foo set bar = ? where baz_2 = ?;"));
+		// the nested execution is not logged
+		assertTrue(fileContents.matches("(?s).*\\[sql\\] delete from \"foo1\" where id = \\?;[^\r\n]*?ERROR.*"));
+		assertFalse(fileContents.matches("(?s).*\\[sql\\] delete[^\r\n]*?SUCCESS.*"));
+	}
+
+	@Test
+	public void testCallSiteHook() throws Exception {
+		int offset = MEASURING_LOG_FILE.exists() ? Files.readLines(MEASURING_LOG_FILE, Charsets.UTF_8).size() : 0;
+
+		Object caller = callerClass.getConstructor(InputStream.class).newInstance(new ByteArrayInputStream(new byte[] { 1, 2 }));
+		assertEquals(callerClass.getMethod("getFirst").invoke(caller), 1);
+		assertEquals(callerClass.getMethod("count", InputStream.class).invoke(caller, new ByteArrayInputStream(new byte[3])), 3);
+		assertEquals(callerClass.getMethod("countBytes", byte[].class).invoke(caller, new byte[2]), 2);
+
+		List<String> lines = Files.readLines(MEASURING_LOG_FILE, Charsets.UTF_8);
+		lines = lines.subList(offset, lines.size());
+		// one per read() call, including the ones returning -1
+		assertEquals(lines.size(), 1 + 4 + 3);
+		assertTrue(lines.get(0).contains("[call] c.m.p.a.TestCaller.<init>(j.i.InputStream) -> j.i.InputStream.read();"
+				+ "[call] j.i.InputStream.read();"));
+		assertTrue(lines.get(1).contains("[call] c.m.p.a.TestCaller.count(j.i.InputStream) -> j.i.InputStream.read();"));
+		assertTrue(lines.get(5).contains("[call] c.m.p.a.TestCaller.countBytes(byte[]) -> j.i.ByteArrayInputStream.read();"
+				+ "[call] j.i.ByteArrayInputStream.read();"));
+	}
+
+	@Test
+	public void testOutboundHttpHook() throws Exception {
+		Instrumentation instrumentation = AttachedInstrumentation.get();
+		assertTrue(bootstrapBridge.isInstalled() || bootstrapBridge.install(instrumentation));
+
+		final List<String> receivedHeaders = Collections.synchronizedList(new ArrayList<String>());
+		HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+		server.createContext("/downstream", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				Headers headers = exchange.getRequestHeaders();
+				receivedHeaders.add(headers.getFirst(ServletApiHook.EXECUTION_ID_HEADER) + ";"
+						+ headers.getFirst(ServletApiHook.OPERATION_HEADER) + ";" + headers.getFirst(ServletApiHook.REQUEST_ID_HEADER));
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		int port = server.getAddress().getPort();
+
+		ExecutionParams executionParams = ThreadState.current().getExecutionParams();
+		executionParams.setExecutionId(execId);
+		executionParams.setOperation("operation");
+		executionParams.setRequestId(reqId);
+
+		// the hooks are woven into the JDK's connection and called via the bootstrap bridge
+		Class<?> connectionClass = Class.forName(HttpUrlConnectionHookMethodVisitor.HTTP_URL_CONNECTION_CLASS);
+		instrumentation.addTransformer(transformer, true);
+		try {
+			instrumentation.retransformClasses(connectionClass);
+			new URL("http://localhost:" + port + "/downstream?foo=bar").openStream().close();
+			// not a propagation host
+			new URL("http://127.0.0.1:" + port + "/downstream").openStream().close();
+		} finally {
+			instrumentation.removeTransformer(transformer);
+			instrumentation.retransformClasses(connectionClass);
+			executionParams.clear();
+			server.stop(0);
+		}
+
+		assertEquals(receivedHeaders, asList(execId + ";operation;" + reqId, "null;null;null"));
+
+		String fileContents = Files.toString(MEASURING_LOG_FILE, Charsets.UTF_8);
+		assertTrue(fileContents.matches(String.format("(?s).*operation[^\r\n]*?\\[http\\] GET http://localhost:%d;"
+				+ "[^\r\n]*?SUCCESS[^\r\n]*?%s[^\r\n]*?%s.*", port, execId, reqId)), fileContents);
+		assertTrue(fileContents.contains("[http] GET http://127.0.0.1:" + port + ";"), fileContents);
+	}
+
+	@Test
+	public void testConcurrentTransformation() throws Exception {
+		final String internalName = "com/mgmtp/perfload/agent/Test";
+		final byte[] classBytes = Resources.toByteArray(Resources.getResource(internalName + ".class"));
+		byte[] expected = transformer.transform(null, internalName, null, null, classBytes);
+
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < threads * 20; ++i) {
+				results.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return transformer.transform(null, internalName, null, null, classBytes);
+					}
+				}));
+			}
+			for (Future<byte[]> result : results) {
+				assertTrue(Arrays.equals(result.get(), expected));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentMeasurements() throws Exception {
+		// a correctness check only, the throughput is measured by the MeasuringBenchmark
+		final int threads = 4;
+		final int callsPerThread = 250;
+
+		final Object object = testClass.getConstructor(Boolean.class).newInstance(Boolean.FALSE);
+		final Method compute = testClass.getMethod("compute", int.class);
+
+		int offset = MEASURING_LOG_FILE.exists() ? Files.readLines(MEASURING_LOG_FILE, Charsets.UTF_8).size() : 0;
+
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int t = 0; t < threads; ++t) {
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						start.await();
+						boolean correct = true;
+						for (int i = 0; i < callsPerThread; ++i) {
+							correct &= Integer.valueOf(i * 31).equals(compute.invoke(object, i));
+						}
+						return correct;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// every call is logged in a complete line of its own
+		List<String> lines = Files.readLines(MEASURING_LOG_FILE, Charsets.UTF_8);
+		lines = lines.subList(offset, lines.size());
+		assertEquals(lines.size(), threads * callsPerThread);
+		int fields = lines.get(0).split(";", -1).length;
+		for (String line : lines) {
+			assertTrue(line.contains("SUCCESS"), line);
+			assertTrue(line.contains("c.m.p.a.Test.compute(int)"), line);
+			assertEquals(line.split(";", -1).length, fields, line);
+		}
+	}
+
+	static final class PriorityTask implements Runnable, Comparable<PriorityTask> {
+		final int priority;
+		private final CountDownLatch blocker;
+		volatile UUID requestId;
+
+		PriorityTask(final int priority, final CountDownLatch blocker) {
+			this.priority = priority;
+			this.blocker = blocker;
+		}
+
+		@Override
+		public void run() {
+			if (blocker != null) {
+				try {
+					blocker.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			requestId = ThreadState.current().getExecutionParams().getRequestId();
+		}
+
+		@Override
+		public int compareTo(final PriorityTask other) {
+			return priority - other.priority;
+		}
+	}
+
+	/**
+	 * Counts the records of the current request whose uri contains the specified string.
+	 */
+	private int countRecords(final String fileContents, final String uriPart) {
+		int count = 0;
+		for (String line : fileContents.split("\r?\n")) {
+			if (line.contains(uriPart) && line.endsWith(execId + ";" + reqId)) {
+				++count;
+			}
+		}
+		return count;
+	}
+
 	private Class<?> loadClass(final String fqcn) throws IOException, IllegalClassFormatException, MalformedURLException,
 			ClassNotFoundException {
 		String internalName = fqcn.replace('.', '/');
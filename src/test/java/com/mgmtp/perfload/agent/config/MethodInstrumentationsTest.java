@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.config;
+
+import static java.util.Arrays.asList;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+/**
+ * @author rnaegele
+ */
+public class MethodInstrumentationsTest {
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testMatches() {
+		MethodInstrumentations instrumentations = new MethodInstrumentations("execute", asList(
+				asList("java.lang.String", "int"),
+				asList("long[]", "java.util.Map$Entry[][]"),
+				Collections.<String>emptyList()));
+
+		assertTrue(instrumentations.matches("(Ljava/lang/String;I)V"));
+		assertTrue(instrumentations.matches("([J[[Ljava/util/Map$Entry;)Ljava/lang/Object;"));
+		assertTrue(instrumentations.matches("()V"));
+		assertFalse(instrumentations.matches("(Ljava/lang/String;J)V"));
+		assertFalse(instrumentations.matches("(I)V"));
+	}
+
+	@Test
+	public void testMatchesAnyWithoutArguments() {
+		MethodInstrumentations instrumentations = new MethodInstrumentations("execute", Collections.<List<String>>emptyList());
+		assertTrue(instrumentations.matches("(Ljava/lang/String;I)V"));
+		assertTrue(instrumentations.matches("()V"));
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.Collections;
+
+import org.testng.annotations.Test;
+
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.ArgumentLabel;
+
+/**
+ * @author rnaegele
+ */
+public class ArgumentLabelsTest {
+
+	@Test
+	public void testMethodsWithEqualAbbreviatedNames() {
+		// both are logged as c.e.Foo.find(j.l.String)
+		String first = "com.example.Foo.find(Ljava/lang/String;)V";
+		String second = "com.example2.Foo.find(Ljava/lang/String;)V";
+
+		ArgumentLabels argumentLabels = new ArgumentLabels(mock(AgentLogger.class));
+		argumentLabels.register(first, Collections.singletonList(ArgumentLabel.parse("0")));
+		argumentLabels.register(second, Collections.singletonList(ArgumentLabel.parse("0.length")));
+
+		assertEquals(argumentLabels.label(new Object[] { first, "report" }), "report");
+		assertEquals(argumentLabels.label(new Object[] { second, "report" }), "6");
+		assertNull(argumentLabels.label(new Object[] { "com.example.Foo.find(Ljava/lang/Object;)V", "report" }));
+		assertNull(argumentLabels.label(null));
+	}
+}
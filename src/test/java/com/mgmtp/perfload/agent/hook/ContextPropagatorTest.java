@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.Activation;
+import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.config.ContextPropagation;
+import com.mgmtp.perfload.agent.util.ExecutionParams;
+import com.mgmtp.perfload.agent.util.OperationRegistry;
+import com.mgmtp.perfload.agent.util.ThreadState;
+import com.mgmtp.perfload.logging.ResultLogger;
+
+/**
+ * @author rnaegele
+ */
+public class ContextPropagatorTest {
+
+	private final Runnable task = new Runnable() {
+		@Override
+		public void run() {
+			// nothing to do
+		}
+	};
+
+	@AfterMethod
+	public void tearDown() {
+		ThreadState.remove();
+	}
+
+	private ContextPropagator createPropagator(final boolean loadTestTrafficOnly) {
+		Config config = mock(Config.class);
+		when(config.getContextPropagation()).thenReturn(new ContextPropagation(Collections.<String>emptyList(), false, true));
+		when(config.getActivation()).thenReturn(new Activation(loadTestTrafficOnly, null));
+		OperationRegistry operationRegistry = mock(OperationRegistry.class);
+		when(operationRegistry.getResultLogger(any(ExecutionParams.class))).thenReturn(mock(ResultLogger.class));
+		return new ContextPropagator(mock(AgentLogger.class), operationRegistry, config);
+	}
+
+	@Test
+	public void testQueueWaitTimeOfAllTraffic() {
+		ContextPropagator propagator = createPropagator(false);
+		assertNotSame(propagator.wrap(task, this), task);
+		// no executor to log the queue wait time for
+		assertSame(propagator.wrap(task, null), task);
+	}
+
+	@Test
+	public void testQueueWaitTimeOfLoadTestTrafficOnly() {
+		ContextPropagator propagator = createPropagator(true);
+		assertSame(propagator.wrap(task, this), task);
+
+		ThreadState.current().getExecutionParams().setOperation("operation");
+		assertNotSame(propagator.wrap(task, this), task);
+	}
+
+	@Test
+	public void testThreadPoolExecutorWithoutWorkerHooks() {
+		ContextPropagator propagator = createPropagator(false);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		try {
+			ThreadState.current().getExecutionParams().setOperation("operation");
+			assertNotSame(propagator.wrap(task, executor), task);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testTaskSubmittedTwice() {
+		ContextPropagator propagator = createPropagator(false);
+		propagator.workerHookWoven(ThreadPoolExecutor.class.getName(), "beforeExecute");
+		propagator.workerHookWoven(ThreadPoolExecutor.class.getName(), "afterExecute");
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		try {
+			ExecutionParams executionParams = ThreadState.current().getExecutionParams();
+			executionParams.setOperation("first");
+			assertSame(propagator.wrap(task, executor), task);
+			executionParams.setOperation("second");
+			assertSame(propagator.wrap(task, executor), task);
+			executionParams.clear();
+
+			propagator.enterExecutorTask(task);
+			// the hook may be woven into an executor and its super class
+			propagator.enterExecutorTask(task);
+			assertEquals(ThreadState.current().getExecutionParams().getOperation(), "first");
+			propagator.exitExecutorTask(task);
+			assertNull(ThreadState.peek(), "the worker must not keep any state between tasks");
+
+			propagator.enterExecutorTask(task);
+			assertEquals(ThreadState.current().getExecutionParams().getOperation(), "second");
+			propagator.exitExecutorTask(task);
+			assertNull(ThreadState.peek(), "the worker must not keep any state between tasks");
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
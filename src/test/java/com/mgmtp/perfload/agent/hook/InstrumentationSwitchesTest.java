@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.Activation;
+import com.mgmtp.perfload.agent.config.Config;
+
+/**
+ * @author rnaegele
+ */
+public class InstrumentationSwitchesTest {
+
+	private InstrumentationSwitches createSwitches(final String controlFile) {
+		Config config = mock(Config.class);
+		when(config.getActivation()).thenReturn(new Activation(false, controlFile));
+		return new InstrumentationSwitches(mock(AgentLogger.class), new File("target"), config);
+	}
+
+	@Test
+	public void testRules() {
+		InstrumentationSwitches switches = createSwitches(null);
+		int foo = switches.idOf("com.example.dao.Foo.find");
+		int bar = switches.idOf("com.example.web.Bar.get");
+		assertEquals(switches.idOf("com.example.dao.Foo.find"), foo);
+		assertTrue(switches.isEnabled(foo));
+
+		assertEquals(switches.disable("com.example.*"), 2);
+		assertEquals(switches.enable("*.Bar.*"), 1);
+		assertFalse(switches.isEnabled(foo));
+		assertTrue(switches.isEnabled(bar));
+
+		// switches created later get their state from the rules
+		assertFalse(switches.isEnabled(switches.idOf("com.example.dao.Baz.save")));
+		assertTrue(switches.isEnabled(switches.idOf("org.example.Qux.run")));
+
+		switches.reset();
+		assertTrue(switches.isEnabled(foo));
+		assertEquals(switches.getDisabledSwitches().length, 0);
+	}
+
+	@Test
+	public void testControlFile() throws IOException {
+		File file = new File("target", "perfload-agent-test.switches");
+		Files.write("# comment\n-com.example.*\n+com.example.web.*\n", file, Charsets.UTF_8);
+
+		InstrumentationSwitches switches = createSwitches(file.getName());
+		int foo = switches.idOf("com.example.dao.Foo.find");
+		int bar = switches.idOf("com.example.web.Bar.get");
+
+		switches.applyControlFile();
+		assertFalse(switches.isEnabled(foo));
+		assertTrue(switches.isEnabled(bar));
+
+		// a deleted file switches everything on
+		assertTrue(file.delete());
+		switches.applyControlFile();
+		assertTrue(switches.isEnabled(foo));
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.mgmtp.perfload.agent.AgentDiagnostics;
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.Activation;
+import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.config.Limits;
+import com.mgmtp.perfload.agent.config.RequestSummary;
+import com.mgmtp.perfload.agent.config.ServerTiming;
+import com.mgmtp.perfload.agent.util.ExecutionParams;
+import com.mgmtp.perfload.agent.util.OperationRegistry;
+import com.mgmtp.perfload.agent.util.RequestProfile;
+import com.mgmtp.perfload.agent.util.RequestState;
+import com.mgmtp.perfload.agent.util.ThreadState;
+import com.mgmtp.perfload.logging.ResultLogger;
+import com.mgmtp.perfload.logging.TimeInterval;
+
+/**
+ * @author rnaegele
+ */
+public class MeasuringHookTest {
+
+	private static final String METHOD = "c.m.p.a.Foo.bar()";
+
+	private OperationRegistry operationRegistry;
+	private ResultLogger resultLogger;
+	private AgentDiagnostics diagnostics;
+
+	@BeforeMethod
+	public void setUp() {
+		ThreadState.remove();
+		operationRegistry = mock(OperationRegistry.class);
+		resultLogger = mock(ResultLogger.class);
+		diagnostics = mock(AgentDiagnostics.class);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		ThreadState.remove();
+	}
+
+	@Test
+	public void testLoadTestTrafficOnlyIgnoresUnattributedWork() {
+		MeasuringHook hook = createHook(true);
+		hook.start(this, METHOD);
+		hook.stop(this, null, METHOD);
+
+		assertNull(ThreadState.peek(), "no state must be created");
+		verifyZeroInteractions(operationRegistry);
+	}
+
+	@Test
+	public void testLoadTestTrafficOnlyMeasuresRequests() {
+		MeasuringHook hook = createHook(true);
+		ExecutionParams executionParams = ThreadState.current().getExecutionParams();
+		executionParams.setExecutionId(UUID.randomUUID());
+		executionParams.setOperation("operation");
+		executionParams.setRequestId(UUID.randomUUID());
+		when(operationRegistry.getResultLogger(executionParams)).thenReturn(resultLogger);
+
+		hook.start(this, METHOD);
+		hook.stop(this, null, METHOD);
+
+		verify(resultLogger).logResult(eq((String) null), anyLong(), any(TimeInterval.class), any(TimeInterval.class),
+				eq("AGENT"), eq(METHOD), eq(METHOD), eq(executionParams.getExecutionId()), eq(executionParams.getRequestId()));
+	}
+
+	@Test
+	public void testAllTrafficIsMeasuredByDefault() {
+		MeasuringHook hook = createHook(false);
+		when(operationRegistry.getResultLogger(any(ExecutionParams.class))).thenReturn(resultLogger);
+
+		hook.start(this, METHOD);
+		hook.stop(this, null, METHOD);
+
+		verify(resultLogger).logResult(eq((String) null), anyLong(), any(TimeInterval.class), any(TimeInterval.class),
+				eq("AGENT"), eq(METHOD), anyString(), eq((UUID) null), eq((UUID) null));
+	}
+
+	@Test
+	public void testRequestSummaryCollectsMeasurements() {
+		MeasuringHook hook = createHook(false, new RequestSummary(true));
+		RequestState requestState = ThreadState.current().getRequestState();
+		requestState.enter();
+		requestState.startRequestTime();
+
+		hook.start(this, METHOD);
+		hook.stop(this, null, METHOD);
+		hook.start(this, METHOD);
+		hook.stop(this, new IllegalStateException(), METHOD);
+
+		verifyZeroInteractions(operationRegistry);
+		List<RequestProfile.Entry> entries = requestState.getProfile().getTopEntries(Integer.MAX_VALUE);
+		assertEquals(entries.size(), 1);
+		assertEquals(entries.get(0).getFullyQualifiedMethodName(), METHOD);
+		assertEquals(entries.get(0).getCount(), 2);
+		assertEquals(entries.get(0).getErrorCount(), 1);
+	}
+
+	@Test
+	public void testStackDepthCap() {
+		MeasuringHook hook = createHook(false, RequestSummary.disabled(), new Limits(2, Limits.DEFAULT_MAX_OPERATIONS));
+		when(operationRegistry.getResultLogger(any(ExecutionParams.class))).thenReturn(resultLogger);
+
+		hook.start(this, "outer");
+		hook.start(this, "middle");
+		// skipped, as are the calls it makes
+		hook.start(this, "inner");
+		hook.start(this, "innermost");
+		hook.stop(this, null, "innermost");
+		hook.stop(this, null, "inner");
+		hook.stop(this, null, "middle");
+		hook.stop(this, null, "outer");
+
+		verify(diagnostics, times(2)).measurementDropped();
+		verify(resultLogger).logResult(eq((String) null), anyLong(), any(TimeInterval.class), any(TimeInterval.class),
+				eq("AGENT"), eq("middle"), eq("middle"), eq((UUID) null), eq((UUID) null));
+		verify(resultLogger).logResult(eq((String) null), anyLong(), any(TimeInterval.class), any(TimeInterval.class),
+				eq("AGENT"), eq("outer"), eq("outer"), eq((UUID) null), eq((UUID) null));
+		verifyNoMoreInteractions(resultLogger);
+
+		ThreadState state = ThreadState.current();
+		assertTrue(state.getMeasurements().isEmpty());
+		assertFalse(state.decrementOverflowDepth(), "the overflow depth must be balanced");
+	}
+
+	@Test
+	public void testOverflowDepthIsBalancedWithExceptions() {
+		MeasuringHook hook = createHook(false, RequestSummary.disabled(), new Limits(1, Limits.DEFAULT_MAX_OPERATIONS));
+		when(operationRegistry.getResultLogger(any(ExecutionParams.class))).thenReturn(resultLogger);
+
+		hook.start(this, "outer");
+		hook.start(this, "inner");
+		hook.stop(this, new IllegalStateException("failed"), "inner");
+		hook.stop(this, new IllegalStateException("failed"), "outer");
+
+		// the next call is measured again
+		hook.start(this, "next");
+		hook.stop(this, null, "next");
+
+		verify(resultLogger).logResult(eq("failed"), anyLong(), any(TimeInterval.class), any(TimeInterval.class),
+				eq("AGENT"), eq("outer"), eq("outer"), eq((UUID) null), eq((UUID) null));
+		verify(resultLogger).logResult(eq((String) null), anyLong(), any(TimeInterval.class), any(TimeInterval.class),
+				eq("AGENT"), eq("next"), eq("next"), eq((UUID) null), eq((UUID) null));
+		verifyNoMoreInteractions(resultLogger);
+	}
+
+	private MeasuringHook createHook(final boolean loadTestTrafficOnly) {
+		return createHook(loadTestTrafficOnly, RequestSummary.disabled());
+	}
+
+	private MeasuringHook createHook(final boolean loadTestTrafficOnly, final RequestSummary requestSummary) {
+		return createHook(loadTestTrafficOnly, requestSummary, Limits.defaults());
+	}
+
+	private MeasuringHook createHook(final boolean loadTestTrafficOnly, final RequestSummary requestSummary,
+			final Limits limits) {
+		Config config = mock(Config.class);
+		when(config.getLimits()).thenReturn(limits);
+		when(config.getActivation()).thenReturn(new Activation(loadTestTrafficOnly, null));
+		when(config.getServerTiming()).thenReturn(ServerTiming.disabled());
+		when(config.getRequestSummary()).thenReturn(requestSummary);
+		return new MeasuringHook(mock(AgentLogger.class), operationRegistry, diagnostics,
+				mock(ArgumentLabels.class), config);
+	}
+}
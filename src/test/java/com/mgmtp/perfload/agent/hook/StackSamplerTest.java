@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.hook;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.StackSampling;
+
+/**
+ * @author rnaegele
+ */
+public class StackSamplerTest {
+
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	private StackSampler createSampler(final File stacksFile, final long thresholdMillis) {
+		stacksFile.delete();
+		return new StackSampler(new StackSampling(true, StackSampling.DEFAULT_INTERVAL_MILLIS, thresholdMillis,
+				StackSampling.DEFAULT_MAX_FRAMES), stacksFile, mock(AgentLogger.class));
+	}
+
+	@Test
+	public void testFoldedStacks() throws IOException {
+		File stacksFile = new File("target/stacks-test.txt");
+		StackSampler sampler = createSampler(stacksFile, 0L);
+
+		// not registered
+		sampler.sample(threadBean);
+
+		sampler.begin("my operation");
+		sampler.sample(threadBean);
+		sampler.sample(threadBean);
+		sampler.end();
+
+		// no longer registered
+		sampler.sample(threadBean);
+		sampler.writeStacks();
+
+		List<String> lines = Files.readLines(stacksFile, Charsets.UTF_8);
+		assertEquals(lines.size(), 1);
+		String line = lines.get(0);
+		assertTrue(line.startsWith("my_operation;"), line);
+		// outermost frame first, the sampled thread is the sampling one here
+		assertTrue(line.contains(";" + getClass().getName() + ".testFoldedStacks;" + StackSampler.class.getName() + ".sample;"),
+				line);
+		assertTrue(line.endsWith(" 2"), line);
+	}
+
+	@Test
+	public void testThreshold() {
+		File stacksFile = new File("target/stacks-threshold-test.txt");
+		StackSampler sampler = createSampler(stacksFile, 60000L);
+
+		sampler.begin("operation");
+		sampler.sample(threadBean);
+		sampler.end();
+		sampler.writeStacks();
+
+		assertFalse(stacksFile.exists(), "samples of fast requests must be discarded");
+	}
+}
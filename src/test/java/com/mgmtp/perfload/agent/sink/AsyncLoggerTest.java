@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.sink;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.logging.SimpleFileLogger;
+
+/**
+ * @author rnaegele
+ */
+public class AsyncLoggerTest {
+
+	private final AgentLogger agentLogger = new AgentLogger(new File("target", "perfload-agent-async-test.log"));
+
+	@Test
+	public void testConcurrentWrites() throws IOException, InterruptedException {
+		File file = new File("target", "perfload-agent-async-test-measuring.log");
+		file.delete();
+
+		final int threads = 8;
+		final int linesPerThread = 5000;
+		final AsyncLogger logger = new AsyncLogger(new SimpleFileLogger(file), threads * linesPerThread, agentLogger);
+		logger.open();
+
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; ++t) {
+			final int thread = t;
+			writers.add(new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < linesPerThread; ++i) {
+						logger.writeln("thread" + thread + ";line" + i);
+					}
+				}
+			});
+		}
+		for (Thread writer : writers) {
+			writer.start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		logger.close();
+
+		List<String> lines = Files.readLines(file, Charsets.UTF_8);
+		assertEquals(lines.size(), threads * linesPerThread);
+		assertEquals(new HashSet<String>(lines).size(), threads * linesPerThread);
+		assertEquals(logger.getWrittenRecords(), (long) threads * linesPerThread);
+		assertEquals(logger.getDroppedRecords(), 0L);
+	}
+
+	@Test
+	public void testDropWhenQueueFull() {
+		AsyncLogger logger = new AsyncLogger(new SimpleFileLogger(new File("target", "perfload-agent-async-test-unused.log")),
+				2, agentLogger);
+		// not opened, so nothing is taken from the queue
+		for (int i = 0; i < 5; ++i) {
+			logger.writeln("line" + i);
+		}
+		assertEquals(logger.getDroppedRecords(), 3L);
+		assertEquals(logger.getWrittenRecords(), 0L);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.sink;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.mgmtp.perfload.agent.AgentLogger;
+
+/**
+ * @author rnaegele
+ */
+public class MappedSegmentLoggerTest {
+
+	private static final int THREADS = 4;
+	private static final int LINES_PER_THREAD = 500;
+
+	@Test
+	public void testConcurrentWritesWithRollOver() throws IOException, InterruptedException {
+		File dir = new File("target", "segments");
+		FileUtils.deleteDirectory(dir);
+		dir.mkdirs();
+
+		final MappedSegmentLogger segmentLogger = new MappedSegmentLogger(dir, 42, 4096, new AgentLogger(new File(dir,
+				"agent.log")));
+		segmentLogger.open();
+		MappedSegmentReader reader = new MappedSegmentReader(dir, 42);
+
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		for (int t = 0; t < THREADS; ++t) {
+			final int thread = t;
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < LINES_PER_THREAD; ++i) {
+						segmentLogger.writeln(thread + ";" + i);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+
+		// tail while writing
+		List<String> lines = Lists.newArrayList();
+		while (done.getCount() > 0) {
+			lines.addAll(reader.read());
+		}
+		segmentLogger.close();
+		lines.addAll(reader.read());
+
+		assertEquals(segmentLogger.getDroppedRecords(), 0L);
+		assertEquals(lines.size(), THREADS * LINES_PER_THREAD);
+		assertTrue(MappedSegment.file(dir, 42, 2).exists(), "expected roll-over");
+
+		int[] next = new int[THREADS];
+		for (String line : lines) {
+			String[] fields = line.split(";");
+			int thread = Integer.parseInt(fields[0]);
+			assertEquals(Integer.parseInt(fields[1]), next[thread]++, "order of thread " + thread);
+		}
+	}
+}
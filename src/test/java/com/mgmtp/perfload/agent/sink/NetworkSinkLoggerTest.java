@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.sink;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.testng.annotations.Test;
+
+import com.mgmtp.perfload.agent.AgentLogger;
+import com.mgmtp.perfload.agent.config.NetworkSink;
+
+/**
+ * @author rnaegele
+ */
+public class NetworkSinkLoggerTest {
+
+	private final AgentLogger agentLogger = new AgentLogger(new File("target", "perfload-agent-sink-test.log"));
+
+	@Test
+	public void testTcp() throws IOException, InterruptedException {
+		assertReceived(false);
+	}
+
+	@Test
+	public void testUdp() throws IOException, InterruptedException {
+		assertReceived(true);
+	}
+
+	@Test
+	public void testDropWhenQueueFull() {
+		NetworkSinkLogger sinkLogger = new NetworkSinkLogger(new NetworkSink(true, "tcp", "localhost", 1, 2, 10), "node:1",
+				agentLogger);
+		// not opened, so nothing is taken from the queue
+		for (int i = 0; i < 5; ++i) {
+			sinkLogger.writeln("line" + i);
+		}
+		assertEquals(sinkLogger.getDroppedRecords(), 3L);
+		assertEquals(sinkLogger.getSentRecords(), 0L);
+	}
+
+	private void assertReceived(final boolean udp) throws IOException, InterruptedException {
+		StringWriter out = new StringWriter();
+		Collector collector = new Collector(udp, 0, out);
+		int port = collector.start();
+		try {
+			NetworkSinkLogger sinkLogger = new NetworkSinkLogger(new NetworkSink(true, udp ? "udp" : "tcp", "localhost", port,
+					100, 2), "node:42", agentLogger);
+			sinkLogger.open();
+			long before = System.currentTimeMillis();
+			for (int i = 0; i < 5; ++i) {
+				sinkLogger.writeln("line" + i);
+			}
+			sinkLogger.close();
+			assertEquals(sinkLogger.getSentRecords(), 5L);
+
+			String[] lines = awaitLines(out, 5);
+			for (int i = 0; i < 5; ++i) {
+				String[] fields = lines[i].split(";");
+				assertTrue(Long.parseLong(fields[0]) >= before - 10L, lines[i]);
+				assertEquals(fields[1], "node:42");
+				assertEquals(fields[2], "line" + i);
+			}
+		} finally {
+			collector.close();
+		}
+	}
+
+	private String[] awaitLines(final StringWriter out, final int count) throws InterruptedException {
+		for (int i = 0; i < 100; ++i) {
+			String[] lines = out.toString().split("\\r?\\n");
+			if (lines.length >= count && lines[count - 1].length() > 0) {
+				return lines;
+			}
+			Thread.sleep(50L);
+		}
+		throw new AssertionError("Measurements not received: " + out);
+	}
+}
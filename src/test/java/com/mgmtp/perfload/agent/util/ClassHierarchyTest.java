@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.testng.annotations.Test;
+
+/**
+ * @author rnaegele
+ */
+public class ClassHierarchyTest {
+
+	private static final String STATEMENT_CLASS = "com/mgmtp/perfload/agent/TestJdbcStatement";
+
+	@Test
+	public void testClassNotVisibleToLoader() {
+		ClassHierarchy classHierarchy = new ClassHierarchy();
+		// does not see the test classes
+		ClassLoader otherLoader = new URLClassLoader(new URL[0], null);
+		assertFalse(classHierarchy.isSubtypeOf(otherLoader, STATEMENT_CLASS, "java/sql/Statement"));
+
+		ClassLoader loader = getClass().getClassLoader();
+		assertTrue(classHierarchy.isSubtypeOf(loader, STATEMENT_CLASS, "java/sql/Statement"));
+		assertFalse(classHierarchy.isSubtypeOf(otherLoader, STATEMENT_CLASS, "java/sql/Statement"));
+	}
+}
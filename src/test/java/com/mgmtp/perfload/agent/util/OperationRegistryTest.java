@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+import org.testng.annotations.Test;
+
+import com.mgmtp.perfload.agent.config.Config;
+import com.mgmtp.perfload.agent.config.Limits;
+import com.mgmtp.perfload.logging.SimpleLogger;
+
+/**
+ * @author rnaegele
+ */
+public class OperationRegistryTest {
+
+	@Test
+	public void testOverflow() {
+		OperationRegistry registry = createRegistry(2);
+
+		int first = registry.register("op1");
+		assertEquals(registry.register("op1"), first);
+		int second = registry.register("op2");
+		assertNotSame(registry.getResultLogger(second), registry.getResultLogger(first));
+
+		assertEquals(registry.register("op3"), OperationRegistry.OVERFLOW_ID);
+		assertEquals(registry.register("op4"), OperationRegistry.OVERFLOW_ID);
+		assertEquals(registry.register(null), OperationRegistry.UNKNOWN_ID);
+		assertEquals(registry.size(), 4);
+		assertEquals(registry.getOverflows(), 2L);
+	}
+
+	@Test
+	public void testLazyRegistration() {
+		OperationRegistry registry = createRegistry(10);
+
+		ExecutionParams executionParams = new ExecutionParams();
+		executionParams.setOperation("op");
+		ExecutionParams snapshot = executionParams.snapshot();
+
+		assertSame(registry.getResultLogger(snapshot), registry.getResultLogger(registry.register("op")));
+		assertEquals(snapshot.getOperationId(), -1, "snapshots must not be modified");
+
+		registry.getResultLogger(executionParams);
+		assertEquals(executionParams.getOperationId(), registry.register("op"));
+
+		executionParams.setOperation("other");
+		assertEquals(executionParams.getOperationId(), -1);
+	}
+
+	private OperationRegistry createRegistry(final int maxOperations) {
+		Config config = mock(Config.class);
+		when(config.getLimits()).thenReturn(new Limits(100, maxOperations));
+		return new OperationRegistry(mock(SimpleLogger.class), config);
+	}
+}
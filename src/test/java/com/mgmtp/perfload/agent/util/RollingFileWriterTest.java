@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2013-2014 mgm technology partners GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mgmtp.perfload.agent.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.mgmtp.perfload.agent.config.Rotation;
+
+/**
+ * @author rnaegele
+ */
+public class RollingFileWriterTest {
+
+	@Test
+	public void testRotateBySize() throws IOException {
+		File dir = new File("target", "rolling");
+		FileUtils.deleteDirectory(dir);
+		dir.mkdirs();
+		File file = new File(dir, "measuring.log");
+
+		PrintWriter writer = new PrintWriter(new RollingFileWriter(file, new Rotation(true, 50L, 60L, true)));
+		for (int i = 0; i < 30; ++i) {
+			writer.println("line" + i);
+			writer.flush();
+		}
+		writer.close();
+
+		List<String> index = FileUtils.readLines(new File(dir, "measuring.index"));
+		assertTrue(index.size() >= 2, index.toString());
+
+		List<String> lines = Lists.newArrayList();
+		for (int i = 0; i < index.size(); ++i) {
+			String[] fields = index.get(i).split(";");
+			assertEquals(Integer.parseInt(fields[0]), i + 1);
+			assertTrue(Long.parseLong(fields[1]) <= Long.parseLong(fields[2]));
+			assertTrue(fields[3].matches("measuring\\.\\d{5}\\.\\d{8}T\\d{6}-\\d{8}T\\d{6}\\.log\\.gz"), fields[3]);
+
+			GZIPInputStream in = new GZIPInputStream(new FileInputStream(new File(dir, fields[3])));
+			try {
+				lines.addAll(IOUtils.readLines(in, "UTF-8"));
+			} finally {
+				in.close();
+			}
+		}
+		lines.addAll(FileUtils.readLines(file));
+
+		assertEquals(lines.size(), 30);
+		for (int i = 0; i < 30; ++i) {
+			assertEquals(lines.get(i), "line" + i);
+		}
+	}
+}